@@ -41,6 +41,11 @@ android {
         viewBinding = true
     }
 
+    testOptions {
+        // The rule engine traces and logs through android.os, host tests run it with those no-ops.
+        unitTests.isReturnDefaultValues = true
+    }
+
     room {
         schemaDirectory("$projectDir/schemas")
     }
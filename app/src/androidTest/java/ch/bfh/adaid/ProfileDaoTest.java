@@ -0,0 +1,86 @@
+package ch.bfh.adaid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import ch.bfh.adaid.db.Profile;
+import ch.bfh.adaid.db.ProfileDao;
+import ch.bfh.adaid.db.Rule;
+import ch.bfh.adaid.db.RuleDao;
+import ch.bfh.adaid.db.RuleDatabase;
+
+/**
+ * Instrumented test, which will execute on an Android device.
+ *
+ * This checks if the profiles and their links to rules are stored correctly.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProfileDaoTest {
+    private RuleDao ruleDao;
+    private ProfileDao profileDao;
+    private RuleDatabase db;
+
+    @Before
+    public void createDb() {
+        Context context = ApplicationProvider.getApplicationContext();
+        db = Room.inMemoryDatabaseBuilder(context, RuleDatabase.class).build();
+        ruleDao = db.ruleDao();
+        profileDao = db.profileDao();
+    }
+
+    @After
+    public void closeDb() {
+        db.close();
+    }
+
+    public Rule helper_insertRule(String name) {
+        Rule rule = new Rule(name);
+        rule.id = ruleDao.insert(rule);
+        return rule;
+    }
+
+    @Test
+    public void can_set_profiles_of_rule() {
+        Rule rule = helper_insertRule("Test");
+        profileDao.setProfilesOfRule(rule.id, Arrays.asList("focus", "evening"));
+        List<String> names = profileDao.getNamesOfRule(rule.id);
+        assertEquals(Arrays.asList("evening", "focus"), names);
+        assertEquals(2, profileDao.getAllLinks().size());
+    }
+
+    @Test
+    public void profiles_are_shared_between_rules() {
+        Rule rule1 = helper_insertRule("Test1");
+        Rule rule2 = helper_insertRule("Test2");
+        profileDao.setProfilesOfRule(rule1.id, Collections.singletonList("focus"));
+        profileDao.setProfilesOfRule(rule2.id, Collections.singletonList("focus"));
+        List<Profile> profiles = profileDao.getAll();
+        assertEquals(1, profiles.size());
+        assertEquals(2, profileDao.getAllLinks().size());
+    }
+
+    @Test
+    public void profiles_outlive_their_rules() {
+        Rule rule = helper_insertRule("Test");
+        profileDao.setProfilesOfRule(rule.id, Collections.singletonList("focus"));
+        profileDao.setProfilesOfRule(rule.id, Collections.emptyList());
+        assertTrue(profileDao.getAllLinks().isEmpty());
+        ruleDao.delete(rule);
+        assertEquals(1, profileDao.getAll().size());
+    }
+}
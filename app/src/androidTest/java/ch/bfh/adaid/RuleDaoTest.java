@@ -15,11 +15,13 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.Collections;
 import java.util.List;
 
 import ch.bfh.adaid.db.Rule;
 import ch.bfh.adaid.db.RuleDao;
 import ch.bfh.adaid.db.RuleDatabase;
+import ch.bfh.adaid.db.RuleSummary;
 
 /**
  * Instrumented test, which will execute on an Android device.
@@ -104,6 +106,21 @@ public class RuleDaoTest {
         assertEquals("Test2", rules.get(1).name);
     }
 
+    @Test
+    public void can_get_enabled_rules_by_app_ids() {
+        Rule enabled = new Rule("Enabled", true, "com.app", "id", null, null, null);
+        Rule disabled = new Rule("Disabled", false, "com.app", "id", null, null, null);
+        Rule other = new Rule("Other", true, "com.other", "id", null, null, null);
+        ruleDao.insert(enabled);
+        ruleDao.insert(disabled);
+        ruleDao.insert(other);
+        List<Rule> rules = ruleDao.getEnabledByAppIds(Collections.singletonList("com.app"));
+        assertEquals(1, rules.size());
+        assertEquals("Enabled", rules.get(0).name);
+        List<RuleSummary> summaries = ruleDao.getEnabledSummaries();
+        assertEquals(2, summaries.size());
+    }
+
     @Test
     public void can_delete_all_rules() {
         helper_insertRule("Test1");
@@ -32,4 +32,27 @@ public abstract class Action {
      * Trigger the action now because node that matches the rule was removed.
      */
     public abstract void triggerGone();
+
+    /**
+     * Suspend any ongoing work of the action, e.g. because the screen turned off. The triggered
+     * state of the rule is kept, the action is not triggered again on resume.
+     */
+    public void suspend() {
+        // Most actions are one-shot, nothing to suspend.
+    }
+
+    /**
+     * Resume the work suspended by {@link #suspend()}.
+     */
+    public void resume() {
+        // Most actions are one-shot, nothing to resume.
+    }
+
+    /**
+     * Release everything the action still holds on to, e.g. a shown overlay. Called when the rule
+     * is dropped from the service, the action may be triggered again afterwards.
+     */
+    public void release() {
+        // Most actions are one-shot, nothing to release.
+    }
 }
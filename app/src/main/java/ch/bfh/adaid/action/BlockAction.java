@@ -19,6 +19,8 @@ import androidx.annotation.NonNull;
 
 import java.lang.ref.WeakReference;
 
+import ch.bfh.adaid.service.EngineTrace;
+
 /**
  * Action to block content on screen i.e. overlay a black box.
  * <p>
@@ -34,8 +36,22 @@ public class BlockAction extends Action {
     private final Rect maxBounds;
     private final LinearLayout overlay;
     private final WindowManager.LayoutParams layoutParams;
+    private final Rect boundsInScreen = new Rect(); // reused on every overlay update
     private OverlayUpdateHandler updater;
 
+    /**
+     * Interval at which the overlays are moved with their views, in ms.
+     */
+    private static volatile long updateInterval = OverlayUpdateHandler.DEFAULT_UPDATE_INTERVAL;
+
+    /**
+     * Name of the async trace slice that spans the lifetime of an overlay and the number of shown
+     * overlays for the counter track and the dump of the service.
+     */
+    private static final String TRACE_OVERLAY = "block overlay";
+    private static int shownOverlays;
+    private boolean overlayTraced;
+
     /**
      * Construct a new block action.
      *
@@ -80,12 +96,65 @@ public class BlockAction extends Action {
         // Do nothing. Update handler does a better job at it.
     }
 
+    /**
+     * Set the interval at which all overlays are moved with their views. A longer interval costs
+     * less, but the overlays lag behind e.g. while scrolling.
+     *
+     * @param interval The interval in ms.
+     */
+    public static void setUpdateInterval(long interval) {
+        updateInterval = interval;
+    }
+
+    /**
+     * Get the number of overlays currently shown.
+     *
+     * @return The number of overlays.
+     */
+    public static int getShownOverlays() {
+        return shownOverlays;
+    }
+
+    /**
+     * Stop updating the overlay while the screen is off. The overlay itself stays.
+     */
+    @Override
+    public void suspend() {
+        if (updater != null) {
+            updater.removeMessages(OverlayUpdateHandler.RUN);
+        }
+    }
+
+    /**
+     * Restart updating the overlay. If the node vanished meanwhile the first update removes it.
+     */
+    @Override
+    public void resume() {
+        if (updater != null && !updater.hasMessages(OverlayUpdateHandler.RUN)) {
+            updater.sendEmptyMessage(OverlayUpdateHandler.RUN);
+        }
+    }
+
+    /**
+     * Remove the overlay right away, the update handler won't get to it anymore once the rule was
+     * dropped.
+     */
+    @Override
+    public void release() {
+        if (updater != null) {
+            updater.removeMessages(OverlayUpdateHandler.RUN);
+            removeOverlay();
+        }
+    }
+
     /**
      * Show the overlay and add it to the window manager.
      */
     private void showOverlay() {
         overlay.setVisibility(View.VISIBLE);
         windowManager.addView(overlay, layoutParams);
+        overlayTraced = EngineTrace.beginAsync(TRACE_OVERLAY, System.identityHashCode(this));
+        EngineTrace.counter("overlays", ++shownOverlays);
     }
 
     /**
@@ -94,7 +163,6 @@ public class BlockAction extends Action {
      * @param node a11y node for corresponding view that should be blocked.
      */
     private void updateOverlay(AccessibilityNodeInfo node) {
-        Rect boundsInScreen = new Rect();
         node.getBoundsInScreen(boundsInScreen);
 
         if (boundsInScreen.width() <= 0
@@ -105,6 +173,14 @@ public class BlockAction extends Action {
             return;
         }
 
+        // Most of the time the node didn't move. Skip the relayout of the overlay in that case.
+        if (layoutParams.x == boundsInScreen.left
+                && layoutParams.y == boundsInScreen.top
+                && layoutParams.width == boundsInScreen.width()
+                && layoutParams.height == boundsInScreen.height()) {
+            return;
+        }
+
         layoutParams.x = boundsInScreen.left;
         layoutParams.y = boundsInScreen.top;
         layoutParams.width = boundsInScreen.width();
@@ -118,6 +194,8 @@ public class BlockAction extends Action {
     private void removeOverlay() {
         windowManager.removeView(overlay);
         updater = null;
+        EngineTrace.endAsync(TRACE_OVERLAY, System.identityHashCode(this), overlayTraced);
+        EngineTrace.counter("overlays", --shownOverlays);
     }
 
     /**
@@ -129,9 +207,9 @@ public class BlockAction extends Action {
     private static class OverlayUpdateHandler extends Handler {
 
         /**
-         * Rate at witch the overlay should be updated.
+         * Default rate at witch the overlay should be updated, see {@link #setUpdateInterval(long)}.
          */
-        private static final long BLOCK_OVERLAY_UPDATE_RATE = 10; // ms
+        private static final long DEFAULT_UPDATE_INTERVAL = 10; // ms
 
         /**
          * Message id to trigger or stop endless loop.
@@ -172,12 +250,17 @@ public class BlockAction extends Action {
             // handler loop is stopped.
             BlockAction action = blockActionReference.get();
             if (action != null) {
-                if (nodeToBlock.refresh()) {
-                    action.updateOverlay(nodeToBlock);
-                    sendEmptyMessageDelayed(RUN, BLOCK_OVERLAY_UPDATE_RATE);
-                } else {
-                    removeMessages(RUN);
-                    action.removeOverlay();
+                boolean traced = EngineTrace.begin("overlay update");
+                try {
+                    if (nodeToBlock.refresh()) {
+                        action.updateOverlay(nodeToBlock);
+                        sendEmptyMessageDelayed(RUN, updateInterval);
+                    } else {
+                        removeMessages(RUN);
+                        action.removeOverlay();
+                    }
+                } finally {
+                    EngineTrace.end(traced);
                 }
             } else {
                 removeMessages(RUN);
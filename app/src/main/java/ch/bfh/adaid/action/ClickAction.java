@@ -6,6 +6,10 @@ import android.view.accessibility.AccessibilityNodeInfo;
 
 /**
  * Action to click on the matched node.
+ * <p>
+ * The matched node itself is often not clickable, but one of its parents is. The first getParent()
+ * call prefetches all ancestors of the node, so walking further up the chain is served from the
+ * cache of the service instead of a binder call per parent.
  *
  * @author Niklaus Leuenberger
  */
@@ -67,7 +71,9 @@ public class ClickAction extends Action {
             Log.e(TAG, "Reached max recursion level while searching clickable node.");
             return null;
         }
-        AccessibilityNodeInfo parent = node.getParent();
+        AccessibilityNodeInfo parent = (recursionLevel == 0)
+                ? node.getParent(AccessibilityNodeInfo.FLAG_PREFETCH_ANCESTORS)
+                : node.getParent();
         if (parent == null) {
             return null;
         }
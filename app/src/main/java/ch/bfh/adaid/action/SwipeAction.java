@@ -8,6 +8,8 @@ import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.accessibility.AccessibilityNodeInfo;
 
+import ch.bfh.adaid.service.EngineTrace;
+
 /**
  * Action to swipe in LEFT/RIGHT/UP/DOWN direction over the screen.
  *
@@ -39,6 +41,18 @@ public class SwipeAction extends Action {
      */
     private static final long SWIPE_DISPATCH_DELAY = 200; // ms
 
+    /**
+     * Name of the async trace slice of a gesture.
+     */
+    private static final String TRACE_GESTURE = "swipe gesture";
+
+    /**
+     * Number of dispatched gestures, also used as cookie of the trace slices, and the number of
+     * gestures that were dispatched but are not completed yet.
+     */
+    private static int gestureCount;
+    private static int pendingGestures;
+
     /**
      * Duration of swipes.
      */
@@ -142,8 +156,58 @@ public class SwipeAction extends Action {
         // TODO: (BUG) Sometimes the gesture is dispatched but not executed.
         // TODO: Detect if user is already performing a gesture and don't start a new one.
         Log.d(TAG, "Dispatching gesture.");
-        if (!service.dispatchGesture(swipeGesture, null, null)) {
+        // While tracing, an async slice spans from the dispatch to the completion of the gesture.
+        int cookie = ++gestureCount;
+        boolean traced = EngineTrace.beginAsync(TRACE_GESTURE, cookie);
+        pendingGestures++;
+        if (!service.dispatchGesture(swipeGesture, new CompletionCallback(cookie, traced), null)) {
             Log.e(TAG, "Failed to dispatch gesture.");
+            pendingGestures--;
+            EngineTrace.endAsync(TRACE_GESTURE, cookie, traced);
+        }
+    }
+
+    /**
+     * Get the number of dispatched gestures.
+     *
+     * @return The number of gestures since the service started.
+     */
+    public static int getDispatchedGestures() {
+        return gestureCount;
+    }
+
+    /**
+     * Get the number of gestures that were dispatched but are not completed yet.
+     *
+     * @return The number of queued gestures.
+     */
+    public static int getPendingGestures() {
+        return pendingGestures;
+    }
+
+    /**
+     * Counts the gesture as done and ends its async trace slice when it completed or was cancelled.
+     * Called on the main thread.
+     */
+    private static class CompletionCallback extends AccessibilityService.GestureResultCallback {
+        private final int cookie;
+        private final boolean traced;
+
+        CompletionCallback(int cookie, boolean traced) {
+            this.cookie = cookie;
+            this.traced = traced;
+        }
+
+        @Override
+        public void onCompleted(GestureDescription gestureDescription) {
+            pendingGestures--;
+            EngineTrace.endAsync(TRACE_GESTURE, cookie, traced);
+        }
+
+        @Override
+        public void onCancelled(GestureDescription gestureDescription) {
+            pendingGestures--;
+            EngineTrace.endAsync(TRACE_GESTURE, cookie, traced);
         }
     }
 
@@ -0,0 +1,341 @@
+package ch.bfh.adaid.db;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.ForeignKey;
+import androidx.room.Ignore;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Node of the additional condition of a rule. A rule only triggers if, besides its own view id and
+ * text, its condition is met too.
+ * <p>
+ * Conditions form a tree: AND, OR and NOT combine their children, VIEW is a leaf that checks if a
+ * view is visible (at least one node with the view id is found) or, if a view text is set, if the
+ * single found view contains a matching text. Every node is a row, children reference their parent
+ * and are ordered by position. Rows are removed together with their rule.
+ * <p>
+ * As text a condition is written like: "sponsored_label & !(ad_badge | close_button="Skip.*")".
+ * See {@link #parse(String)}.
+ * Has additional annotation for androidx.Room to turn this into a database table.
+ *
+ * @author Niklaus Leuenberger
+ */
+@Entity(tableName = "condition", indices = {@Index(value = "rule_id"), @Index(value = "parent_id")},
+        foreignKeys = {
+                @ForeignKey(entity = Rule.class, parentColumns = "id", childColumns = "rule_id",
+                        onDelete = ForeignKey.CASCADE),
+                @ForeignKey(entity = Condition.class, parentColumns = "id", childColumns = "parent_id",
+                        onDelete = ForeignKey.CASCADE)
+        })
+public class Condition {
+
+    /**
+     * Type of a condition node.
+     */
+    public enum Type {
+        AND,
+        OR,
+        NOT,
+        VIEW
+    }
+
+    /**
+     * Unique id of the condition node.
+     */
+    @PrimaryKey(autoGenerate = true)
+    public long id;
+
+    /**
+     * Id of the rule the condition belongs to.
+     */
+    @ColumnInfo(name = "rule_id")
+    public long ruleId;
+
+    /**
+     * Id of the parent node, null for the root of the condition.
+     */
+    @ColumnInfo(name = "parent_id")
+    public Long parentId;
+
+    /**
+     * Position of the node among the children of its parent.
+     */
+    @ColumnInfo(name = "position")
+    public int position;
+
+    /**
+     * Type of the node.
+     */
+    @ColumnInfo(name = "type")
+    public Type type;
+
+    /**
+     * View id of a VIEW node, without the common prefix like {@link Rule#viewId}.
+     */
+    @ColumnInfo(name = "view_id")
+    public String viewId;
+
+    /**
+     * Optional text that is searched inside the view of a VIEW node. Supports regex matching.
+     */
+    @ColumnInfo(name = "view_text")
+    public String viewText;
+
+    /**
+     * Child nodes in order. Not a column, rebuilt from the parent ids when loaded.
+     */
+    @Ignore
+    public final List<Condition> children = new ArrayList<>();
+
+    /**
+     * Default constructor.
+     */
+    public Condition() {
+    }
+
+    /**
+     * Constructor for a combining node.
+     *
+     * @param type The type of the node, one of AND, OR or NOT.
+     */
+    @Ignore
+    public Condition(Type type) {
+        this.type = type;
+    }
+
+    /**
+     * Constructor for a VIEW node.
+     *
+     * @param viewId   The view id to search for.
+     * @param viewText Optional text that is inside searched view.
+     */
+    @Ignore
+    public Condition(String viewId, String viewText) {
+        this.type = Type.VIEW;
+        this.viewId = viewId;
+        this.viewText = viewText;
+    }
+
+    /**
+     * Check if node has a non null and non empty view text.
+     *
+     * @return true if node has view text, false otherwise.
+     */
+    @Ignore
+    public boolean hasViewText() {
+        return viewText != null && !viewText.isEmpty();
+    }
+
+    /**
+     * Check if the condition has nothing to check, i.e. is always met.
+     *
+     * @return true if condition is empty, false otherwise.
+     */
+    @Ignore
+    public boolean isEmpty() {
+        return type != Type.VIEW && children.isEmpty();
+    }
+
+    /**
+     * Collect the node and all its descendants, parents before children.
+     *
+     * @param nodes The list to add the nodes to.
+     */
+    @Ignore
+    public void flatten(List<Condition> nodes) {
+        nodes.add(this);
+        for (Condition child : children) {
+            child.flatten(nodes);
+        }
+    }
+
+    /**
+     * Rebuild the condition trees from loaded rows.
+     *
+     * @param rows The rows ordered by position.
+     * @return The roots of the trees, one per rule.
+     */
+    @Ignore
+    public static List<Condition> buildTrees(List<Condition> rows) {
+        ArrayList<Condition> roots = new ArrayList<>();
+        HashMap<Long, Condition> byId = new HashMap<>();
+        for (Condition row : rows) {
+            byId.put(row.id, row);
+        }
+        for (Condition row : rows) {
+            Condition parent = (row.parentId == null) ? null : byId.get(row.parentId);
+            if (parent == null) {
+                roots.add(row);
+            } else {
+                parent.children.add(row);
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * Parse a condition from its text form. The grammar is:
+     * <pre>
+     * or   := and ("|" and)*
+     * and  := not ("&amp;" not)*
+     * not  := "!" not | "(" or ")" | view
+     * view := id ["=" "\"" regex "\""]
+     * </pre>
+     * Quotes inside the regex are escaped with a backslash. Blank text is an empty condition.
+     *
+     * @param text The text form of the condition.
+     * @return The root of the parsed condition.
+     * @throws IllegalArgumentException if the text is not a valid condition.
+     */
+    @Ignore
+    public static Condition parse(String text) throws IllegalArgumentException {
+        Parser parser = new Parser(text == null ? "" : text);
+        parser.skipSpaces();
+        if (parser.pos == parser.text.length()) {
+            return new Condition(Type.AND);
+        }
+        Condition condition = parser.parseOr();
+        parser.skipSpaces();
+        if (parser.pos != parser.text.length()) {
+            throw new IllegalArgumentException("Unexpected '" + parser.text.charAt(parser.pos)
+                    + "' at " + parser.pos);
+        }
+        return condition;
+    }
+
+    /**
+     * Get the text form of the condition, the inverse of {@link #parse(String)}.
+     *
+     * @return The text form, empty for an empty condition.
+     */
+    @Ignore
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        format(builder, false);
+        return builder.toString();
+    }
+
+    /**
+     * Append the text form of the node.
+     *
+     * @param builder The builder to append to.
+     * @param nested  If the node is an operand of another node and needs parentheses.
+     */
+    private void format(StringBuilder builder, boolean nested) {
+        if (type == Type.VIEW) {
+            builder.append(viewId);
+            if (hasViewText()) {
+                builder.append("=\"").append(viewText.replace("\"", "\\\"")).append('"');
+            }
+        } else if (type == Type.NOT) {
+            builder.append('!');
+            children.get(0).format(builder, true);
+        } else if (children.size() == 1) {
+            children.get(0).format(builder, nested);
+        } else if (!children.isEmpty()) {
+            if (nested) builder.append('(');
+            for (int i = 0; i < children.size(); i++) {
+                if (i > 0) builder.append(type == Type.AND ? " & " : " | ");
+                children.get(i).format(builder, true);
+            }
+            if (nested) builder.append(')');
+        }
+    }
+
+    /**
+     * Recursive descent parser of the text form.
+     */
+    private static class Parser {
+        final String text;
+        int pos;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        void skipSpaces() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+        }
+
+        boolean accept(char c) {
+            skipSpaces();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        Condition parseOr() {
+            Condition first = parseAnd();
+            if (!accept('|')) return first;
+            Condition or = new Condition(Type.OR);
+            or.children.add(first);
+            do {
+                or.children.add(parseAnd());
+            } while (accept('|'));
+            return or;
+        }
+
+        Condition parseAnd() {
+            Condition first = parseNot();
+            if (!accept('&')) return first;
+            Condition and = new Condition(Type.AND);
+            and.children.add(first);
+            do {
+                and.children.add(parseNot());
+            } while (accept('&'));
+            return and;
+        }
+
+        Condition parseNot() {
+            if (accept('!')) {
+                Condition not = new Condition(Type.NOT);
+                not.children.add(parseNot());
+                return not;
+            }
+            if (accept('(')) {
+                Condition inner = parseOr();
+                if (!accept(')')) throw new IllegalArgumentException("Missing ')' at " + pos);
+                return inner;
+            }
+            return parseView();
+        }
+
+        Condition parseView() {
+            skipSpaces();
+            int start = pos;
+            while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos))
+                    || "_.:/".indexOf(text.charAt(pos)) >= 0)) {
+                pos++;
+            }
+            if (pos == start) {
+                throw new IllegalArgumentException("Expected a view id at " + pos);
+            }
+            String viewId = text.substring(start, pos);
+            if (!accept('=')) {
+                return new Condition(viewId, null);
+            }
+            if (!accept('"')) throw new IllegalArgumentException("Expected '\"' at " + pos);
+            StringBuilder viewText = new StringBuilder();
+            while (pos < text.length() && text.charAt(pos) != '"') {
+                char c = text.charAt(pos++);
+                if (c == '\\' && pos < text.length() && text.charAt(pos) == '"') {
+                    c = text.charAt(pos++);
+                }
+                viewText.append(c);
+            }
+            if (pos++ == text.length()) {
+                throw new IllegalArgumentException("Missing closing '\"'");
+            }
+            return new Condition(viewId, viewText.toString());
+        }
+    }
+}
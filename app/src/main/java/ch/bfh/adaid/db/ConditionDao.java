@@ -0,0 +1,58 @@
+package ch.bfh.adaid.db;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.Query;
+import androidx.room.Transaction;
+
+import java.util.List;
+
+/**
+ * Data access object for the conditions of rules.
+ *
+ * @author Niklaus Leuenberger
+ */
+@Dao
+public interface ConditionDao {
+    @Query("SELECT * FROM condition WHERE rule_id IN (:ruleIds) ORDER BY rule_id, position")
+    List<Condition> getByRuleIds(List<Long> ruleIds);
+
+    @Insert
+    long insert(Condition condition);
+
+    @Query("DELETE FROM condition WHERE rule_id = (:ruleId)")
+    void deleteOfRule(long ruleId);
+
+    /**
+     * Replace the condition of a rule. An empty condition is not stored at all.
+     *
+     * @param ruleId    The id of the rule.
+     * @param condition The root of the new condition.
+     */
+    @Transaction
+    default void setConditionOfRule(long ruleId, Condition condition) {
+        deleteOfRule(ruleId);
+        if (!condition.isEmpty()) {
+            insertTree(ruleId, null, 0, condition);
+        }
+    }
+
+    /**
+     * Insert a node and recursively all its children.
+     *
+     * @param ruleId   The id of the rule.
+     * @param parentId The id of the already inserted parent, null for the root.
+     * @param position The position of the node among its siblings.
+     * @param node     The node to insert.
+     */
+    default void insertTree(long ruleId, Long parentId, int position, Condition node) {
+        node.id = 0; // always inserted as new row
+        node.ruleId = ruleId;
+        node.parentId = parentId;
+        node.position = position;
+        node.id = insert(node);
+        for (int i = 0; i < node.children.size(); i++) {
+            insertTree(ruleId, node.id, i, node.children.get(i));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package ch.bfh.adaid.db;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Ignore;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * Named set of rules, e.g. "focus" or "evening". Only one profile is active at a time, then only
+ * the enabled rules of that profile are executed. Rules are linked to profiles with
+ * {@link ProfileRule}, a rule can be part of many profiles. A profile exists independently of its
+ * rules, if it has none no rules are executed while it is active.
+ * Has additional annotation for androidx.Room to turn this into a database table.
+ *
+ * @author Niklaus Leuenberger
+ */
+@Entity(tableName = "profile", indices = {@Index(value = "name", unique = true)})
+public class Profile {
+
+    /**
+     * Profile id that stands for no profile, i.e. all enabled rules are executed.
+     */
+    public static final long ALL_RULES = 0;
+
+    /**
+     * Unique id of the profile.
+     */
+    @PrimaryKey(autoGenerate = true)
+    public long id;
+
+    /**
+     * Displayed and unique name of the profile.
+     */
+    @ColumnInfo(name = "name")
+    public String name;
+
+    /**
+     * Default constructor.
+     */
+    public Profile() {
+    }
+
+    /**
+     * Simple constructor.
+     *
+     * @param name The name of the profile.
+     */
+    @Ignore
+    public Profile(String name) {
+        this.name = name;
+    }
+}
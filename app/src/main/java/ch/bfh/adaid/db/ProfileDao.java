@@ -0,0 +1,58 @@
+package ch.bfh.adaid.db;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+import androidx.room.Transaction;
+
+import java.util.List;
+
+/**
+ * Data access object for the profiles and their links to rules.
+ *
+ * @author Niklaus Leuenberger
+ */
+@Dao
+public interface ProfileDao {
+    @Query("SELECT * FROM profile ORDER BY name")
+    List<Profile> getAll();
+
+    @Query("SELECT * FROM profile WHERE name = (:name) LIMIT 1")
+    Profile findByName(String name);
+
+    @Query("SELECT * FROM profile_rule")
+    List<ProfileRule> getAllLinks();
+
+    @Query("SELECT profile.name FROM profile INNER JOIN profile_rule ON profile.id = profile_rule.profile_id "
+            + "WHERE profile_rule.rule_id = (:ruleId) ORDER BY profile.name")
+    List<String> getNamesOfRule(long ruleId);
+
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    long insert(Profile profile);
+
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    void insertLink(ProfileRule link);
+
+    @Query("DELETE FROM profile_rule WHERE rule_id = (:ruleId)")
+    void deleteLinksOfRule(long ruleId);
+
+    /**
+     * Replace the profiles of a rule. Profiles are created by name if they don't exist yet. They
+     * are kept when no rule is part of them anymore, an empty profile runs no rules.
+     *
+     * @param ruleId The id of the rule.
+     * @param names  The names of the profiles the rule is part of.
+     */
+    @Transaction
+    default void setProfilesOfRule(long ruleId, List<String> names) {
+        deleteLinksOfRule(ruleId);
+        for (String name : names) {
+            long profileId = insert(new Profile(name));
+            if (profileId == -1) {
+                profileId = findByName(name).id; // already exists
+            }
+            insertLink(new ProfileRule(profileId, ruleId));
+        }
+    }
+}
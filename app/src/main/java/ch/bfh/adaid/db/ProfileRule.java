@@ -0,0 +1,55 @@
+package ch.bfh.adaid.db;
+
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.ForeignKey;
+import androidx.room.Ignore;
+import androidx.room.Index;
+
+/**
+ * Link between a profile and a rule that is part of it. Links are removed together with their
+ * profile or rule.
+ * Has additional annotation for androidx.Room to turn this into a database table.
+ *
+ * @author Niklaus Leuenberger
+ */
+@Entity(tableName = "profile_rule", primaryKeys = {"profile_id", "rule_id"},
+        indices = {@Index(value = "rule_id")},
+        foreignKeys = {
+                @ForeignKey(entity = Profile.class, parentColumns = "id", childColumns = "profile_id",
+                        onDelete = ForeignKey.CASCADE),
+                @ForeignKey(entity = Rule.class, parentColumns = "id", childColumns = "rule_id",
+                        onDelete = ForeignKey.CASCADE)
+        })
+public class ProfileRule {
+
+    /**
+     * Id of the profile.
+     */
+    @ColumnInfo(name = "profile_id")
+    public long profileId;
+
+    /**
+     * Id of the rule that is part of the profile.
+     */
+    @ColumnInfo(name = "rule_id")
+    public long ruleId;
+
+    /**
+     * Default constructor.
+     */
+    public ProfileRule() {
+    }
+
+    /**
+     * Complete constructor.
+     *
+     * @param profileId Id of the profile.
+     * @param ruleId    Id of the rule.
+     */
+    @Ignore
+    public ProfileRule(long profileId, long ruleId) {
+        this.profileId = profileId;
+        this.ruleId = ruleId;
+    }
+}
@@ -1,10 +1,17 @@
 package ch.bfh.adaid.db;
 
+import android.view.accessibility.AccessibilityEvent;
+
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
 import androidx.room.Ignore;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
+import java.util.Calendar;
+import java.util.List;
+import java.util.regex.Pattern;
+
 import ch.bfh.adaid.action.ActionType;
 
 /**
@@ -14,9 +21,21 @@ import ch.bfh.adaid.action.ActionType;
  *
  * @author Niklaus Leuenberger
  */
-@Entity(tableName = "rule")
+@Entity(tableName = "rule", indices = {@Index(value = "app_id")})
 public class Rule {
 
+    /**
+     * Event types a rule is evaluated for if nothing else is configured: content and state changes
+     * of the window.
+     */
+    public static final int DEFAULT_EVENT_TYPES = AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
+            | AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED;
+
+    /**
+     * Mask of {@link #scheduleDays} with all days of the week set.
+     */
+    public static final int ALL_DAYS = 0x7f;
+
     /**
      * Unique id of the rule.
      */
@@ -37,6 +56,10 @@ public class Rule {
 
     /**
      * The app package name on which the rule applies.
+     * <p>
+     * Can also be a pattern to apply the rule to multiple apps:
+     * - "*" matches any number of characters, e.g. "com.google.android.*"
+     * - "/regex/" matches the whole package name against the regex, e.g. "/org\.mozilla\..*|com\.android\.chrome/"
      */
     @ColumnInfo(name = "app_id")
     public String appId;
@@ -65,16 +88,83 @@ public class Rule {
     /**
      * Optional relative path to the view upon which should be acted.
      * <p>
-     * Encoding is as follows:
-     * - "p", move one parent up
-     * - "c[n]", move to nth child (0 indexed)
-     * - "su", move up a sibling
-     * - "sd", move down a sibling
-     * These can be chained if written separated by a dot like: "p.p.su.c[2]".
+     * A chain of steps separated by dots, e.g. "parent(list_item).find(close_button)":
+     * - "parent", move one parent up, "parent(id)" to the closest ancestor with the view id
+     * - "child(n)", move to nth child (0 indexed)
+     * - "prev" / "next", move to the sibling before / after
+     * - "find(id)" / "find(id, n)", move to the first / nth descendant with the view id
+     * - text("regex"), move to the first descendant with a matching text
+     * See ch.bfh.adaid.service.Selector, which compiles the path once per rule.
      */
     @ColumnInfo(name = "relative_path")
     public String relativePath;
 
+    /**
+     * Mask of the accessibility event types (AccessibilityEvent.TYPE_*) the rule is evaluated for.
+     * <p>
+     * Note: Window state changes are always added, see {@link #getSubscribedEventTypes()}.
+     */
+    @ColumnInfo(name = "event_types", defaultValue = "2080")
+    public int eventTypes = DEFAULT_EVENT_TYPES;
+
+    /**
+     * Optional screen of the app the rule is limited to.
+     * <p>
+     * Can be one of:
+     * - the class name of the activity, e.g. "com.instagram.android.activity.MainTabActivity"
+     * - the class name relative to the app id, e.g. ".activity.MainTabActivity". For rules with
+     *   an app id pattern it is relative to the app the rule is applied to.
+     * - the title of the window, e.g. "Reels"
+     * Leave empty to apply the rule on all screens of the app.
+     */
+    @ColumnInfo(name = "activity_scope")
+    public String activityScope;
+
+    /**
+     * Optional daily time window in which the rule is active, in minutes after midnight.
+     * <p>
+     * The window starts at scheduleStart (inclusive) and ends at scheduleEnd (exclusive). If the
+     * end is before the start, the window spans midnight, e.g. 22:00 - 06:00. If both are equal,
+     * the rule is active the whole day.
+     */
+    @ColumnInfo(name = "schedule_start", defaultValue = "0")
+    public int scheduleStart;
+
+    @ColumnInfo(name = "schedule_end", defaultValue = "0")
+    public int scheduleEnd;
+
+    /**
+     * Days of the week on which the rule is active. Bit n is set for Calendar.DAY_OF_WEEK n + 1,
+     * i.e. bit 0 is Sunday. A window spanning midnight belongs to the day it starts on.
+     */
+    @ColumnInfo(name = "schedule_days", defaultValue = "127")
+    public int scheduleDays = ALL_DAYS;
+
+    /**
+     * Low priority rules are skipped while the rule engine runs with reduced quality, e.g. in
+     * battery saver mode.
+     */
+    @ColumnInfo(name = "low_priority", defaultValue = "0")
+    public boolean lowPriority;
+
+    /**
+     * Names of the profiles the rule is part of, see {@link Profile}.
+     * <p>
+     * Note: Not a column of the rule table. Only loaded on demand with
+     * {@link RuleDataSource#loadProfileNames(long, java.util.function.Consumer)}. If not null, the
+     * profiles are saved together with the rule.
+     */
+    @Ignore
+    public List<String> profiles;
+
+    /**
+     * Additional condition that has to be met for the rule to trigger. Stored in its own table,
+     * see {@link Condition}. Null if not loaded, then the stored condition is kept when the rule is
+     * saved. An empty condition is always met.
+     */
+    @Ignore
+    public Condition condition;
+
     /**
      * Default constructor.
      */
@@ -123,13 +213,68 @@ public class Rule {
     }
 
     /**
-     * Checks if the appId of the rule matched the given appId.
+     * Get the event types the rule has to be evaluated for. Window state changes are always
+     * included, otherwise the rule wouldn't notice when its view is gone after the screen changed.
+     *
+     * @return Mask of AccessibilityEvent.TYPE_* values.
+     */
+    @Ignore
+    public int getSubscribedEventTypes() {
+        return eventTypes | AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED;
+    }
+
+    /**
+     * Check if the appId of the rule is a pattern (wildcard or regex) instead of a package name.
+     *
+     * @return true if appId is a pattern, false otherwise.
+     */
+    @Ignore
+    public boolean hasAppIdPattern() {
+        return appId != null && (appId.indexOf('*') >= 0 || isAppIdRegex());
+    }
+
+    /**
+     * Check if the appId of the rule is a regex, i.e. enclosed in slashes.
+     *
+     * @return true if appId is a regex, false otherwise.
+     */
+    @Ignore
+    public boolean isAppIdRegex() {
+        return appId != null && appId.length() >= 2 && appId.startsWith("/") && appId.endsWith("/");
+    }
+
+    /**
+     * Get the appId pattern as regex. Wildcards are converted, regexes are unwrapped and package
+     * names are quoted.
+     *
+     * @return Regex that matches all package names the rule applies to.
+     */
+    @Ignore
+    public String getAppIdRegex() {
+        if (isAppIdRegex()) {
+            return appId.substring(1, appId.length() - 1);
+        }
+        StringBuilder regex = new StringBuilder();
+        String[] parts = appId.split("\\*", -1);
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) regex.append(".*");
+            if (!parts[i].isEmpty()) regex.append(Pattern.quote(parts[i]));
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Checks if the appId of the rule matched the given appId. Supports patterns, see
+     * {@link #appId}.
      *
      * @param appId The appId to check.
      * @return True if the appId matches, false otherwise.
      */
     @Ignore
     public boolean isMatchingAppId(String appId) {
+        if (hasAppIdPattern()) {
+            return appId.matches(getAppIdRegex());
+        }
         return this.appId.equals(appId);
     }
 
@@ -140,7 +285,19 @@ public class Rule {
      */
     @Ignore
     public String getCompleteViewId() {
-        return appId + ":id/" + viewId;
+        return getCompleteViewId(appId);
+    }
+
+    /**
+     * Get the complete view id in the given app. Needed for rules with an appId pattern, as the
+     * view id then depends on the app the rule is applied to.
+     *
+     * @param packageName The package name of the app.
+     * @return packageName + ":id/" + viewId
+     */
+    @Ignore
+    public String getCompleteViewId(String packageName) {
+        return packageName + ":id/" + viewId;
     }
 
     /**
@@ -153,6 +310,40 @@ public class Rule {
         return viewText != null && !viewText.isEmpty();
     }
 
+    /**
+     * Check if rule has a non null and non empty activity scope.
+     *
+     * @return true if rule is limited to a screen, false otherwise.
+     */
+    @Ignore
+    public boolean hasActivityScope() {
+        return activityScope != null && !activityScope.isEmpty();
+    }
+
+    /**
+     * Checks if the activity scope of the rule matches the given screen. If a rule has no activity
+     * scope, the screen is by definition always matched.
+     *
+     * @param packageName  The package name of the app the rule is applied to. A relative scope is
+     *                     resolved against it, as the app id of the rule may be a pattern.
+     * @param activityName Class name of the foreground activity, null if unknown.
+     * @param windowTitle  Title of the foreground window, null if unknown.
+     * @return True if the rule applies to the screen, false otherwise.
+     */
+    @Ignore
+    public boolean isMatchingActivityScope(String packageName, String activityName,
+                                           String windowTitle) {
+        if (!hasActivityScope()) {
+            return true;
+        }
+        if (activityScope.startsWith(".")) {
+            return activityName != null
+                    && activityName.length() == packageName.length() + activityScope.length()
+                    && activityName.startsWith(packageName) && activityName.endsWith(activityScope);
+        }
+        return activityScope.equals(activityName) || activityScope.equals(windowTitle);
+    }
+
     /**
      * Checks if the viewText of the rule matches the given text.
      * <p>
@@ -171,4 +362,69 @@ public class Rule {
             return true;
         }
     }
+
+    /**
+     * Check if the rule is limited to a time window or to certain days.
+     *
+     * @return true if rule has a schedule, false if it is always active.
+     */
+    @Ignore
+    public boolean hasSchedule() {
+        return scheduleStart != scheduleEnd || scheduleDays != ALL_DAYS;
+    }
+
+    /**
+     * Checks if the schedule of the rule is active at the given time. If a rule has no schedule,
+     * it is by definition always active.
+     *
+     * @param time The local time to check.
+     * @return True if the rule is active, false otherwise.
+     */
+    @Ignore
+    public boolean isScheduledAt(Calendar time) {
+        int minute = time.get(Calendar.HOUR_OF_DAY) * 60 + time.get(Calendar.MINUTE);
+        int day = time.get(Calendar.DAY_OF_WEEK) - 1;
+        boolean today = (scheduleDays & (1 << day)) != 0;
+        if (scheduleStart == scheduleEnd) {
+            return today;
+        } else if (scheduleStart < scheduleEnd) {
+            return today && minute >= scheduleStart && minute < scheduleEnd;
+        }
+        // Window spans midnight: either the start of today's or the end of yesterday's window.
+        boolean yesterday = (scheduleDays & (1 << ((day + 6) % 7))) != 0;
+        return (today && minute >= scheduleStart) || (yesterday && minute < scheduleEnd);
+    }
+
+    /**
+     * Get the next instant at which the rule becomes active or inactive.
+     *
+     * @param now The current local time.
+     * @return The instant in milliseconds since the epoch, Long.MAX_VALUE if the rule never changes
+     * its state.
+     */
+    @Ignore
+    public long getNextScheduleTransition(Calendar now) {
+        if (!hasSchedule() || scheduleDays == 0) {
+            return Long.MAX_VALUE;
+        }
+        // The state can only change at the start or end of a window or at midnight. Check those
+        // candidates in order for the next week.
+        boolean active = isScheduledAt(now);
+        int[] minutes = {0, Math.min(scheduleStart, scheduleEnd), Math.max(scheduleStart, scheduleEnd)};
+        Calendar candidate = (Calendar) now.clone();
+        for (int day = 0; day <= 7; day++) {
+            for (int minute : minutes) {
+                candidate.setTimeInMillis(now.getTimeInMillis());
+                candidate.add(Calendar.DAY_OF_YEAR, day);
+                candidate.set(Calendar.HOUR_OF_DAY, minute / 60);
+                candidate.set(Calendar.MINUTE, minute % 60);
+                candidate.set(Calendar.SECOND, 0);
+                candidate.set(Calendar.MILLISECOND, 0);
+                if (candidate.after(now) && isScheduledAt(candidate) != active) {
+                    return candidate.getTimeInMillis();
+                }
+            }
+        }
+        return Long.MAX_VALUE;
+    }
 }
@@ -20,6 +20,13 @@ public interface RuleDao {
     @Query("SELECT * FROM rule WHERE name LIKE (:name) LIMIT 1")
     Rule findByName(String name);
 
+    @Query("SELECT * FROM rule WHERE enabled = 1 AND app_id IN (:appIds) ORDER BY id")
+    List<Rule> getEnabledByAppIds(List<String> appIds);
+
+    @Query("SELECT id, app_id, event_types, schedule_start, schedule_end, schedule_days FROM rule "
+            + "WHERE enabled = 1 ORDER BY id")
+    List<RuleSummary> getEnabledSummaries();
+
     @Insert(onConflict = OnConflictStrategy.IGNORE)
     long insert(Rule rule);
 
@@ -3,9 +3,15 @@ package ch.bfh.adaid.db;
 import android.content.Context;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 /**
  * Data source for the rules. Observers can register to be notified when rules are added, removed or
@@ -16,6 +22,8 @@ import java.util.concurrent.Executors;
 public class RuleDataSource {
 
     private final RuleDao ruleDao; // rule database access object
+    private final ProfileDao profileDao; // profile database access object
+    private final ConditionDao conditionDao; // condition database access object
     private static final ArrayList<RuleObserver> observers = new ArrayList<>();
 
     /**
@@ -43,6 +51,8 @@ public class RuleDataSource {
     public RuleDataSource(Context context) {
         RuleDatabase db = RuleDatabase.getDatabase(context);
         ruleDao = db.ruleDao();
+        profileDao = db.profileDao();
+        conditionDao = db.conditionDao();
     }
 
     /**
@@ -51,7 +61,21 @@ public class RuleDataSource {
      * @param ruleDao The rule database access object.
      */
     public RuleDataSource(RuleDao ruleDao) {
+        this(ruleDao, null, null);
+    }
+
+    /**
+     * Data source for the rule database. Special constructor that allows to inject a rule, a
+     * profile and a condition database.
+     *
+     * @param ruleDao      The rule database access object.
+     * @param profileDao   The profile database access object, null if profiles aren't used.
+     * @param conditionDao The condition database access object, null if conditions aren't used.
+     */
+    public RuleDataSource(RuleDao ruleDao, ProfileDao profileDao, ConditionDao conditionDao) {
         this.ruleDao = ruleDao;
+        this.profileDao = profileDao;
+        this.conditionDao = conditionDao;
     }
 
     /**
@@ -77,6 +101,136 @@ public class RuleDataSource {
         observers.remove(observer);
     }
 
+    /**
+     * Load the enabled rules of the given app ids. Observers are not notified, this is meant for
+     * loading rules lazily.
+     *
+     * @param appIds   The app ids (package names or patterns) to load the rules of.
+     * @param callback Called with the rules in id order, their conditions are loaded too. Runs in
+     *                 the context of the database thread.
+     */
+    public void loadEnabledRules(List<String> appIds, Consumer<List<Rule>> callback) {
+        executor.execute(() -> {
+            List<Rule> rules = ruleDao.getEnabledByAppIds(appIds);
+            attachConditions(rules);
+            callback.accept(rules);
+        });
+    }
+
+    /**
+     * Load the condition of a rule. Observers are not notified.
+     *
+     * @param ruleId   The id of the rule.
+     * @param callback Called with the condition, empty if the rule has none. Runs in the context
+     *                 of the database thread.
+     */
+    public void loadCondition(long ruleId, Consumer<Condition> callback) {
+        executor.execute(() -> {
+            Rule rule = new Rule();
+            rule.id = ruleId;
+            attachConditions(Collections.singletonList(rule));
+            callback.accept(rule.condition);
+        });
+    }
+
+    /**
+     * Load the conditions of the rules with a single query. Must be called from the database
+     * thread.
+     *
+     * @param rules The rules to set {@link Rule#condition} of.
+     */
+    private void attachConditions(List<Rule> rules) {
+        if (conditionDao == null || rules.isEmpty()) {
+            return;
+        }
+        ArrayList<Long> ruleIds = new ArrayList<>(rules.size());
+        for (Rule rule : rules) {
+            ruleIds.add(rule.id);
+        }
+        HashMap<Long, Condition> roots = new HashMap<>();
+        for (Condition root : Condition.buildTrees(conditionDao.getByRuleIds(ruleIds))) {
+            roots.put(root.ruleId, root);
+        }
+        for (Rule rule : rules) {
+            Condition root = roots.get(rule.id);
+            rule.condition = (root != null) ? root : new Condition(Condition.Type.AND);
+        }
+    }
+
+    /**
+     * Load a summary of the enabled rules, i.e. what app ids have rules and what event types those
+     * subscribed to. Observers are not notified.
+     *
+     * @param callback Called with the summaries. Runs in the context of the database thread.
+     */
+    public void loadEnabledSummaries(Consumer<List<RuleSummary>> callback) {
+        executor.execute(() -> callback.accept(ruleDao.getEnabledSummaries()));
+    }
+
+    /**
+     * Load all profiles ordered by name. Observers are not notified.
+     *
+     * @param callback Called with the profiles. Runs in the context of the database thread.
+     */
+    public void loadProfiles(Consumer<List<Profile>> callback) {
+        executor.execute(() -> callback.accept(profileDao.getAll()));
+    }
+
+    /**
+     * Load the ids of the rules per profile. Profiles without rules are included with an empty
+     * set. Observers are not notified.
+     *
+     * @param callback Called with the rule ids per profile id. Runs in the context of the database
+     *                 thread.
+     */
+    public void loadProfileRuleIds(Consumer<Map<Long, Set<Long>>> callback) {
+        executor.execute(() -> {
+            HashMap<Long, Set<Long>> ruleIds = new HashMap<>();
+            for (Profile profile : profileDao.getAll()) {
+                ruleIds.put(profile.id, new HashSet<>());
+            }
+            for (ProfileRule link : profileDao.getAllLinks()) {
+                ruleIds.computeIfAbsent(link.profileId, k -> new HashSet<>()).add(link.ruleId);
+            }
+            callback.accept(ruleIds);
+        });
+    }
+
+    /**
+     * Load the names of the profiles a rule is part of. Observers are not notified.
+     *
+     * @param ruleId   The id of the rule.
+     * @param callback Called with the names ordered by name. Runs in the context of the database
+     *                 thread.
+     */
+    public void loadProfileNames(long ruleId, Consumer<List<String>> callback) {
+        executor.execute(() -> callback.accept(profileDao.getNamesOfRule(ruleId)));
+    }
+
+    /**
+     * Save the profiles of the rule if they were set, see {@link Rule#profiles}. Must be called
+     * from the database thread before the observers are notified of the rule.
+     *
+     * @param rule The added or changed rule.
+     */
+    private void saveProfiles(Rule rule) {
+        if (rule.profiles != null && profileDao != null) {
+            profileDao.setProfilesOfRule(rule.id, rule.profiles);
+        }
+    }
+
+    /**
+     * Save the condition of the rule if it was set, see {@link Rule#condition}. Must be called from
+     * the database thread before the observers are notified of the rule.
+     *
+     * @param rule The added or changed rule.
+     */
+    private void saveCondition(Rule rule) {
+        if (rule.condition != null && conditionDao != null) {
+            conditionDao.setConditionOfRule(rule.id, rule.condition);
+        }
+    }
+
     /**
      * Add rule to the database. On success all observers (also the one that added the rule) are
      * notified.
@@ -93,6 +247,8 @@ public class RuleDataSource {
                 observer.onRuleError(Error.ADD_RULE_FAILED, rule);
             } else {
                 rule.id = id;
+                saveProfiles(rule);
+                saveCondition(rule);
                 for (RuleObserver o : observers) {
                     o.onRuleAdded(rule);
                 }
@@ -115,6 +271,8 @@ public class RuleDataSource {
             if (rows == 0) {
                 observer.onRuleError(Error.UPDATE_RULE_FAILED, rule);
             } else {
+                saveProfiles(rule);
+                saveCondition(rule);
                 for (RuleObserver o : observers) {
                     o.onRuleChanged(rule);
                 }
@@ -1,11 +1,15 @@
 package ch.bfh.adaid.db;
 
 import android.content.Context;
+import android.database.Cursor;
 
+import androidx.annotation.NonNull;
 import androidx.room.AutoMigration;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.AutoMigrationSpec;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 /**
  * Room database. Class is a singleton as each database instance has a heavy
@@ -16,8 +20,16 @@ import androidx.room.RoomDatabase;
  *
  * @author Niklaus Leuenberger
  */
-@Database(entities = {Rule.class}, version = 2, autoMigrations = {
-        @AutoMigration(from = 1, to = 2)
+@Database(entities = {Rule.class, Profile.class, ProfileRule.class, Condition.class}, version = 10, autoMigrations = {
+        @AutoMigration(from = 1, to = 2),
+        @AutoMigration(from = 2, to = 3),
+        @AutoMigration(from = 3, to = 4),
+        @AutoMigration(from = 4, to = 5),
+        @AutoMigration(from = 5, to = 6),
+        @AutoMigration(from = 6, to = 7),
+        @AutoMigration(from = 7, to = 8),
+        @AutoMigration(from = 8, to = 9, spec = RuleDatabase.RelativePathMigration.class),
+        @AutoMigration(from = 9, to = 10)
 })
 public abstract class RuleDatabase extends RoomDatabase {
 
@@ -29,6 +41,62 @@ public abstract class RuleDatabase extends RoomDatabase {
      */
     public abstract RuleDao ruleDao();
 
+    /**
+     * ProfileDao getter. Is abstract but gets automatically implemented by
+     * androidx.room.
+     *
+     * @return Profile database access object.
+     */
+    public abstract ProfileDao profileDao();
+
+    /**
+     * ConditionDao getter. Is abstract but gets automatically implemented by
+     * androidx.room.
+     *
+     * @return Condition database access object.
+     */
+    public abstract ConditionDao conditionDao();
+
+    /**
+     * Migration of the relative paths to the selector syntax, see {@link Rule#relativePath}. The
+     * schema doesn't change, only the stored paths are rewritten.
+     */
+    public static class RelativePathMigration implements AutoMigrationSpec {
+        @Override
+        public void onPostMigrate(@NonNull SupportSQLiteDatabase db) {
+            try (Cursor cursor = db.query("SELECT id, relative_path FROM rule WHERE relative_path <> ''")) {
+                while (cursor.moveToNext()) {
+                    db.execSQL("UPDATE rule SET relative_path = ? WHERE id = ?",
+                            new Object[]{translate(cursor.getString(1)), cursor.getLong(0)});
+                }
+            }
+        }
+
+        /**
+         * Translate a relative path like "p.p.su.c[2]" to "parent.parent.prev.child(2)". Unknown
+         * steps are kept, they were invalid before and stay invalid.
+         *
+         * @param relativePath The relative path in the former syntax.
+         * @return The relative path in the selector syntax.
+         */
+        public static String translate(String relativePath) {
+            String[] steps = relativePath.split("\\.");
+            for (int i = 0; i < steps.length; i++) {
+                String step = steps[i].trim();
+                if (step.equals("p")) {
+                    steps[i] = "parent";
+                } else if (step.equals("su")) {
+                    steps[i] = "prev";
+                } else if (step.equals("sd")) {
+                    steps[i] = "next";
+                } else if (step.startsWith("c[") && step.endsWith("]")) {
+                    steps[i] = "child(" + step.substring(2, step.length() - 1) + ")";
+                }
+            }
+            return String.join(".", steps);
+        }
+    }
+
     private static volatile RuleDatabase INSTANCE; // singleton instance
 
     /**
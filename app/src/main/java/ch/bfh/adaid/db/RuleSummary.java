@@ -0,0 +1,43 @@
+package ch.bfh.adaid.db;
+
+import androidx.room.ColumnInfo;
+
+/**
+ * Summary of an enabled rule as returned by {@link RuleDao#getEnabledSummaries()}: its id, app id,
+ * the mask of event types it subscribed to and its schedule. Lets the a11y service know what apps
+ * and events to listen to and when, without loading the rules themselves.
+ *
+ * @author Niklaus Leuenberger
+ */
+public class RuleSummary {
+
+    /**
+     * The id of the rule, to look up what profiles it is part of.
+     */
+    @ColumnInfo(name = "id")
+    public long id;
+
+    /**
+     * The app id (package name or pattern) of the rules.
+     */
+    @ColumnInfo(name = "app_id")
+    public String appId;
+
+    /**
+     * The event types of the rules.
+     */
+    @ColumnInfo(name = "event_types")
+    public int eventTypes;
+
+    /**
+     * The schedule of the rules, see {@link Rule#scheduleStart} and {@link Rule#scheduleDays}.
+     */
+    @ColumnInfo(name = "schedule_start")
+    public int scheduleStart;
+
+    @ColumnInfo(name = "schedule_end")
+    public int scheduleEnd;
+
+    @ColumnInfo(name = "schedule_days")
+    public int scheduleDays;
+}
@@ -0,0 +1,188 @@
+package ch.bfh.adaid.gui.diagnostics;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.format.DateFormat;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.annotation.NonNull;
+import androidx.appcompat.app.AppCompatActivity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+import ch.bfh.adaid.R;
+import ch.bfh.adaid.action.ActionType;
+import ch.bfh.adaid.service.A11yService;
+import ch.bfh.adaid.service.EngineMetrics;
+import ch.bfh.adaid.service.EventWatchdog;
+
+/**
+ * Activity that shows diagnostics of the accessibility service: the quality the rule engine runs
+ * at, the metrics of the engine and the events that held the main thread for too long. The values
+ * are refreshed while the activity is shown, the metrics can be exported as CSV.
+ *
+ * @author Niklaus Leuenberger
+ */
+public class DiagnosticsActivity extends AppCompatActivity {
+
+    /**
+     * Interval at which the shown values are refreshed, in ms.
+     */
+    private static final long REFRESH_INTERVAL = 1000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable refresher = this::refresh;
+    private ActivityResultLauncher<String> exportCsvLauncher;
+
+    /**
+     * Get an intent to start this activity.
+     *
+     * @param context The activity that called this activity.
+     * @return created intent, use with startActivity(intent).
+     */
+    public static Intent getStartActivityIntent(Context context) {
+        return new Intent(context, DiagnosticsActivity.class);
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+        exportCsvLauncher = registerForActivityResult(
+                new ActivityResultContracts.CreateDocument("text/csv"), this::exportCsv);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refresher);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(@NonNull Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_diagnostics, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(@NonNull MenuItem item) {
+        if (item.getItemId() == R.id.action_export_csv) {
+            exportCsvLauncher.launch("adaid-metrics.csv");
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Show the current values and schedule the next refresh.
+     */
+    private void refresh() {
+        TextView text = findViewById(R.id.textDiagnostics);
+        text.setText(buildDiagnostics());
+        handler.postDelayed(refresher, REFRESH_INTERVAL);
+    }
+
+    /**
+     * Write the metrics as CSV to the document the user created.
+     *
+     * @param uri The document or null if the user canceled.
+     */
+    private void exportCsv(Uri uri) {
+        if (uri == null) {
+            return;
+        }
+        try (OutputStream out = getContentResolver().openOutputStream(uri)) {
+            if (out == null) {
+                throw new IOException("no output stream for " + uri);
+            }
+            out.write(EngineMetrics.toCsv().getBytes(StandardCharsets.UTF_8));
+            Toast.makeText(this, R.string.diagnostics_export_done, Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Toast.makeText(this, R.string.diagnostics_export_error, Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /**
+     * Build the text of the diagnostics.
+     *
+     * @return The diagnostics.
+     */
+    private String buildDiagnostics() {
+        StringBuilder text = new StringBuilder();
+        text.append(getString(R.string.diagnostics_engine_quality,
+                A11yService.getEngineQuality(this).name())).append("\n\n");
+        appendMetrics(text);
+        text.append(getString(R.string.diagnostics_slow_events, EventWatchdog.BUDGET_MILLIS))
+                .append('\n');
+        List<EventWatchdog.SlowEvent> events = EventWatchdog.getSlowEvents();
+        if (events.isEmpty()) {
+            text.append(getString(R.string.diagnostics_no_slow_events)).append('\n');
+        }
+        for (EventWatchdog.SlowEvent event : events) {
+            text.append('\n')
+                    .append(DateFormat.format("HH:mm:ss", event.time)).append(' ')
+                    .append(event.durationMillis).append(" ms ")
+                    .append(event.packageName).append('\n')
+                    .append(event.getEventTypeName()).append('\n')
+                    .append(event.rulesEvaluated).append(" rules evaluated: ").append(event.rules).append('\n')
+                    .append(event.nodesVisited).append(" nodes visited\n");
+            if (event.stackSample != null) {
+                text.append(event.stackSample);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Append the metrics of packages, rules, actions and caches as table.
+     *
+     * @param text The text to append to.
+     */
+    private void appendMetrics(StringBuilder text) {
+        text.append(getString(R.string.diagnostics_packages)).append('\n');
+        for (EngineMetrics.PackageMetrics metrics : EngineMetrics.getPackages()) {
+            text.append(String.format(Locale.ROOT, "%8d %8d %8d  %s%n", metrics.received.get(),
+                    metrics.coalesced.get(), metrics.processed.get(), metrics.packageName));
+        }
+        text.append('\n').append(getString(R.string.diagnostics_rules)).append('\n');
+        for (EngineMetrics.RuleMetrics metrics : EngineMetrics.getRules()) {
+            EngineMetrics.Histogram time = metrics.evaluationTime;
+            text.append(String.format(Locale.ROOT, "%8d %8d %8d %6d %6d  %s%n", time.getCount(),
+                    time.getMeanMicros(), time.getPercentileMicros(95), metrics.binderCalls.get(),
+                    metrics.triggers.get(), metrics.name));
+        }
+        text.append('\n').append(getString(R.string.diagnostics_actions)).append('\n');
+        for (ActionType type : ActionType.values()) {
+            EngineMetrics.Histogram latency = EngineMetrics.getActionLatency(type);
+            if (latency.getCount() > 0) {
+                text.append(String.format(Locale.ROOT, "%8d %8d %8d  %s%n", latency.getCount(),
+                        latency.getPercentileMicros(50), latency.getPercentileMicros(95), type.name()));
+            }
+        }
+        text.append('\n').append(getString(R.string.diagnostics_caches)).append('\n');
+        for (EngineMetrics.CacheMetrics metrics : EngineMetrics.getCaches()) {
+            text.append(String.format(Locale.ROOT, "%8d %8d %5.1f %%  %s%n", metrics.requests.get(),
+                    metrics.hits.get(), metrics.getHitRate() * 100, metrics.name));
+        }
+        text.append('\n');
+    }
+}
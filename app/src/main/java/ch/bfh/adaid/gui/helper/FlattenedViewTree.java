@@ -11,6 +11,8 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Base64;
 
+import ch.bfh.adaid.service.ShadowTree;
+
 /**
  * FlattenedViewTree is a class that represents a tree of {@link AccessibilityNodeInfo}s. But it is
  * not a tree itself but a flat list of simplified nodes ({@link SimpleView}) that only contain
@@ -20,6 +22,12 @@ import java.util.Base64;
  */
 public class FlattenedViewTree implements Serializable {
 
+    /**
+     * Children are retrieved with the breadth first hybrid prefetching. A snapshot visits the whole
+     * window, so most children are then already in the a11y cache of the service.
+     */
+    private static final int PREFETCHING_STRATEGY = AccessibilityNodeInfo.FLAG_PREFETCH_DESCENDANTS_HYBRID;
+
     /**
      * Package id / app name for which this view tree was created.
      */
@@ -42,6 +50,19 @@ public class FlattenedViewTree implements Serializable {
         removeEmptyChildren();
     }
 
+    /**
+     * Construct a view tree from the shadow tree of the a11y service. This traverses the already
+     * mirrored tree and doesn't need to retrieve any nodes.
+     *
+     * @param tree The shadow tree of the window.
+     */
+    public FlattenedViewTree(ShadowTree tree) {
+        packageName = tree.getPackageName();
+        views = new ArrayList<>();
+        flattenTree(tree.getRoot(), 0);
+        removeEmptyChildren();
+    }
+
     /**
      * Serialize the flattened view tree to a base64 encoded string.
      *
@@ -88,7 +109,20 @@ public class FlattenedViewTree implements Serializable {
         }
         views.add(new SimpleView(node, level, packageName));
         for (int i = 0; i < node.getChildCount(); i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
+            AccessibilityNodeInfo child = node.getChild(i, PREFETCHING_STRATEGY);
+            flattenTree(child, level + 1);
+        }
+    }
+
+    /**
+     * Recursively traverse the shadow tree and populate the list of simplified views.
+     *
+     * @param node  The current node.
+     * @param level The current level in the tree. (0 = root)
+     */
+    private void flattenTree(ShadowTree.Node node, int level) {
+        views.add(new SimpleView(node.getInfo(), level, packageName));
+        for (ShadowTree.Node child : node.getChildren()) {
             flattenTree(child, level + 1);
         }
     }
@@ -4,8 +4,12 @@ import android.annotation.SuppressLint;
 import android.content.Intent;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 
+import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
@@ -14,15 +18,18 @@ import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.snackbar.Snackbar;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import ch.bfh.adaid.R;
 import ch.bfh.adaid.db.Rule;
 import ch.bfh.adaid.db.RuleDataSource;
 import ch.bfh.adaid.db.RuleObserver;
+import ch.bfh.adaid.gui.diagnostics.DiagnosticsActivity;
 import ch.bfh.adaid.gui.rule.EditRuleActivity;
 import ch.bfh.adaid.gui.rule.NewRuleActivity;
 import ch.bfh.adaid.service.A11yService;
+import ch.bfh.adaid.service.EngineQuality;
 
 /**
  * The main activity that is showing a list of rules.
@@ -31,6 +38,15 @@ import ch.bfh.adaid.service.A11yService;
  */
 public class MainActivity extends AppCompatActivity implements RuleObserver, RuleRecyclerViewAdapter.ItemClickListener {
 
+    /**
+     * Engine quality levels that can be chosen in the menu, null chooses automatically.
+     * <p>
+     * Note: Keep in sync with string array engine_quality_list.
+     */
+    private static final EngineQuality[] ENGINE_QUALITY_OPTIONS = {
+            null, EngineQuality.FULL, EngineQuality.REDUCED, EngineQuality.MINIMAL
+    };
+
     RuleRecyclerViewAdapter adapter;
     private RuleDataSource data;
     final ArrayList<Rule> rules = new ArrayList<>();
@@ -60,6 +76,48 @@ public class MainActivity extends AppCompatActivity implements RuleObserver, Rul
         });
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(@NonNull Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(@NonNull MenuItem item) {
+        if (item.getItemId() == R.id.action_engine_quality) {
+            showEngineQualityDialog();
+            return true;
+        } else if (item.getItemId() == R.id.action_diagnostics) {
+            startActivity(DiagnosticsActivity.getStartActivityIntent(this));
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Show a dialog with the quality the rule engine currently runs at and let the user override
+     * the automatic choice.
+     */
+    private void showEngineQualityDialog() {
+        String[] labels = getResources().getStringArray(R.array.engine_quality_list);
+        EngineQuality current = A11yService.getEngineQuality(this);
+        EngineQuality override = A11yService.getEngineQualityOverride(this);
+        int checked = 0;
+        for (int i = 0; i < ENGINE_QUALITY_OPTIONS.length; i++) {
+            if (ENGINE_QUALITY_OPTIONS[i] == override) {
+                checked = i;
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.engine_quality_title,
+                        labels[Arrays.asList(ENGINE_QUALITY_OPTIONS).indexOf(current)]))
+                .setSingleChoiceItems(labels, checked, (dialog, which) -> {
+                    startService(A11yService.getEngineQualityIntent(this, ENGINE_QUALITY_OPTIONS[which]));
+                    dialog.dismiss();
+                })
+                .show();
+    }
+
     @Override
     public void onItemClick(int position) {
         // When an item in the recycler view is clicked, open the rule activity to edit the rule.
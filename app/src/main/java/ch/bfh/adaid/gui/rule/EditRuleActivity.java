@@ -78,9 +78,16 @@ public class EditRuleActivity extends RuleActivity {
         if (rule == null) {
             throw new IllegalArgumentException("Rule with id " + ruleId + " not found.");
         }
-        // Initialize form. But as this callback is called from the RuleDataSource.Executor
-        // thread, we need to change to the UI thread.
-        runOnUiThread(this::initFormFromRule);
+        // Initialize form once the profiles and the condition of the rule are loaded too. But as
+        // the callbacks are called from the RuleDataSource.Executor thread, we need to change to
+        // the UI thread.
+        data.loadProfileNames(ruleId, profiles -> {
+            rule.profiles = profiles;
+            data.loadCondition(ruleId, condition -> {
+                rule.condition = condition;
+                runOnUiThread(this::initFormFromRule);
+            });
+        });
     }
 
     /**
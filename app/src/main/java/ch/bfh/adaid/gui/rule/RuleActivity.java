@@ -5,6 +5,7 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.accessibility.AccessibilityEvent;
 import android.widget.ArrayAdapter;
 import android.widget.AutoCompleteTextView;
 import android.widget.Toast;
@@ -19,14 +20,21 @@ import com.google.android.material.switchmaterial.SwitchMaterial;
 import com.google.android.material.textfield.TextInputEditText;
 import com.google.android.material.textfield.TextInputLayout;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import ch.bfh.adaid.R;
 import ch.bfh.adaid.action.ActionType;
+import ch.bfh.adaid.db.Condition;
 import ch.bfh.adaid.db.Rule;
 import ch.bfh.adaid.db.RuleDataSource;
 import ch.bfh.adaid.db.RuleObserver;
 import ch.bfh.adaid.gui.helper.RuleHelperActivity;
+import ch.bfh.adaid.service.Selector;
 
 /**
  * Base activity for editing existing rules or adding new rules. Implements common form manipulation
@@ -44,6 +52,26 @@ public abstract class RuleActivity extends AppCompatActivity implements RuleObse
     public static final String EXTRA_PACKAGE_KEY = "ch.bfh.adaid.gui.rule.RuleActivity.packageName";
     public static final String INTENT_ACTION = "ch.bfh.adaid.gui.rule.RuleActivity.INTENT_ACTION";
 
+    /**
+     * Event type masks that can be selected in the form.
+     * <p>
+     * Note: Keep in sync with string array rule_event_types_list.
+     */
+    private static final int[] EVENT_TYPE_OPTIONS = {
+            Rule.DEFAULT_EVENT_TYPES,
+            AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED,
+            AccessibilityEvent.TYPE_VIEW_SCROLLED | AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED,
+            Rule.DEFAULT_EVENT_TYPES | AccessibilityEvent.TYPE_VIEW_SCROLLED
+    };
+
+    /**
+     * Schedule day masks that can be selected in the form: every day, monday to friday and
+     * saturday and sunday.
+     * <p>
+     * Note: Keep in sync with string array rule_schedule_days_list.
+     */
+    private static final int[] SCHEDULE_DAYS_OPTIONS = {Rule.ALL_DAYS, 0x3e, 0x41};
+
     /**
      * Get an intent to return data from the rule helper to this activity.
      *
@@ -105,6 +133,8 @@ public abstract class RuleActivity extends AppCompatActivity implements RuleObse
         // Populate dropdowns.
         populateAppDropdown();
         populateActionTypeDropdown();
+        populateEventTypesDropdown();
+        populateScheduleDaysDropdown();
 
         // Set button click listeners.
         findViewById(R.id.buttonSave).setOnClickListener(v -> saveRule());
@@ -194,6 +224,24 @@ public abstract class RuleActivity extends AppCompatActivity implements RuleObse
                 getResources().getStringArray(R.array.rule_action_type_list)));
     }
 
+    /**
+     * Populates the event types dropdown with localized strings.
+     */
+    private void populateEventTypesDropdown() {
+        AutoCompleteTextView eventTypes = findViewById(R.id.dropdownEventTypes);
+        eventTypes.setAdapter(new ArrayAdapter<>(this, android.R.layout.simple_list_item_1,
+                getResources().getStringArray(R.array.rule_event_types_list)));
+    }
+
+    /**
+     * Populates the schedule days dropdown with localized strings.
+     */
+    private void populateScheduleDaysDropdown() {
+        AutoCompleteTextView scheduleDays = findViewById(R.id.dropdownScheduleDays);
+        scheduleDays.setAdapter(new ArrayAdapter<>(this, android.R.layout.simple_list_item_1,
+                getResources().getStringArray(R.array.rule_schedule_days_list)));
+    }
+
     /**
      * Set the text of a TextInputEditText.
      *
@@ -229,6 +277,53 @@ public abstract class RuleActivity extends AppCompatActivity implements RuleObse
         ((AutoCompleteTextView) findViewById(id)).setText(actionString, false);
     }
 
+    /**
+     * Set the selected option of the event types dropdown (AutoCompleteTextView).
+     *
+     * @param id         The id of the AutoCompleteTextView.
+     * @param eventTypes The event type mask to set. Unknown masks show the default option.
+     */
+    private void setEventTypesDropdown(int id, int eventTypes) {
+        int option = 0;
+        for (int i = 0; i < EVENT_TYPE_OPTIONS.length; i++) {
+            if ((EVENT_TYPE_OPTIONS[i] | AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED)
+                    == (eventTypes | AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED)) {
+                option = i;
+                break;
+            }
+        }
+        String[] eventTypeStrings = getResources().getStringArray(R.array.rule_event_types_list);
+        ((AutoCompleteTextView) findViewById(id)).setText(eventTypeStrings[option], false);
+    }
+
+    /**
+     * Set the selected option of the schedule days dropdown (AutoCompleteTextView).
+     *
+     * @param id           The id of the AutoCompleteTextView.
+     * @param scheduleDays The day mask to set. Unknown masks show the default option.
+     */
+    private void setScheduleDaysDropdown(int id, int scheduleDays) {
+        int option = 0;
+        for (int i = 0; i < SCHEDULE_DAYS_OPTIONS.length; i++) {
+            if (SCHEDULE_DAYS_OPTIONS[i] == scheduleDays) {
+                option = i;
+                break;
+            }
+        }
+        String[] dayStrings = getResources().getStringArray(R.array.rule_schedule_days_list);
+        ((AutoCompleteTextView) findViewById(id)).setText(dayStrings[option], false);
+    }
+
+    /**
+     * Set the time of a TextInputEditText as HH:mm.
+     *
+     * @param id     The id of the TextInputEditText.
+     * @param minute The time in minutes after midnight, negative to clear the input.
+     */
+    private void setTimeInput(int id, int minute) {
+        setTextInput(id, minute < 0 ? "" : String.format(Locale.ROOT, "%02d:%02d", minute / 60, minute % 60));
+    }
+
     /**
      * Set the numerical value of a TextInputEditText.
      *
@@ -292,9 +387,36 @@ public abstract class RuleActivity extends AppCompatActivity implements RuleObse
         }
         // Only update validity if input is not optional
         formValid &= valid || optional;
+        // An app id pattern has to compile, otherwise the service would have to skip the rule.
+        String patternError = valid ? getAppIdPatternError(value) : null;
+        if (patternError != null) {
+            TextInputLayout container = findViewById(idContainer);
+            container.setError(getString(R.string.rule_app_pattern_error, patternError));
+            formValid = false;
+        }
         return value;
     }
 
+    /**
+     * Check if an app id pattern compiles to a valid regex.
+     *
+     * @param appId The app id of the form, may be a pattern.
+     * @return The description of the syntax error or null if the app id is valid.
+     */
+    private static String getAppIdPatternError(String appId) {
+        Rule rule = new Rule();
+        rule.appId = appId;
+        if (!rule.hasAppIdPattern()) {
+            return null;
+        }
+        try {
+            Pattern.compile(rule.getAppIdRegex());
+            return null;
+        } catch (PatternSyntaxException e) {
+            return e.getDescription();
+        }
+    }
+
     /**
      * Validate action type dropdown (AutoCompleteTextView) from form and get its enum value.
      *
@@ -316,6 +438,129 @@ public abstract class RuleActivity extends AppCompatActivity implements RuleObse
         return valid ? getActionTypeFromDropdownString(value) : null;
     }
 
+    /**
+     * Get the event type mask of the event types dropdown (AutoCompleteTextView). Nothing selected
+     * is the default option.
+     *
+     * @param id The id of the AutoCompleteTextView.
+     * @return event type mask of the selected option.
+     */
+    private int getEventTypesFromDropdown(int id) {
+        String value = Objects.requireNonNull(((AutoCompleteTextView) findViewById(id)).getText()).toString();
+        String[] eventTypeStrings = getResources().getStringArray(R.array.rule_event_types_list);
+        for (int i = 0; i < eventTypeStrings.length; i++) {
+            if (eventTypeStrings[i].equals(value)) {
+                return EVENT_TYPE_OPTIONS[i];
+            }
+        }
+        return Rule.DEFAULT_EVENT_TYPES;
+    }
+
+    /**
+     * Get the day mask of the schedule days dropdown (AutoCompleteTextView). Nothing selected is
+     * the default option.
+     *
+     * @param id The id of the AutoCompleteTextView.
+     * @return day mask of the selected option.
+     */
+    private int getScheduleDaysFromDropdown(int id) {
+        String value = Objects.requireNonNull(((AutoCompleteTextView) findViewById(id)).getText()).toString();
+        String[] dayStrings = getResources().getStringArray(R.array.rule_schedule_days_list);
+        for (int i = 0; i < dayStrings.length; i++) {
+            if (dayStrings[i].equals(value)) {
+                return SCHEDULE_DAYS_OPTIONS[i];
+            }
+        }
+        return Rule.ALL_DAYS;
+    }
+
+    /**
+     * Validate the condition TextInput from form and parse it.
+     *
+     * @param id          The id of the TextInput.
+     * @param idContainer The id of the TextInputLayout (container of TextInput).
+     * @return parsed condition, empty if the input is empty or invalid.
+     */
+    private Condition validateConditionInput(int id, int idContainer) {
+        TextInputEditText input = findViewById(id);
+        String value = Objects.requireNonNull(input.getText()).toString();
+        TextInputLayout container = findViewById(idContainer);
+        try {
+            Condition condition = Condition.parse(value);
+            container.setError(null);
+            return condition;
+        } catch (IllegalArgumentException e) {
+            container.setError(getString(R.string.rule_condition_error, e.getMessage()));
+            formValid = false;
+            return new Condition(Condition.Type.AND);
+        }
+    }
+
+    /**
+     * Validate the relative path TextInput from form by compiling it.
+     *
+     * @param id          The id of the TextInput.
+     * @param idContainer The id of the TextInputLayout (container of TextInput).
+     * @return text of the TextInput.
+     */
+    private String validateRelativePathInput(int id, int idContainer) {
+        TextInputEditText input = findViewById(id);
+        String value = Objects.requireNonNull(input.getText()).toString();
+        TextInputLayout container = findViewById(idContainer);
+        try {
+            Selector.compile(value);
+            container.setError(null);
+        } catch (IllegalArgumentException e) {
+            container.setError(getString(R.string.rule_relative_path_error, e.getMessage()));
+            formValid = false;
+        }
+        return value;
+    }
+
+    /**
+     * Get the comma separated profile names of a TextInput. Blank and duplicate names are dropped.
+     *
+     * @param id The id of the TextInput.
+     * @return list of profile names, empty if the rule is in no profile.
+     */
+    private List<String> getProfilesFromTextInput(int id) {
+        TextInputEditText input = findViewById(id);
+        ArrayList<String> profiles = new ArrayList<>();
+        for (String name : Objects.requireNonNull(input.getText()).toString().split(",")) {
+            name = name.trim();
+            if (!name.isEmpty() && !profiles.contains(name)) {
+                profiles.add(name);
+            }
+        }
+        return profiles;
+    }
+
+    /**
+     * Validate TextInput from form and get its time value. The time has to be entered as H:mm or
+     * HH:mm.
+     *
+     * @param id          The id of the TextInput.
+     * @param idContainer The id of the TextInputLayout (container of TextInput).
+     * @param idError     The id of the error message.
+     * @return validated time in minutes after midnight, -1 if the input is empty or invalid.
+     */
+    private int validateTimeInput(int id, int idContainer, int idError) {
+        TextInputEditText input = findViewById(id);
+        String value = Objects.requireNonNull(input.getText()).toString().trim();
+        int minute = -1;
+        if (value.matches("\\d{1,2}:\\d{2}")) {
+            int hours = Integer.parseInt(value.substring(0, value.indexOf(':')));
+            int minutes = Integer.parseInt(value.substring(value.indexOf(':') + 1));
+            if (hours < 24 && minutes < 60) {
+                minute = hours * 60 + minutes;
+            }
+        }
+        boolean valid = value.isEmpty() || minute >= 0;
+        setOrResetError(valid, idContainer, idError);
+        formValid &= valid;
+        return minute;
+    }
+
     /**
      * Validate TextInput from form and get its numerical value.
      *
@@ -376,8 +621,22 @@ public abstract class RuleActivity extends AppCompatActivity implements RuleObse
         setAppIdDropdown(R.id.dropdownApp, rule.appId);
         setTextInput(R.id.textInputViewId, rule.viewId);
         setTextInput(R.id.textInputViewText, rule.viewText);
+        if (rule.condition != null) {
+            setTextInput(R.id.textInputCondition, rule.condition.toString());
+        }
         setActionTypeDropdown(R.id.dropdownActionType, rule.actionType);
         setTextInput(R.id.textInputRelativePath, rule.relativePath);
+        setTextInput(R.id.textInputActivityScope, rule.activityScope);
+        setEventTypesDropdown(R.id.dropdownEventTypes, rule.eventTypes);
+        // Leave the times empty if the rule is active all day.
+        boolean hasTimeWindow = rule.scheduleStart != rule.scheduleEnd;
+        setTimeInput(R.id.textInputScheduleStart, hasTimeWindow ? rule.scheduleStart : -1);
+        setTimeInput(R.id.textInputScheduleEnd, hasTimeWindow ? rule.scheduleEnd : -1);
+        setScheduleDaysDropdown(R.id.dropdownScheduleDays, rule.scheduleDays);
+        if (rule.profiles != null) {
+            setTextInput(R.id.textInputProfiles, String.join(", ", rule.profiles));
+        }
+        ((SwitchMaterial) findViewById(R.id.switchInputLowPriority)).setChecked(rule.lowPriority);
     }
 
     /**
@@ -394,9 +653,29 @@ public abstract class RuleActivity extends AppCompatActivity implements RuleObse
         rule.viewId = validateTextInput(R.id.textInputViewId, R.id.textInputViewIdContainer,
                 R.string.rule_view_id_error, false);
         rule.viewText = validateTextInput(R.id.textInputViewText, 0, 0, true);
+        rule.condition = validateConditionInput(R.id.textInputCondition, R.id.textInputConditionContainer);
         rule.actionType = validateActionTypeDropdown(R.id.dropdownActionType, R.id.dropdownActionTypeContainer,
                 R.string.rule_action_type_error, false);
-        rule.relativePath = validateTextInput(R.id.textInputRelativePath, 0, 0, true);
+        rule.relativePath = validateRelativePathInput(R.id.textInputRelativePath,
+                R.id.textInputRelativePathContainer);
+        rule.activityScope = validateTextInput(R.id.textInputActivityScope, 0, 0, true);
+        rule.eventTypes = getEventTypesFromDropdown(R.id.dropdownEventTypes);
+        // A time window needs both times, without any the rule is active all day.
+        int scheduleStart = validateTimeInput(R.id.textInputScheduleStart,
+                R.id.textInputScheduleStartContainer, R.string.rule_schedule_error);
+        int scheduleEnd = validateTimeInput(R.id.textInputScheduleEnd,
+                R.id.textInputScheduleEndContainer, R.string.rule_schedule_error);
+        boolean hasTimeWindow = scheduleStart >= 0 && scheduleEnd >= 0;
+        if (!hasTimeWindow && (scheduleStart >= 0 || scheduleEnd >= 0)) {
+            setOrResetError(false, (scheduleStart < 0) ? R.id.textInputScheduleStartContainer
+                    : R.id.textInputScheduleEndContainer, R.string.rule_schedule_error);
+            formValid = false;
+        }
+        rule.scheduleStart = hasTimeWindow ? scheduleStart : 0;
+        rule.scheduleEnd = hasTimeWindow ? scheduleEnd : 0;
+        rule.scheduleDays = getScheduleDaysFromDropdown(R.id.dropdownScheduleDays);
+        rule.profiles = getProfilesFromTextInput(R.id.textInputProfiles);
+        rule.lowPriority = ((SwitchMaterial) findViewById(R.id.switchInputLowPriority)).isChecked();
     }
 
     /**
@@ -0,0 +1,69 @@
+package ch.bfh.adaid.service;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.List;
+
+/**
+ * The nodes of the windows as the a11y framework reports them.
+ * <p>
+ * Note: Like all node access, this must only be used from the main thread.
+ *
+ * @author Niklaus Leuenberger
+ */
+final class A11yNodeTree implements NodeTree<AccessibilityNodeInfo> {
+
+    /**
+     * The single instance, the tree has no state.
+     */
+    static final A11yNodeTree INSTANCE = new A11yNodeTree();
+
+    private A11yNodeTree() {
+    }
+
+    @Override
+    public List<AccessibilityNodeInfo> findByViewId(AccessibilityNodeInfo node,
+                                                    String completeViewId) {
+        return node.findAccessibilityNodeInfosByViewId(completeViewId);
+    }
+
+    @Override
+    public AccessibilityNodeInfo getParent(AccessibilityNodeInfo node) {
+        return node.getParent();
+    }
+
+    @Override
+    public int getChildCount(AccessibilityNodeInfo node) {
+        return node.getChildCount();
+    }
+
+    @Override
+    public AccessibilityNodeInfo getChild(AccessibilityNodeInfo node, int index) {
+        return node.getChild(index);
+    }
+
+    @Override
+    public AccessibilityNodeInfo getScannedChild(AccessibilityNodeInfo node, int index) {
+        return NodeRetriever.DEEP_SCAN.getChild(node, index);
+    }
+
+    @Override
+    public CharSequence getText(AccessibilityNodeInfo node) {
+        return node.getText();
+    }
+
+    @Override
+    public String getViewId(AccessibilityNodeInfo node) {
+        return node.getViewIdResourceName();
+    }
+
+    @Override
+    public CharSequence getPackageName(AccessibilityNodeInfo node) {
+        return node.getPackageName();
+    }
+
+    @Override
+    public boolean refresh(AccessibilityNodeInfo node) {
+        return node.refresh();
+    }
+}
@@ -4,16 +4,30 @@ import android.accessibilityservice.AccessibilityService;
 import android.accessibilityservice.AccessibilityServiceInfo;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.StrictMode;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityNodeInfo;
 
-import java.util.ArrayList;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import ch.bfh.adaid.R;
+import ch.bfh.adaid.action.BlockAction;
 import ch.bfh.adaid.action.SwipeAction;
+import ch.bfh.adaid.db.Profile;
 import ch.bfh.adaid.db.Rule;
 import ch.bfh.adaid.db.RuleDataSource;
 import ch.bfh.adaid.db.RuleObserver;
@@ -31,12 +45,125 @@ public class A11yService extends AccessibilityService implements RuleObserver {
     private static final String EXTRA_RECORDING_COMMAND_KEY = "ch.bfh.adaid.service.A11yService.RECORDING_COMMAND";
     private static final String EXTRA_TAKE_SNAPSHOT_KEY = "ch.bfh.adaid.service.A11yService.TAKE_SNAPSHOT";
     private static final String EXTRA_QUICK_TILE_ON_OFF_KEY = "ch.bfh.adaid.service.A11yService.QUICK_TILE_ON_OFF";
+    private static final String EXTRA_SELECT_PROFILE_KEY = "ch.bfh.adaid.service.A11yService.SELECT_PROFILE";
+    private static final String PREFERENCES_NAME = "ch.bfh.adaid.service.A11yService";
+    private static final String PREFERENCE_ACTIVE_PROFILE = "active_profile";
+    private static final String EXTRA_ENGINE_QUALITY_KEY = "ch.bfh.adaid.service.A11yService.ENGINE_QUALITY";
+    private static final String PREFERENCE_ENGINE_QUALITY_OVERRIDE = "engine_quality_override";
+    private static final String PREFERENCE_ENGINE_QUALITY = "engine_quality";
 
     /**
-     * List of rules as they are stored in the database. Gets updated with the implemented observer
-     * callbacks.
+     * Time the dump waits for the main thread, in ms.
      */
-    private final ArrayList<RuleWithExtras> rules = new ArrayList<>();
+    private static final long DUMP_TIMEOUT = 5000;
+
+    /**
+     * Compiled rules and their screen fingerprints, one per package. Loaded lazily from the
+     * database and invalidated with the implemented observer callbacks.
+     */
+    private CompiledRuleCache ruleCache;
+
+    /**
+     * Fingerprint of the rules that apply to the foreground screen, if its package has rules limited
+     * to a screen. Together with the package fingerprint and the foreground generation it was built
+     * for.
+     */
+    private ScreenFingerprint<AccessibilityNodeInfo> scopedFingerprint;
+    private ScreenFingerprint<AccessibilityNodeInfo> scopedBase;
+    private int scopedGeneration;
+
+    /**
+     * Swaps the active rules at the start and end of their scheduled time windows.
+     */
+    private RuleScheduler ruleScheduler;
+
+    /**
+     * Tracks the foreground activity for rules limited to a screen.
+     */
+    private ForegroundTracker foregroundTracker;
+
+    /**
+     * Union of the event types all rules subscribed to. The service only listens to those.
+     */
+    private int subscribedEventTypes = Rule.DEFAULT_EVENT_TYPES;
+
+    /**
+     * View ids that are known to be absent from the current window.
+     */
+    private final NegativeLookupCache negativeCache = new NegativeLookupCache();
+
+    /**
+     * Root of the active window and the nodes the rules resolved in it.
+     */
+    private final WindowCache windowCache = new WindowCache(this);
+
+    /**
+     * Incrementally maintained mirror of the active window.
+     */
+    private final ShadowTree shadowTree = new ShadowTree();
+
+    /**
+     * Evaluator for packages with many rules.
+     */
+    private final ParallelRuleEvaluator parallelEvaluator = new ParallelRuleEvaluator();
+
+    /**
+     * Node retrievals of the relative path of the rule that is currently evaluated, 0 if it didn't
+     * run.
+     */
+    private int selectorNodeCalls;
+
+    /**
+     * Filter of the rules by the content change types of an event.
+     */
+    private final ContentChangeFilter contentChangeFilter = new ContentChangeFilter();
+
+    /**
+     * Controller of the notification timeout, adapts it to the event rate of the packages.
+     */
+    private EventRateController eventRateController;
+
+    /**
+     * Monitor of the screen state, events are not processed while the screen is off.
+     */
+    private ScreenStateMonitor screenStateMonitor;
+
+    /**
+     * Flag to indicate if the user disabled the service over the quick settings tile.
+     */
+    private boolean isDisabled = false;
+
+    /**
+     * Monitor of the power state that chooses the quality of the rule engine.
+     */
+    private EngineQualityMonitor qualityMonitor;
+
+    /**
+     * Quality the rule engine currently runs at.
+     */
+    private EngineQuality quality = EngineQuality.FULL;
+
+    /**
+     * Watchdog of the main thread while events are processed.
+     */
+    private EventWatchdog watchdog;
+
+    /**
+     * Time of the currently processed event in the uptime base, to measure the latency of actions.
+     */
+    private long currentEventTime;
+
+    /**
+     * Package of the currently processed event and its metrics. Consecutive events mostly come from
+     * the same package, then the package name is neither copied nor are its metrics looked up.
+     */
+    private String currentAppId = "";
+    private EngineMetrics.PackageMetrics currentPackageMetrics;
+
+    /**
+     * Handler of the main thread, used to collect the dump of the service.
+     */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     /**
      * Flag to indicate if the service is currently recording the screen layout i.e. creating
@@ -138,14 +265,221 @@ public class A11yService extends AccessibilityService implements RuleObserver {
         return intent;
     }
 
+    /**
+     * Creates intent that tells this a11y service to only execute the rules of the given profile.
+     * This is meant to be used by the quick tile.
+     *
+     * @param context   Context of the application.
+     * @param profileId Id of the profile, {@link Profile#ALL_RULES} to execute all enabled rules.
+     * @return created intent, use with startService(intent).
+     */
+    public static Intent getSelectProfileIntent(Context context, long profileId) {
+        Intent intent = new Intent(context, A11yService.class);
+        intent.putExtra(EXTRA_SELECT_PROFILE_KEY, profileId);
+        return intent;
+    }
+
+    /**
+     * Get the id of the profile whose rules are executed.
+     *
+     * @param context Context of the application.
+     * @return Id of the profile, {@link Profile#ALL_RULES} if all enabled rules are executed.
+     */
+    public static long getActiveProfileId(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                .getLong(PREFERENCE_ACTIVE_PROFILE, Profile.ALL_RULES);
+    }
+
+    /**
+     * Creates intent that tells this a11y service to run the rule engine at the given quality.
+     *
+     * @param context Context of the application.
+     * @param quality The quality level, null to choose it automatically from the power state.
+     * @return created intent, use with startService(intent).
+     */
+    public static Intent getEngineQualityIntent(Context context, EngineQuality quality) {
+        Intent intent = new Intent(context, A11yService.class);
+        intent.putExtra(EXTRA_ENGINE_QUALITY_KEY, (quality == null) ? "" : quality.name());
+        return intent;
+    }
+
+    /**
+     * Get the quality level the user chose for the rule engine.
+     *
+     * @param context Context of the application.
+     * @return The quality level or null if it is chosen automatically.
+     */
+    public static EngineQuality getEngineQualityOverride(Context context) {
+        return parseEngineQuality(context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                .getString(PREFERENCE_ENGINE_QUALITY_OVERRIDE, ""));
+    }
+
+    /**
+     * Get the quality level the rule engine currently runs at.
+     *
+     * @param context Context of the application.
+     * @return The quality level, {@link EngineQuality#FULL} if the service never ran.
+     */
+    public static EngineQuality getEngineQuality(Context context) {
+        EngineQuality quality = parseEngineQuality(context.getSharedPreferences(PREFERENCES_NAME,
+                Context.MODE_PRIVATE).getString(PREFERENCE_ENGINE_QUALITY, ""));
+        return (quality == null) ? EngineQuality.FULL : quality;
+    }
+
+    private static EngineQuality parseEngineQuality(String name) {
+        try {
+            return name.isEmpty() ? null : EngineQuality.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     /**
      * Service lifecycle: The service is created by the system.
      */
     @Override
     public void onCreate() {
         super.onCreate();
+        // In debug builds report disk and network access on the main thread, it would stall the
+        // processing of events.
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectAll()
+                    .penaltyLog()
+                    .build());
+        }
+        watchdog = new EventWatchdog();
         // Initialize possible actions.
         SwipeAction.initialize(getApplicationContext());
+        foregroundTracker = new ForegroundTracker(getPackageManager());
+        eventRateController = new EventRateController(
+                getResources().getInteger(R.integer.a11y_notification_timeout_min),
+                getResources().getInteger(R.integer.a11y_notification_timeout_max),
+                getResources().getInteger(R.integer.a11y_notification_timeout));
+        ruleCache = new CompiledRuleCache(this, new RuleDataSource(getApplicationContext()),
+                this::releaseRule, this::onRuleIndexChanged, this::onPackageLoaded);
+        ruleScheduler = new RuleScheduler(this, ruleCache::invalidateAll);
+        screenStateMonitor = new ScreenStateMonitor(this, this::onScreenStateChanged);
+        qualityMonitor = new EngineQualityMonitor(this, getEngineQualityOverride(this),
+                this::applyEngineQuality);
+        applyEngineQuality();
+        ruleCache.setActiveProfile(getActiveProfileId(this));
+    }
+
+    /**
+     * Service lifecycle: The service is destroyed by the system.
+     */
+    @Override
+    public void onDestroy() {
+        parallelEvaluator.shutdown();
+        ruleScheduler.shutdown();
+        screenStateMonitor.shutdown();
+        qualityMonitor.shutdown();
+        watchdog.shutdown();
+        super.onDestroy();
+    }
+
+    /**
+     * Service lifecycle: The system is low on memory. Drop compiled rules of packages that were not
+     * used recently, they are reloaded when needed.
+     *
+     * @param level The memory level of the system.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ruleCache.trimMemory(level);
+    }
+
+    /**
+     * Service lifecycle: Dump the state of the service, e.g. with
+     * "adb shell dumpsys activity service ch.bfh.adaid/.service.A11yService". Pass "--reset" as
+     * argument to reset the counters of the metrics after they were dumped.
+     * <p>
+     * Called on a binder thread. The state belongs to the main thread, so it is collected there.
+     *
+     * @param fd     The raw file descriptor of the dump, unused.
+     * @param writer The writer of the dump.
+     * @param args   The arguments of the dump command.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        StringWriter dump = new StringWriter();
+        CountDownLatch done = new CountDownLatch(1);
+        mainHandler.post(() -> {
+            dumpState(new PrintWriter(dump));
+            done.countDown();
+        });
+        try {
+            if (!done.await(DUMP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                writer.println("Main thread did not respond within " + DUMP_TIMEOUT + " ms.");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        writer.print(dump);
+        if (Arrays.asList(args).contains("--reset")) {
+            EngineMetrics.reset();
+            writer.println("Counters reset.");
+        }
+    }
+
+    /**
+     * Write the state of the service to a dump.
+     *
+     * @param writer The writer of the dump.
+     */
+    private void dumpState(PrintWriter writer) {
+        writer.println("A11yService state:");
+        if (ruleCache == null) {
+            writer.println("  not connected");
+            writer.flush();
+            return;
+        }
+        writer.println("  disabled=" + isDisabled + ", suspended=" + screenStateMonitor.isSuspended()
+                + ", recording=" + isRecording + ", profile=" + getActiveProfileId(this));
+        writer.println("  quality=" + quality + (qualityMonitor.isAutomatic() ? " (automatic)" : " (chosen by user)"));
+        AccessibilityServiceInfo info = getServiceInfo();
+        if (info != null) {
+            writer.println("  listened packages: " + ((info.packageNames == null) ? "all"
+                    : String.join(", ", info.packageNames)));
+            writer.printf(Locale.ROOT, "  event types 0x%x, notification timeout %d ms%n",
+                    info.eventTypes, info.notificationTimeout);
+        }
+        writer.println("Event rates:");
+        eventRateController.dump(writer, "  ");
+        writer.println("Events per package (received, coalesced, processed):");
+        for (EngineMetrics.PackageMetrics metrics : EngineMetrics.getPackages()) {
+            writer.printf(Locale.ROOT, "  %s: %d, %d, %d%n", metrics.packageName,
+                    metrics.received.get(), metrics.coalesced.get(), metrics.processed.get());
+        }
+        writer.println("Caches (requests, hits, hit rate):");
+        for (EngineMetrics.CacheMetrics metrics : EngineMetrics.getCaches()) {
+            writer.printf(Locale.ROOT, "  %s: %d, %d, %.1f %%%n", metrics.name,
+                    metrics.requests.get(), metrics.hits.get(), metrics.getHitRate() * 100);
+        }
+        // The framework coalesces the events itself, what is left to wait for here are the event
+        // types whose rules were skipped when a fingerprint last changed.
+        int pending = 0;
+        writer.println("Compiled rules per package, in priority order:");
+        for (ScreenFingerprint<?> fingerprint : ruleCache.getFingerprints()) {
+            fingerprint.dump(writer, "  ");
+            pending += Integer.bitCount(fingerprint.getPendingEventTypes());
+        }
+        if (scopedFingerprint != null) {
+            writer.println("Rules of the current screen:");
+            scopedFingerprint.dump(writer, "  ");
+        }
+        writer.println("Pending event types: " + pending);
+        writer.println("Rule index per profile:");
+        ruleCache.dump(writer, "  ");
+        writer.println("Active overlays: " + BlockAction.getShownOverlays());
+        writer.println("Gestures: " + SwipeAction.getDispatchedGestures() + " dispatched, "
+                + SwipeAction.getPendingGestures() + " pending");
+        writer.println("Slow events: " + EventWatchdog.getSlowEvents().size());
+        writer.flush();
     }
 
     /**
@@ -176,22 +510,40 @@ public class A11yService extends AccessibilityService implements RuleObserver {
             // either events for all packages are received or only those with existing rules.
             if (intent.hasExtra(EXTRA_RECORDING_COMMAND_KEY)) {
                 isRecording = intent.getBooleanExtra(EXTRA_RECORDING_COMMAND_KEY, false);
-                if (isRecording) {
-                    listenToAllPackages();
-                } else {
-                    listenToPackagesWithRules();
-                }
+                // The mirror wasn't patched while not recording, so it may be outdated.
+                shadowTree.invalidate();
+                updateA11yEvents();
+            }
+            // If we should switch the profile, remember it and swap the compiled rules.
+            if (intent.hasExtra(EXTRA_SELECT_PROFILE_KEY)) {
+                long profileId = intent.getLongExtra(EXTRA_SELECT_PROFILE_KEY, Profile.ALL_RULES);
+                getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE).edit()
+                        .putLong(PREFERENCE_ACTIVE_PROFILE, profileId).apply();
+                ruleCache.setActiveProfile(profileId);
+            }
+            // If the user chose a quality level, remember it and apply it.
+            if (intent.hasExtra(EXTRA_ENGINE_QUALITY_KEY)) {
+                EngineQuality override = parseEngineQuality(intent.getStringExtra(EXTRA_ENGINE_QUALITY_KEY));
+                getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE).edit()
+                        .putString(PREFERENCE_ENGINE_QUALITY_OVERRIDE,
+                                (override == null) ? "" : override.name()).apply();
+                qualityMonitor.setOverride(override);
             }
             // If we should enable or disable the service, do so.
             if (intent.hasExtra(EXTRA_QUICK_TILE_ON_OFF_KEY)) {
                 boolean on = intent.getBooleanExtra(EXTRA_QUICK_TILE_ON_OFF_KEY, true);
-                if (on) {
-                    listenToPackagesWithRules();
-                } else {
-                    disableA11yEvents();
+                isDisabled = !on;
+                updateA11yEvents();
+                if (!on) {
                     // Ensure all rules are "gone" and will trigger correctly the next time around.
-                    for (RuleWithExtras rule : rules) {
-                        triggerGone(rule);
+                    for (ScreenFingerprint<?> fingerprint : ruleCache.getFingerprints()) {
+                        for (RuleWithExtras rule : fingerprint.rules) {
+                            triggerGone(rule);
+                        }
+                        fingerprint.invalidate();
+                    }
+                    if (scopedFingerprint != null) {
+                        scopedFingerprint.invalidate();
                     }
                 }
             }
@@ -205,7 +557,8 @@ public class A11yService extends AccessibilityService implements RuleObserver {
     @Override
     public void onServiceConnected() {
         super.onServiceConnected();
-        // Connect to the rule database and register as observer.
+        // Connect to the rule database and register as observer. Rules are compiled lazily per
+        // package, the observer callbacks only invalidate them.
         RuleDataSource data = new RuleDataSource(getApplicationContext());
         data.addObserver(this);
     }
@@ -217,24 +570,78 @@ public class A11yService extends AccessibilityService implements RuleObserver {
      */
     @Override
     public void onAccessibilityEvent(AccessibilityEvent event) {
-        // Process only window content change events. The android system only ever sends events
-        // according to the configuration in {@link a11y_service_config.xml}.
-        if (event.getEventType() != AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED) {
+        // Process only the event types the rules subscribed to. The android system only ever sends
+        // events according to the configuration in {@link a11y_service_config.xml} and the event
+        // types set in {@link #listenToPackagesWithRules()}.
+        int eventType = event.getEventType();
+        if (eventType == AccessibilityEvent.TYPE_WINDOWS_CHANGED) {
+            // Only received if the service retrieves interactive windows. Cached nodes may now
+            // belong to a window that is no longer active.
+            windowCache.invalidate();
+            return;
+        }
+        // Events already on their way when the service got suspended are dropped too.
+        if ((eventType & subscribedEventTypes) == 0 || screenStateMonitor.isSuspended()) {
             return;
         }
+        // The watchdog records events that hold the main thread for too long.
+        // Both measure the whole processing of the event, the trace only while it is captured.
+        boolean traced = EngineTrace.begin("event ", event.getPackageName());
+        watchdog.begin(event.getPackageName(), eventType);
+        try {
+            processEvent(event, eventType);
+        } finally {
+            EngineTrace.counter("rules evaluated", watchdog.getRulesEvaluated());
+            watchdog.end();
+            EngineTrace.end(traced);
+        }
+    }
+
+    /**
+     * Process an accessibility event the rules subscribed to.
+     *
+     * @param event     The produced accessibility event.
+     * @param eventType The type of the event.
+     */
+    private void processEvent(AccessibilityEvent event, int eventType) {
+        updateCurrentPackage(event.getPackageName());
+        String appId = currentAppId;
+        currentPackageMetrics.received.incrementAndGet();
+        currentEventTime = event.getEventTime();
+        // Window state changes are always listened to, they tell what screen is in the foreground.
+        long startNanos = System.nanoTime();
+        if (foregroundTracker.onEvent(event)) {
+            eventRateController.onForegroundChanged(startNanos);
+        }
         // Check wether this event has a source node root that is not null. Normally all window
         // content change events have a root node, but mysteriously some don't. So check this.
-        AccessibilityNodeInfo root = getRootInActiveWindow();
+        // Events of the same window mostly share the root, so it is fetched over the cache.
+        AccessibilityNodeInfo root;
+        boolean traced = EngineTrace.begin("root fetch");
+        try {
+            root = windowCache.getRoot(event);
+        } finally {
+            EngineTrace.end(traced);
+        }
         if (root == null) {
-            Log.e(TAG, "Window root is null for event with source node: " + event.getSource());
+            Log.e(TAG, "Window root is null for window change event.");
             return;
         }
-        // If we are recording the screen layout, take a snapshot of the current layout.
+        // Window changes may make previously absent views appear.
+        negativeCache.onEvent(event, root);
+        // If we are recording the screen layout, take a snapshot of the current layout. The mirror
+        // of the window the snapshots are made from is patched with the changes of this event.
         if (isRecording) {
+            shadowTree.onEvent(event, root);
             doSnapshot(root);
         }
         // Process all rules for this event.
-        processRulesForEvent(event.getPackageName().toString(), root);
+        processRulesForEvent(appId, eventType, ContentChangeFilter.getChangeTypes(event), root);
+        adaptNotificationTimeout(appId, startNanos);
+        if (eventType == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED && isDebugLogging()) {
+            contentChangeFilter.logStatistics();
+            Log.d(TAG, eventRateController.getStatistics());
+        }
     }
 
     /**
@@ -253,22 +660,160 @@ public class A11yService extends AccessibilityService implements RuleObserver {
     private void listenToPackagesWithRules() {
         // The xml configuration {@link a11y_service_config.xml} has no default value for apps to
         // listen to. So we receive events for all apps. Optimize this by only listening to apps
-        // that have rules.
-        ArrayList<String> packages = new ArrayList<>();
-        for (RuleWithExtras rule : rules) {
-            if (!packages.contains(rule.r.appId)) {
-                packages.add(rule.r.appId);
-            }
+        // that have rules and only to the event types those rules subscribed to. Rules with an app
+        // id pattern can apply to any package, then events of all apps are needed.
+        if (ruleCache.hasPatterns()) {
+            listenToAllPackages();
+            return;
         }
+        List<String> packages = ruleCache.getExactPackages();
         Log.d(TAG, "listening to events from packages: " + packages);
         AccessibilityServiceInfo info = getServiceInfo();
         if (info != null) {
             info.packageNames = packages.toArray(new String[0]);
-            info.eventTypes = AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED;
+            info.eventTypes = subscribedEventTypes;
             setServiceInfo(info);
         }
     }
 
+    /**
+     * Called after the index of the rules was reloaded. Updates the listened packages and events
+     * and the alarm for the next schedule transition.
+     */
+    private void onRuleIndexChanged() {
+        // Snapshots are made from content and state changes, those are always part of the index.
+        subscribedEventTypes = ruleCache.getEventTypes();
+        ruleScheduler.schedule(ruleCache.getNextScheduleTransition());
+        updateA11yEvents();
+        // The compiled rules were dropped, no event may come for a screen that doesn't change. This
+        // starts loading the rules of the foreground package, see onPackageLoaded.
+        if (!isDisabled && !screenStateMonitor.isSuspended()) {
+            evaluateActiveWindow();
+        }
+    }
+
+    /**
+     * Called after the rules of a package were compiled. The event that started the loading wasn't
+     * processed, so if the package is still in the foreground its window is evaluated now. This way
+     * e.g. rules for window state changes also fire for the screen that opened the app.
+     *
+     * @param packageName The package whose rules were compiled.
+     */
+    private void onPackageLoaded(String packageName) {
+        if (isDisabled || screenStateMonitor.isSuspended()) {
+            return;
+        }
+        AccessibilityNodeInfo root = getRootInActiveWindow();
+        if (root != null && root.getPackageName() != null
+                && packageName.contentEquals(root.getPackageName())) {
+            evaluateActiveWindow(root);
+        }
+    }
+
+    /**
+     * Set the listened packages and events according to the current state of the service: No
+     * events while disabled or suspended, events of all packages while recording and otherwise
+     * only events of packages with rules.
+     */
+    private void updateA11yEvents() {
+        if (isDisabled || screenStateMonitor.isSuspended()) {
+            disableA11yEvents();
+        } else if (isRecording) {
+            listenToAllPackages();
+        } else {
+            listenToPackagesWithRules();
+        }
+    }
+
+    /**
+     * Called when the screen turned off or on or the device entered or left the idle mode.
+     * <p>
+     * While suspended no events are received and the ongoing work of the actions, e.g. the update
+     * loops of block overlays, is paused. The triggered state of the rules is kept. On resume
+     * everything seen before may be stale, so the active window is evaluated afresh. Rules that
+     * are still met are not triggered again, rules whose views vanished are triggered as gone.
+     */
+    private void onScreenStateChanged() {
+        boolean suspended = screenStateMonitor.isSuspended();
+        Log.d(TAG, suspended ? "suspending rule processing" : "resuming rule processing");
+        for (ScreenFingerprint<?> fingerprint : ruleCache.getFingerprints()) {
+            for (RuleWithExtras rule : fingerprint.rules) {
+                if (suspended) {
+                    rule.action.suspend();
+                } else {
+                    rule.action.resume();
+                }
+            }
+            fingerprint.invalidate();
+        }
+        if (scopedFingerprint != null) {
+            scopedFingerprint.invalidate();
+        }
+        windowCache.invalidate();
+        negativeCache.invalidate();
+        shadowTree.invalidate();
+        updateA11yEvents();
+        if (!suspended && !isDisabled) {
+            evaluateActiveWindow();
+        }
+    }
+
+    /**
+     * Apply the quality level chosen by the monitor to all parts of the rule engine and publish it
+     * for the diagnostics of the app.
+     */
+    private void applyEngineQuality() {
+        quality = qualityMonitor.getQuality();
+        Log.d(TAG, "running rule engine at quality " + quality
+                + (qualityMonitor.isAutomatic() ? " (automatic)" : " (chosen by user)"));
+        BlockAction.setUpdateInterval(quality.overlayUpdateInterval);
+        EngineTrace.counter("engine quality", quality.ordinal());
+        eventRateController.setMinimumTimeoutFactor(quality.timeoutFactor);
+        getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE).edit()
+                .putString(PREFERENCE_ENGINE_QUALITY, quality.name()).apply();
+        // Rules that were skipped before have to be evaluated on the next event.
+        for (ScreenFingerprint<?> fingerprint : ruleCache.getFingerprints()) {
+            fingerprint.invalidate();
+        }
+    }
+
+    /**
+     * Evaluate the rules for the active window as if it had just changed.
+     */
+    private void evaluateActiveWindow() {
+        AccessibilityNodeInfo root = getRootInActiveWindow();
+        if (root != null && root.getPackageName() != null) {
+            evaluateActiveWindow(root);
+        }
+    }
+
+    /**
+     * Make the given package the current one, see {@link #currentAppId}.
+     *
+     * @param packageName The package of the event or window, not null.
+     */
+    private void updateCurrentPackage(CharSequence packageName) {
+        if (!currentAppId.contentEquals(packageName)) {
+            currentAppId = packageName.toString();
+            currentPackageMetrics = EngineMetrics.getPackage(currentAppId);
+        }
+    }
+
+    /**
+     * Evaluate the rules for the given window as if it had just changed.
+     *
+     * @param root The root node of the active window, with a package name.
+     */
+    private void evaluateActiveWindow(AccessibilityNodeInfo root) {
+        updateCurrentPackage(root.getPackageName());
+        String appId = currentAppId;
+        currentEventTime = SystemClock.uptimeMillis();
+        processRulesForEvent(appId, AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED,
+                ContentChangeFilter.ALL_CHANGES, root);
+        processRulesForEvent(appId, AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED,
+                ContentChangeFilter.ALL_CHANGES, root);
+    }
+
     /**
      * Set service configuration to listen for accessibility events of all packages.
      */
@@ -277,7 +822,7 @@ public class A11yService extends AccessibilityService implements RuleObserver {
         AccessibilityServiceInfo info = getServiceInfo();
         if (info != null) {
             info.packageNames = null;
-            info.eventTypes = AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED;
+            info.eventTypes = subscribedEventTypes;
             setServiceInfo(info);
         }
     }
@@ -295,35 +840,165 @@ public class A11yService extends AccessibilityService implements RuleObserver {
     }
 
     /**
-     * Process all rules for the given event.
+     * Feed the time the processing of an event took to the controller and apply the notification
+     * timeout it calculated. Other changes of the service configuration keep the timeout, they
+     * start from the current configuration.
      *
-     * @param appId The currently opened app.
-     * @param root  The root node of all accessibility nodes (i.e. the container view).
+     * @param appId      The package of the event.
+     * @param startNanos When the processing of the event started.
      */
-    private void processRulesForEvent(String appId, AccessibilityNodeInfo root) {
-        // Iterate over all rules and process them.
-        for (RuleWithExtras rule : rules) {
-            processRuleForEvent(rule, appId, root);
+    private void adaptNotificationTimeout(String appId, long startNanos) {
+        long nowNanos = System.nanoTime();
+        eventRateController.onEvent(appId, startNanos, nowNanos - startNanos);
+        int timeout = eventRateController.getTimeoutToApply(appId, nowNanos);
+        if (timeout < 0) {
+            return;
+        }
+        EngineTrace.counter("notification timeout", timeout);
+        AccessibilityServiceInfo info = getServiceInfo();
+        if (info != null) {
+            info.notificationTimeout = timeout;
+            setServiceInfo(info);
         }
     }
 
     /**
-     * Process a single rule for the given event.
+     * Process all rules for the given event. The package has to be the current one, see
+     * {@link #updateCurrentPackage(CharSequence)}.
      *
-     * @param rule  The rule to process.
-     * @param appId The currently opened app.
-     * @param root  The root node of all accessibility nodes (i.e. the container view).
+     * @param appId       The currently opened app.
+     * @param eventType   The type of the event, only rules subscribed to it are processed.
+     * @param changeTypes The content change types of the event, only rules affected by those are
+     *                    processed.
+     * @param root        The root node of all accessibility nodes (i.e. the container view).
      */
-    private void processRuleForEvent(RuleWithExtras rule, String appId, AccessibilityNodeInfo root) {
-        // Check if the rule applies to the current app.
-        if (!rule.r.isMatchingAppId(appId)) {
+    private void processRulesForEvent(String appId, int eventType, int changeTypes,
+                                      AccessibilityNodeInfo root) {
+        // Only the rules of the current app are of interest, those share a screen fingerprint. If
+        // none of them subscribed to the event type, nothing has to be looked up at all.
+        ScreenFingerprint<AccessibilityNodeInfo> fingerprint = getActiveFingerprint(appId);
+        if (fingerprint == null || !fingerprint.isSubscribedTo(eventType)) {
+            return;
+        }
+        // Changes of e.g. only the content description can't affect any rule. Skip those before
+        // any node is looked up.
+        if (!contentChangeFilter.isAffected(fingerprint, eventType, changeTypes)) {
+            currentPackageMetrics.coalesced.incrementAndGet();
             return;
         }
-        // Search for the node(s) that match the rule.
-        List<AccessibilityNodeInfo> nodes = root.findAccessibilityNodeInfosByViewId(rule.r.getCompleteViewId());
+        // If nothing changed that the rules depend on, the outcome of the last evaluation is still
+        // valid. Skip processing the rules altogether. Unless the rules of this event type were
+        // skipped when it last changed.
+        boolean changed;
+        boolean traced = EngineTrace.begin("node search");
+        try {
+            changed = fingerprint.update(root, windowCache, negativeCache);
+        } finally {
+            EngineTrace.end(traced);
+        }
+        if (!changed && !fingerprint.isPending(eventType)) {
+            currentPackageMetrics.coalesced.incrementAndGet();
+            return;
+        }
+        currentPackageMetrics.processed.incrementAndGet();
+        fingerprint.onEvaluated(eventType, changed);
+        watchdog.onFingerprint(fingerprint);
+        // With many rules the conditions are matched in parallel first. Actions are still dispatched
+        // here on the main thread and in the same order as without.
+        ParallelRuleEvaluator.Result parallel = null;
+        if (quality.parallelEvaluation && ParallelRuleEvaluator.isWorthwhile(fingerprint)) {
+            parallel = parallelEvaluator.evaluate(fingerprint, eventType, changeTypes);
+        }
+        // Iterate over all rules in priority order and process them with the nodes the fingerprint
+        // looked up. Indexed loop as to not allocate an iterator for every event.
+        for (int i = 0; i < fingerprint.rules.size(); i++) {
+            RuleWithExtras rule = fingerprint.rules.get(i);
+            if (!rule.isSubscribedTo(eventType) || isSkippedAtQuality(rule)
+                    || !contentChangeFilter.isAffected(rule, changeTypes)) {
+                continue;
+            }
+            watchdog.onRuleEvaluated();
+            boolean wasTriggered = rule.wasTriggeredByLastEvent();
+            long start = System.nanoTime();
+            selectorNodeCalls = 0;
+            traced = EngineTrace.begin("rule ", rule.r.name);
+            try {
+                if (parallel == null) {
+                    processRuleForTarget(fingerprint, i);
+                } else {
+                    processMatchedRule(fingerprint, i, parallel.met[i]);
+                }
+            } finally {
+                EngineTrace.end(traced);
+            }
+            boolean matched = !wasTriggered && rule.wasTriggeredByLastEvent();
+            // The lookups of the views the rule depends on are part of its cost, as is the time of
+            // the parallel matching, so both paths measure the same work.
+            int nodeCalls = fingerprint.getLookupCalls(i) + selectorNodeCalls;
+            long nanos = System.nanoTime() - start + fingerprint.getLookupNanos(i)
+                    + ((parallel == null) ? 0 : parallel.nanos[i]);
+            rule.recordEvaluation(nanos, nodeCalls, matched);
+            rule.metrics.evaluationTime.record(nanos);
+            rule.metrics.binderCalls.addAndGet(nodeCalls);
+        }
+    }
+
+    /**
+     * Check if the rule is skipped at the current quality of the rule engine.
+     *
+     * @param rule The rule to check.
+     * @return true if the rule is not evaluated.
+     */
+    private boolean isSkippedAtQuality(RuleWithExtras rule) {
+        return rule.r.lowPriority && !quality.lowPriorityRules;
+    }
+
+    /**
+     * Get the fingerprint of the rules that apply to the foreground of the package. For packages
+     * with rules limited to a screen, the subset is switched whenever the foreground changes. Rules
+     * that drop out of the subset are triggered as gone.
+     *
+     * @param appId The currently opened app.
+     * @return The fingerprint or null if the package has no rules.
+     */
+    private ScreenFingerprint<AccessibilityNodeInfo> getActiveFingerprint(String appId) {
+        ScreenFingerprint<AccessibilityNodeInfo> fingerprint = ruleCache.get(appId);
+        if (fingerprint == null || !fingerprint.hasScopedRules) {
+            return fingerprint;
+        }
+        if (fingerprint != scopedBase || foregroundTracker.getGeneration() != scopedGeneration) {
+            ScreenFingerprint<AccessibilityNodeInfo> subset = fingerprint.forForeground(
+                    foregroundTracker.getActivityName(appId), foregroundTracker.getWindowTitle(appId));
+            // Keep the old fingerprint and its state if the same rules apply to the new screen.
+            if (scopedFingerprint != null && fingerprint == scopedBase
+                    && subset.rules.equals(scopedFingerprint.rules)) {
+                subset = scopedFingerprint;
+            } else if (scopedFingerprint != null) {
+                for (RuleWithExtras rule : scopedFingerprint.rules) {
+                    if (!subset.rules.contains(rule)) {
+                        triggerGone(rule);
+                    }
+                }
+            }
+            scopedFingerprint = subset;
+            scopedBase = fingerprint;
+            scopedGeneration = foregroundTracker.getGeneration();
+        }
+        return scopedFingerprint;
+    }
+
+    /**
+     * Process a single rule for the given event.
+     *
+     * @param fingerprint The fingerprint with the nodes and texts that were found for the rules.
+     * @param ruleIndex   Index of the rule to process in the fingerprint.
+     */
+    private void processRuleForTarget(ScreenFingerprint<AccessibilityNodeInfo> fingerprint,
+                                      int ruleIndex) {
+        RuleWithExtras rule = fingerprint.rules.get(ruleIndex);
         // Actions only make sense if just one single node is found. So ignore events when multiple
         // or no nodes are found.
-        if (nodes.size() != 1) {
+        if (!fingerprint.isFound(ruleIndex)) {
             triggerGone(rule);
             return;
         }
@@ -331,25 +1006,52 @@ public class A11yService extends AccessibilityService implements RuleObserver {
         if (rule.wasTriggeredByLastEvent()) {
             return;
         }
-        // Exactly one node found and was not triggered before. Process the rule for found node.
-        processRuleForNode(rule, nodes.get(0));
+        // Exactly one node found and was not triggered before. Check the additional condition and
+        // the view text with what the fingerprint already looked up.
+        if (!fingerprint.isMatching(ruleIndex)) {
+            return;
+        }
+        // Conditions to trigger are met.
+        triggerSeenAtRelativePath(fingerprint, ruleIndex);
     }
 
     /**
-     * Process a single rule for a single node.
+     * Process a single rule whose conditions were already matched by the parallel evaluation.
      *
-     * @param rule The rule to process.
-     * @param node The node to process the rule for.
+     * @param fingerprint The fingerprint with the nodes that were found for the rules.
+     * @param ruleIndex   Index of the rule to process in the fingerprint.
+     * @param met         Whether the conditions of the rule are met.
      */
-    private void processRuleForNode(RuleWithExtras rule, AccessibilityNodeInfo node) {
-        // If rule specifies a view text, then we recursively check if the node text matches.
-        if (rule.r.hasViewText()) {
-            if (!isMatchingViewTextRecursive(rule, node)) return;
+    private void processMatchedRule(ScreenFingerprint<AccessibilityNodeInfo> fingerprint,
+                                    int ruleIndex, boolean met) {
+        if (!fingerprint.isFound(ruleIndex)) {
+            triggerGone(fingerprint.rules.get(ruleIndex));
+        } else if (met) {
+            triggerSeenAtRelativePath(fingerprint, ruleIndex);
         }
-        // Conditions to trigger are met, process the relative path if set.
-        node = processRelativePath(node, rule.r.relativePath);
+    }
+
+    /**
+     * Trigger seen action for the rule on the node its relative path leads to.
+     *
+     * @param fingerprint The fingerprint with the node that matched the rule.
+     * @param ruleIndex   Index of the rule to trigger in the fingerprint.
+     */
+    private void triggerSeenAtRelativePath(ScreenFingerprint<AccessibilityNodeInfo> fingerprint,
+                                           int ruleIndex) {
+        RuleWithExtras rule = fingerprint.rules.get(ruleIndex);
+        // Run the relative path, it was compiled together with the rule.
+        if (rule.selector == null) {
+            Log.e(TAG, "Invalid relative path: " + rule.r.relativePath);
+            return;
+        }
+        AccessibilityNodeInfo node = fingerprint.select(ruleIndex);
+        selectorNodeCalls = rule.selector.getLastNodeCalls();
         if (node == null) {
-            Log.e(TAG, "Error while processing relative path: " + rule.r.relativePath);
+            // The node the path leads to is not part of the fingerprint, it may just not be there
+            // yet. Evaluate again with the next event even if the fingerprint doesn't change.
+            if (isDebugLogging()) Log.d(TAG, "Relative path led nowhere: " + rule.r.relativePath);
+            fingerprint.invalidate();
             return;
         }
         // All conditions are met, execute seen action and mark it as triggered.
@@ -364,9 +1066,28 @@ public class A11yService extends AccessibilityService implements RuleObserver {
      */
     private void triggerSeen(RuleWithExtras rule, AccessibilityNodeInfo node) {
         // Trigger and mark as triggered to avoid triggering again.
-        Log.d(TAG, "Triggering (seen) rule " + rule.r.name);
+        if (isDebugLogging()) Log.d(TAG, "Triggering (seen) rule " + rule.r.name);
         rule.setTriggeredByCurrentEvent(true);
-        rule.action.triggerSeen(node);
+        boolean traced = EngineTrace.begin("action ", rule.r.actionType.name());
+        try {
+            rule.action.triggerSeen(node);
+        } finally {
+            EngineTrace.end(traced);
+        }
+        rule.metrics.triggers.incrementAndGet();
+        EngineMetrics.getActionLatency(rule.r.actionType)
+                .record((SystemClock.uptimeMillis() - currentEventTime) * 1_000_000);
+    }
+
+    /**
+     * Trigger gone action for a rule that was dropped from the compiled rules and release what its
+     * action still holds on to. Nothing of the rule would otherwise be updated anymore.
+     *
+     * @param rule The dropped rule.
+     */
+    private void releaseRule(RuleWithExtras rule) {
+        triggerGone(rule);
+        rule.action.release();
     }
 
     /**
@@ -378,29 +1099,21 @@ public class A11yService extends AccessibilityService implements RuleObserver {
         // Reset the triggered flag and potentially run gone action if previous event contained the
         // node i.e. triggered the rule.
         if (rule.wasTriggeredByLastEvent()) {
-            Log.d(TAG, "Triggering (gone) rule " + rule.r.name);
+            if (isDebugLogging()) Log.d(TAG, "Triggering (gone) rule " + rule.r.name);
             rule.action.triggerGone();
         }
         rule.setTriggeredByCurrentEvent(false);
     }
 
     /**
-     * Search recursively for a match of a node's view text to the given rule's text.
+     * Checks if debug logs of the event path should be written. Those are only built if enabled for
+     * the tag e.g. with "adb shell setprop log.tag.A11yService DEBUG". Otherwise the string
+     * concatenation alone would allocate on every trigger.
      *
-     * @param rule The rule that a match is searched for.
-     * @param node The node that shall recursively be searched for the text.
-     * @return true if the rule matched the view text, false otherwise.
+     * @return true if debug logs are enabled, false otherwise.
      */
-    private boolean isMatchingViewTextRecursive(RuleWithExtras rule, AccessibilityNodeInfo node) {
-        if (node == null) return false;
-        if (node.getText() != null) {
-            if (rule.r.isMatchingViewText(node.getText().toString())) return true;
-        }
-        for (int i = 0; i < node.getChildCount(); i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            if (isMatchingViewTextRecursive(rule, child)) return true;
-        }
-        return false;
+    private static boolean isDebugLogging() {
+        return Log.isLoggable(TAG, Log.DEBUG);
     }
 
     /**
@@ -415,7 +1128,12 @@ public class A11yService extends AccessibilityService implements RuleObserver {
             Log.d(TAG, "Skipping snapshotting of system package: " + packageName);
             return;
         }
-        lastViewTree = new FlattenedViewTree(root);
+        // The shadow tree is patched while recording, usually no need for another full traversal.
+        if (shadowTree.ensureBuilt(root)) {
+            lastViewTree = new FlattenedViewTree(shadowTree);
+        } else {
+            lastViewTree = new FlattenedViewTree(root);
+        }
         // If we should take the next possible snapshot, forward the just taken one to the helper.
         if (takeNextSnapshot) {
             takeNextSnapshot = false;
@@ -426,139 +1144,59 @@ public class A11yService extends AccessibilityService implements RuleObserver {
     }
 
     /**
-     * Process the optional relative path of the rule.
-     *
-     * @param node         Node that triggered the rule, starting point of relative path.
-     * @param relativePath The relative path from the rule.
-     * @return The relative node. Or null on error.
-     */
-    public AccessibilityNodeInfo processRelativePath(AccessibilityNodeInfo node, String relativePath) {
-        if (relativePath == null || relativePath.isEmpty()) {
-            return node;
-        }
-        for (String pathArg : relativePath.split("\\.")) {
-            if (pathArg.equals("p")) {
-                node = processRelativeParent(node);
-            } else if (pathArg.startsWith("c[")) {
-                node = processRelativeChild(node, pathArg);
-            } else if (pathArg.equals("su")) {
-                node = processRelativeSiblingUp(node);
-            } else if (pathArg.equals("sd")) {
-                node = processRelativeSiblingDown(node);
-            } else {
-                node = null;
-            }
-        }
-        return node;
-    }
-
-    /**
-     * Process the "p" relative path argument and move a parent up.
-     *
-     * @param node Child node.
-     * @return Parent node. Or null on error.
-     */
-    public AccessibilityNodeInfo processRelativeParent(AccessibilityNodeInfo node) {
-        return (node == null) ? null : node.getParent();
-    }
-
-    /**
-     * Process the "c[nth]" relative path argument and move to the nth child.
-     *
-     * @param node Parent node.
-     * @param arg  Relative path argument.
-     * @return The child at position n. Or null on error.
-     */
-    public AccessibilityNodeInfo processRelativeChild(AccessibilityNodeInfo node, String arg) {
-        if (node == null) {
-            return null;
-        }
-        try {
-            int i = Integer.parseInt(arg.replaceAll("[^0-9]", ""));
-            if (i >= 0 && node.getChildCount() > i) {
-                return node.getChild(i);
-            }
-        } catch (NumberFormatException ignore) {
-        }
-        return null;
-    }
-
-    /**
-     * Process the "su" relative path argument and move to the sibling one up.
+     * RuleObserver interface: Called on initial load of the database.
+     * <p>
+     * The rules are not kept here, they are loaded per package when needed. So only the index of
+     * the rule cache is (re)loaded.
      *
-     * @param node Origin node.
-     * @return Sibling one up. Or null on error.
+     * @param rules unused
      */
-    public AccessibilityNodeInfo processRelativeSiblingUp(AccessibilityNodeInfo node) {
-        if (node != null) {
-            // To get the sibling first go to the common parent and iterate over its children. When
-            // we find ourself we go one child back witch is the searched sibling.
-            AccessibilityNodeInfo p = processRelativeParent(node);
-            for (int i = 1; p != null && i < p.getChildCount(); ++i) {
-                if (node.equals(p.getChild(i))) {
-                    return p.getChild(i - 1);
-                }
-            }
-        }
-        return null;
+    @Override
+    public void onRuleLoad(List<Rule> rules) {
+        ruleCache.invalidateAll();
     }
 
     /**
-     * Process the "sd" relative path argument and move to the sibling one down.
+     * RuleObserver interface: Called when a new rule is added.
+     * <p>
+     * Because this service doesn't need the fine granularity the RuleObserver has, all of
+     * onRuleAdded(), onRuleChanged() and onRuleRemoved() just invalidate the compiled rules of the
+     * affected package.
      *
-     * @param node Origin node.
-     * @return Sibling one down. Or null on error.
+     * @param rule new rule
      */
-    public AccessibilityNodeInfo processRelativeSiblingDown(AccessibilityNodeInfo node) {
-        if (node != null) {
-            // To get the sibling first go to the common parent and iterate over its children. When
-            // we find ourself we go one child further witch is the searched sibling.
-            AccessibilityNodeInfo p = processRelativeParent(node);
-            for (int i = 0; p != null && i < p.getChildCount() - 1; ++i) {
-                if (node.equals(p.getChild(i))) {
-                    return p.getChild(i + 1);
-                }
-            }
-        }
-        return null;
+    @Override
+    public void onRuleAdded(Rule rule) {
+        // This rule may be the first for a specific app. Listened apps are updated with the index.
+        ruleCache.invalidate(rule);
     }
 
     /**
-     * RuleObserver interface: Called when a new rule is added.
+     * RuleObserver interface: Called when a rule is changed, e.g. edited or toggled.
      * <p>
-     * Because this service doesn't need the fine granularity the RuleObserver has, we can mostly
-     * just use the default implementation. Only onRuleAdded() and onRuleRemoved() manage an
-     * ArrayList of the rules and their additional information.
+     * Unlike the default implementation the rule is not removed and added again, so that its
+     * metrics are kept. Only its name is updated.
      *
-     * @param rule new rule
+     * @param rule changed rule
      */
     @Override
-    public void onRuleAdded(Rule rule) {
-        // If rule is added that is not enabled, ignore it.
-        if (!rule.isEnabled()) {
-            Log.d(TAG, "Rule " + rule.name + " is not enabled, ignoring rule.");
-            return;
-        }
-        // Rule has been added to the database, add it to the array list.
-        rules.add(new RuleWithExtras(rule, this));
-        // This rule may be the first for a specific app. Update listened apps.
-        listenToPackagesWithRules();
+    public void onRuleChanged(Rule rule) {
+        ruleCache.invalidate(rule);
+        EngineMetrics.renameRule(rule.id, rule.name);
     }
 
     /**
      * RuleObserver interface: Called when a rule is removed.
      * <p>
-     * Because this service doesn't need the fine granularity the RuleObserver has, we can mostly
-     * just use the default implementation. Only onRuleAdded() and onRuleRemoved() manage an
-     * ArrayList of the rules and their additional information.
+     * Only called when the rule was deleted, so its metrics are dropped with it.
      *
      * @param rule removed rule
      */
     @Override
     public void onRuleRemoved(Rule rule) {
-        // Rule has been removed from the database, remove it from the array list.
-        rules.removeIf(r -> r.r.id == rule.id);
-        // This may have removed the last rule for a specific app. Update listened apps.
-        listenToPackagesWithRules();
+        // This may have removed the last rule for a specific app. Listened apps are updated with
+        // the index.
+        ruleCache.invalidate(rule);
+        EngineMetrics.removeRule(rule.id);
     }
 }
@@ -0,0 +1,201 @@
+package ch.bfh.adaid.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ch.bfh.adaid.db.Condition;
+
+/**
+ * Condition of a rule compiled for evaluation, see {@link Condition}.
+ * <p>
+ * The view ids of all predicates (VIEW nodes) are looked up together with the view ids of the
+ * rules in the same pass of {@link ScreenFingerprint#update}. Evaluating the condition then only
+ * combines the found nodes and texts, no node is looked up twice.
+ * <p>
+ * Combining nodes short-circuit. Their children are ordered by cost, cheapest first, so that a
+ * costly text match is only done if the cheap checks of node counts didn't already decide. The
+ * order doesn't change the result, AND and OR are commutative.
+ *
+ * @author Niklaus Leuenberger
+ */
+class CompiledCondition {
+
+    /**
+     * Cost of checking the node count of a predicate.
+     */
+    private static final int COST_NODE_COUNT = 1;
+
+    /**
+     * Cost of matching the texts of a predicate.
+     */
+    private static final int COST_TEXT_MATCH = 4;
+
+    /**
+     * Found nodes and texts of the looked up predicates.
+     */
+    interface Screen {
+        /**
+         * Get the number of nodes found for a target.
+         *
+         * @param target Index of the target.
+         * @return Number of found nodes.
+         */
+        int getNodeCount(int target);
+
+        /**
+         * Check if any text inside the single found node of a target matches.
+         *
+         * @param target  Index of the target.
+         * @param matcher The matcher of the predicate's view text.
+         * @return true if a text matched, false otherwise.
+         */
+        boolean isMatchingText(int target, Matcher matcher);
+    }
+
+    /**
+     * A compiled node of the condition tree.
+     */
+    private static final class Node {
+        final Condition.Type type;
+        final Node[] children;
+        final int predicate; // index into predicates, only for VIEW nodes
+        final int cost;
+
+        Node(Condition.Type type, Node[] children, int predicate, int cost) {
+            this.type = type;
+            this.children = children;
+            this.predicate = predicate;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * View ids of the predicates, without the common prefix.
+     */
+    final List<String> viewIds = new ArrayList<>();
+
+    /**
+     * Reusable matchers of the predicates' view texts, null entries for predicates without text.
+     * <p>
+     * Note: Matchers are not thread safe. Each rule has its own condition. It is evaluated either on
+     * the main thread or, while the main thread is blocked in the parallel evaluation, by exactly
+     * one task of it, see {@link ParallelRuleEvaluator}.
+     */
+    final List<Matcher> textMatchers = new ArrayList<>();
+
+    /**
+     * Root of the compiled tree.
+     */
+    private final Node root;
+
+    /**
+     * Compile a condition.
+     *
+     * @param condition The root of the condition, must not be empty.
+     */
+    CompiledCondition(Condition condition) {
+        root = compile(condition);
+    }
+
+    /**
+     * Compile the condition of a rule if it has one.
+     *
+     * @param condition The condition of the rule, may be null.
+     * @return The compiled condition or null if the condition is null or empty.
+     */
+    static CompiledCondition of(Condition condition) {
+        return (condition == null || condition.isEmpty()) ? null : new CompiledCondition(condition);
+    }
+
+    /**
+     * Compile a node and its children, recursively.
+     *
+     * @param node The node to compile.
+     * @return The compiled node.
+     */
+    private Node compile(Condition node) {
+        if (node.type == Condition.Type.VIEW) {
+            viewIds.add(node.viewId);
+            textMatchers.add(node.hasViewText() ? Pattern.compile(node.viewText).matcher("") : null);
+            int cost = node.hasViewText() ? COST_TEXT_MATCH : COST_NODE_COUNT;
+            return new Node(node.type, null, viewIds.size() - 1, cost);
+        }
+        Node[] children = new Node[node.children.size()];
+        int cost = 0;
+        for (int i = 0; i < children.length; i++) {
+            children[i] = compile(node.children.get(i));
+            cost += children[i].cost;
+        }
+        Arrays.sort(children, Comparator.comparingInt(n -> n.cost));
+        return new Node(node.type, children, -1, cost);
+    }
+
+    /**
+     * Get the number of predicates.
+     *
+     * @return Number of VIEW nodes.
+     */
+    int getPredicateCount() {
+        return viewIds.size();
+    }
+
+    /**
+     * Checks if any predicate has a view text.
+     *
+     * @return true if texts have to be collected.
+     */
+    boolean hasViewText() {
+        for (int i = 0; i < textMatchers.size(); i++) {
+            if (textMatchers.get(i) != null) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Evaluate the condition.
+     *
+     * @param screen  The found nodes and texts.
+     * @param targets Per predicate the index of its target in the screen.
+     * @return true if the condition is met, false otherwise.
+     */
+    boolean evaluate(Screen screen, int[] targets) {
+        return evaluate(root, screen, targets);
+    }
+
+    /**
+     * Evaluate a node, recursively.
+     *
+     * @param node    The node to evaluate.
+     * @param screen  The found nodes and texts.
+     * @param targets Per predicate the index of its target in the screen.
+     * @return true if the node is met, false otherwise.
+     */
+    private boolean evaluate(Node node, Screen screen, int[] targets) {
+        switch (node.type) {
+            case AND:
+                for (Node child : node.children) {
+                    if (!evaluate(child, screen, targets)) return false;
+                }
+                return true;
+            case OR:
+                for (Node child : node.children) {
+                    if (evaluate(child, screen, targets)) return true;
+                }
+                return false;
+            case NOT:
+                return !evaluate(node.children[0], screen, targets);
+            default:
+                // Like the rule itself, a text can only be searched in a single found node.
+                int target = targets[node.predicate];
+                Matcher matcher = textMatchers.get(node.predicate);
+                if (matcher == null) {
+                    return screen.getNodeCount(target) > 0;
+                }
+                return screen.getNodeCount(target) == 1 && screen.isMatchingText(target, matcher);
+        }
+    }
+}
@@ -0,0 +1,624 @@
+package ch.bfh.adaid.service;
+
+import android.accessibilityservice.AccessibilityService;
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.PatternSyntaxException;
+
+import ch.bfh.adaid.db.Profile;
+import ch.bfh.adaid.db.Rule;
+import ch.bfh.adaid.db.RuleDataSource;
+import ch.bfh.adaid.db.RuleSummary;
+
+/**
+ * Cache of the compiled rules per package, loaded lazily from the database.
+ * <p>
+ * Large imported rule sets may cover hundreds of apps. Keeping all of them compiled, with their
+ * regexes and actions, costs memory for apps that are maybe never opened. So only a small index is
+ * kept resident:
+ * <ul>
+ *     <li>A bitmap of the hashes of all package names with rules. Packages whose bit is not set
+ *         are rejected without any further lookup.</li>
+ *     <li>The plain package names with rules and the union of the event types of all rules, to
+ *         configure what events the service listens to.</li>
+ *     <li>The rules with an app id pattern, as those may apply to any package.</li>
+ * </ul>
+ * The rules of a package are loaded with the first event of the package. The load runs on the
+ * database executor and never blocks the event thread. Until it is done, events of the package are
+ * skipped. Compiled packages are kept in a LRU of {@link #MAX_PACKAGES}, which is trimmed further
+ * when the system is low on memory.
+ * <p>
+ * Rules outside of their scheduled time window are left out of the index and aren't compiled. The
+ * index is reloaded at the next schedule transition, see {@link #getNextScheduleTransition()}.
+ * <p>
+ * Every profile (see {@link Profile}) has its own rule set, i.e. its own index and LRU. A loaded
+ * package is compiled for all profiles at once, so the sets of the other profiles are ready too.
+ * Switching the profile is then a single swap of the active rule set.
+ * <p>
+ * Note: Apart from the listeners for database changes, all methods must be called from the main
+ * thread.
+ *
+ * @author Niklaus Leuenberger
+ */
+class CompiledRuleCache {
+    private static final String TAG = "CompiledRuleCache";
+
+    /**
+     * Maximum number of packages whose rules are kept compiled per profile.
+     */
+    private static final int MAX_PACKAGES = 16;
+
+    /**
+     * Number of bits in the "has rules" bitmap. Must be a power of two.
+     */
+    private static final int BITMAP_SIZE = 1 << 12;
+
+    /**
+     * Cached result for packages without rules.
+     */
+    private static final ScreenFingerprint<AccessibilityNodeInfo> NO_RULES =
+            new ScreenFingerprint<>("", new ArrayList<>(), A11yNodeTree.INSTANCE);
+
+    /**
+     * Index of the enabled rules of a profile, see class description. Built in the background and
+     * not changed anymore once published.
+     */
+    private static final class Index {
+        /**
+         * Ids of the rules of the profile, null if all enabled rules are part of it.
+         */
+        final Set<Long> ruleIds;
+        final BitSet hasRules;
+        final List<String> exactPackages;
+        final int eventTypes;
+        PackageMatcher patterns = new PackageMatcher(Collections.emptyList());
+
+        Index(Set<Long> ruleIds, BitSet hasRules, List<String> exactPackages, int eventTypes) {
+            this.ruleIds = ruleIds;
+            this.hasRules = hasRules;
+            this.exactPackages = exactPackages;
+            this.eventTypes = eventTypes;
+        }
+
+        boolean contains(long ruleId) {
+            return ruleIds == null || ruleIds.contains(ruleId);
+        }
+    }
+
+    /**
+     * Compiled rules of a profile: its index and the compiled packages.
+     */
+    private final class RuleSet {
+        Index index = new Index(null, new BitSet(BITMAP_SIZE), Collections.emptyList(),
+                Rule.DEFAULT_EVENT_TYPES);
+        final LruCache<String, ScreenFingerprint<AccessibilityNodeInfo>> packages =
+                new LruCache<String, ScreenFingerprint<AccessibilityNodeInfo>>(MAX_PACKAGES) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key,
+                                        ScreenFingerprint<AccessibilityNodeInfo> oldValue,
+                                        ScreenFingerprint<AccessibilityNodeInfo> newValue) {
+                // Rules with a pattern are shared between packages and stay resident.
+                for (RuleWithExtras rule : oldValue.rules) {
+                    if (!rule.r.hasAppIdPattern()) {
+                        onRuleDropped.accept(rule);
+                    }
+                }
+            }
+        };
+    }
+
+    private final AccessibilityService service;
+    private final RuleDataSource data;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Called for every rule that is dropped from the cache, so that it can be triggered as gone and
+     * its action released.
+     */
+    private final Consumer<RuleWithExtras> onRuleDropped;
+
+    /**
+     * Called after the index was reloaded or the profile switched, so that the listened packages
+     * and events can be updated.
+     */
+    private final Runnable onIndexChanged;
+
+    /**
+     * Called after the rules of a package were compiled. The event that started the loading was
+     * dropped, so the service can evaluate the package's window now.
+     */
+    private final Consumer<String> onPackageLoaded;
+
+    /**
+     * Rule sets per profile id, {@link Profile#ALL_RULES} for all enabled rules.
+     */
+    private final HashMap<Long, RuleSet> ruleSets = new HashMap<>();
+
+    /**
+     * Rule set of the active profile, the only one rules are executed from.
+     */
+    private RuleSet active;
+    private long activeProfileId = Profile.ALL_RULES;
+
+    /**
+     * Packages whose rules are currently loaded.
+     */
+    private final HashSet<String> loading = new HashSet<>();
+
+    /**
+     * Incremented with every change of the rules. Loads started in an older generation are
+     * discarded. Packages are only compiled if the index is of the current generation.
+     */
+    private int generation;
+    private int indexGeneration = -1;
+
+    /**
+     * Next schedule transition of any rule.
+     */
+    private long nextScheduleTransition = Long.MAX_VALUE;
+
+    /**
+     * Statistics of the cache: number of loaded packages.
+     */
+    private long loads;
+
+    /**
+     * Construct a new cache. The index is loaded with {@link #invalidateAll()}.
+     *
+     * @param service         The a11y service the actions of the rules are built for.
+     * @param data            Data source to load the rules from.
+     * @param onRuleDropped   Called for every rule that is dropped from the cache.
+     * @param onIndexChanged  Called after the index was reloaded or the profile switched.
+     * @param onPackageLoaded Called with the package name after its rules were compiled.
+     */
+    CompiledRuleCache(AccessibilityService service, RuleDataSource data,
+                      Consumer<RuleWithExtras> onRuleDropped, Runnable onIndexChanged,
+                      Consumer<String> onPackageLoaded) {
+        this.service = service;
+        this.data = data;
+        this.onRuleDropped = onRuleDropped;
+        this.onIndexChanged = onIndexChanged;
+        this.onPackageLoaded = onPackageLoaded;
+        active = new RuleSet();
+        ruleSets.put(Profile.ALL_RULES, active);
+    }
+
+    /**
+     * Get the fingerprint of the rules of the package. Starts loading the rules if they are not
+     * compiled yet.
+     *
+     * @param packageName The package of the event.
+     * @return The fingerprint or null if the package has no rules or they are still loading.
+     */
+    ScreenFingerprint<AccessibilityNodeInfo> get(String packageName) {
+        Index index = active.index;
+        if (!index.hasRules.get(packageName.hashCode() & (BITMAP_SIZE - 1))
+                && (!index.patterns.hasPatterns() || index.patterns.match(packageName).isEmpty())) {
+            return null;
+        }
+        ScreenFingerprint<AccessibilityNodeInfo> fingerprint = active.packages.get(packageName);
+        if (fingerprint == null) {
+            load(packageName);
+            return null;
+        }
+        return (fingerprint == NO_RULES) ? null : fingerprint;
+    }
+
+    /**
+     * Load the rules of the package in the background and add them to the cache of every profile.
+     *
+     * @param packageName The package to load the rules for.
+     */
+    private void load(String packageName) {
+        if (!loading.add(packageName)) {
+            return; // already loading
+        }
+        final int loadGeneration = generation;
+        data.loadEnabledRules(Collections.singletonList(packageName), loaded ->
+                mainHandler.post(() -> {
+                    loading.remove(packageName);
+                    if (loadGeneration != generation || indexGeneration != generation) {
+                        return; // rules changed in the meantime, reload with the next event
+                    }
+                    loads++;
+                    // The package was missing in the active profile. The rules of the inactive
+                    // profiles are all gone, their compiled packages can simply be replaced.
+                    for (RuleSet set : ruleSets.values()) {
+                        set.packages.put(packageName, compile(set.index, packageName, loaded));
+                    }
+                    onPackageLoaded.accept(packageName);
+                }));
+    }
+
+    /**
+     * Compile the loaded rules of the package that are part of the profile together with the
+     * matching pattern rules.
+     *
+     * @param index       The index of the profile.
+     * @param packageName The package the rules were loaded for.
+     * @param loaded      The loaded rules in id order.
+     * @return The fingerprint or {@link #NO_RULES}.
+     */
+    private ScreenFingerprint<AccessibilityNodeInfo> compile(Index index, String packageName,
+                                                             List<Rule> loaded) {
+        List<RuleWithExtras> matched = index.patterns.match(packageName);
+        Calendar now = Calendar.getInstance();
+        // Merge by id to keep the priority order of the rules.
+        ArrayList<RuleWithExtras> rules = new ArrayList<>(loaded.size() + matched.size());
+        int m = 0;
+        for (Rule rule : loaded) {
+            if (!index.contains(rule.id) || !rule.isScheduledAt(now)) {
+                continue;
+            }
+            while (m < matched.size() && matched.get(m).r.id < rule.id) {
+                rules.add(matched.get(m++));
+            }
+            RuleWithExtras compiled = compileRule(rule);
+            if (compiled != null) {
+                rules.add(compiled);
+            }
+        }
+        while (m < matched.size()) {
+            rules.add(matched.get(m++));
+        }
+        return rules.isEmpty() ? NO_RULES : new ScreenFingerprint<>(packageName, rules,
+                A11yNodeTree.INSTANCE);
+    }
+
+    /**
+     * Compile a single rule. A rule with an invalid regex, e.g. one stored before the form checked
+     * them, is skipped instead of taking down the whole index with it.
+     *
+     * @param rule The rule to compile.
+     * @return The compiled rule or null if a regex of the rule is invalid.
+     */
+    private RuleWithExtras compileRule(Rule rule) {
+        try {
+            return new RuleWithExtras(rule, service);
+        } catch (PatternSyntaxException e) {
+            Log.e(TAG, "Skipping rule " + rule.name + " with invalid regex: " + e.getDescription());
+            return null;
+        }
+    }
+
+    /**
+     * Drop the compiled rules of the package of a changed rule and reload the index. Can be called
+     * from any thread.
+     *
+     * @param rule The rule that was added, changed or removed.
+     */
+    void invalidate(Rule rule) {
+        mainHandler.post(() -> {
+            generation++;
+            for (RuleSet set : ruleSets.values()) {
+                // A pattern may apply to any package, a plain app id only to itself. A changed rule
+                // may also have been moved away from the package it was compiled for.
+                if (rule.hasAppIdPattern()) {
+                    set.packages.evictAll();
+                    continue;
+                }
+                set.packages.remove(rule.appId);
+                for (ScreenFingerprint<AccessibilityNodeInfo> fingerprint
+                        : set.packages.snapshot().values()) {
+                    for (RuleWithExtras compiled : fingerprint.rules) {
+                        if (compiled.r.id == rule.id) {
+                            set.packages.remove(fingerprint.packageName);
+                            break;
+                        }
+                    }
+                }
+            }
+            loadIndex();
+        });
+    }
+
+    /**
+     * Drop all compiled rules and reload the index. Can be called from any thread.
+     */
+    void invalidateAll() {
+        mainHandler.post(() -> {
+            generation++;
+            for (RuleSet set : ruleSets.values()) {
+                set.packages.evictAll();
+            }
+            loadIndex();
+        });
+    }
+
+    /**
+     * Reload the indexes of all profiles in the background.
+     */
+    private void loadIndex() {
+        final int loadGeneration = generation;
+        data.loadEnabledSummaries(summaries -> data.loadProfileRuleIds(profileRuleIds -> {
+            long newNextScheduleTransition = Long.MAX_VALUE;
+            Calendar now = Calendar.getInstance();
+            ArrayList<Rule> scheduled = new ArrayList<>(summaries.size());
+            ArrayList<String> patternAppIds = new ArrayList<>();
+            for (RuleSummary summary : summaries) {
+                Rule rule = new Rule();
+                rule.id = summary.id;
+                rule.appId = summary.appId;
+                rule.eventTypes = summary.eventTypes;
+                rule.scheduleStart = summary.scheduleStart;
+                rule.scheduleEnd = summary.scheduleEnd;
+                rule.scheduleDays = summary.scheduleDays;
+                newNextScheduleTransition = Math.min(newNextScheduleTransition,
+                        rule.getNextScheduleTransition(now));
+                if (!rule.isScheduledAt(now)) {
+                    continue; // inactive until the next transition
+                }
+                scheduled.add(rule);
+                if (rule.hasAppIdPattern() && !patternAppIds.contains(rule.appId)) {
+                    patternAppIds.add(rule.appId);
+                }
+            }
+            HashMap<Long, Index> newIndexes = new HashMap<>();
+            newIndexes.put(Profile.ALL_RULES, buildIndex(null, scheduled));
+            for (Map.Entry<Long, Set<Long>> profile : profileRuleIds.entrySet()) {
+                newIndexes.put(profile.getKey(), buildIndex(profile.getValue(), scheduled));
+            }
+            final long finalNextScheduleTransition = newNextScheduleTransition;
+            // The pattern rules are few and needed for any package, load them right away.
+            data.loadEnabledRules(patternAppIds, patternRules -> mainHandler.post(() -> {
+                if (loadGeneration != generation) {
+                    return; // another reload is already underway
+                }
+                swapIndexes(newIndexes, patternRules);
+                indexGeneration = generation;
+                nextScheduleTransition = finalNextScheduleTransition;
+                onIndexChanged.run();
+            }));
+        }));
+    }
+
+    /**
+     * Build the index of a profile.
+     *
+     * @param ruleIds   The ids of the rules of the profile, null for all rules.
+     * @param scheduled The currently scheduled rules, only the summarized attributes are set.
+     * @return The index, without the pattern rules.
+     */
+    private static Index buildIndex(Set<Long> ruleIds, List<Rule> scheduled) {
+        BitSet hasRules = new BitSet(BITMAP_SIZE);
+        ArrayList<String> exactPackages = new ArrayList<>();
+        int eventTypes = Rule.DEFAULT_EVENT_TYPES;
+        for (Rule rule : scheduled) {
+            if (ruleIds != null && !ruleIds.contains(rule.id)) {
+                continue;
+            }
+            eventTypes |= rule.getSubscribedEventTypes();
+            if (!rule.hasAppIdPattern() && !exactPackages.contains(rule.appId)) {
+                exactPackages.add(rule.appId);
+                hasRules.set(rule.appId.hashCode() & (BITMAP_SIZE - 1));
+            }
+        }
+        return new Index(ruleIds, hasRules, exactPackages, eventTypes);
+    }
+
+    /**
+     * Publish the reloaded indexes. Rule sets of deleted profiles are dropped, those of new
+     * profiles are created.
+     *
+     * @param newIndexes   The new index per profile id.
+     * @param patternRules All scheduled and enabled rules with an app id pattern.
+     */
+    private void swapIndexes(Map<Long, Index> newIndexes, List<Rule> patternRules) {
+        for (Iterator<Map.Entry<Long, RuleSet>> it = ruleSets.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, RuleSet> entry = it.next();
+            if (!newIndexes.containsKey(entry.getKey())) {
+                dropPatternRules(entry.getValue());
+                entry.getValue().packages.evictAll();
+                it.remove();
+            }
+        }
+        for (Map.Entry<Long, Index> entry : newIndexes.entrySet()) {
+            RuleSet set = ruleSets.get(entry.getKey());
+            if (set == null) {
+                set = new RuleSet();
+                ruleSets.put(entry.getKey(), set);
+            }
+            Index index = entry.getValue();
+            ArrayList<RuleWithExtras> compiled = new ArrayList<>();
+            for (Rule rule : patternRules) {
+                RuleWithExtras compiledRule = index.contains(rule.id) ? compileRule(rule) : null;
+                if (compiledRule != null) {
+                    compiled.add(compiledRule);
+                }
+            }
+            index.patterns = new PackageMatcher(compiled);
+            // Compiled packages reference the old pattern rules, those have to be rebuilt.
+            if (set.index.patterns.hasPatterns() || !compiled.isEmpty()) {
+                set.packages.evictAll();
+            }
+            dropPatternRules(set);
+            set.index = index;
+        }
+        // A profile without rules has an empty index and stays active as such. Only an unknown
+        // profile falls back to all rules.
+        RuleSet newActive = ruleSets.get(activeProfileId);
+        active = (newActive != null) ? newActive : ruleSets.get(Profile.ALL_RULES);
+        Log.d(TAG, ruleSets.size() + " profiles indexed, the active one has "
+                + active.index.exactPackages.size() + " packages and "
+                + active.index.patterns.getRules().size() + " pattern rules");
+    }
+
+    /**
+     * Drop the pattern rules of a rule set as gone.
+     *
+     * @param set The rule set.
+     */
+    private void dropPatternRules(RuleSet set) {
+        for (RuleWithExtras rule : set.index.patterns.getRules()) {
+            onRuleDropped.accept(rule);
+        }
+    }
+
+    /**
+     * Switch the profile whose rules are executed. The rules of the previous profile are dropped
+     * as gone. If the profile is unknown, e.g. because it was deleted, all rules are executed.
+     *
+     * @param profileId The id of the profile, {@link Profile#ALL_RULES} for all enabled rules.
+     */
+    void setActiveProfile(long profileId) {
+        activeProfileId = profileId;
+        RuleSet newActive = ruleSets.get(profileId);
+        if (newActive == null) {
+            newActive = ruleSets.get(Profile.ALL_RULES);
+        }
+        if (newActive == active) {
+            return;
+        }
+        // The compiled packages stay, so switching back is just as fast. But their rules have to
+        // trigger again once the profile is active again.
+        for (ScreenFingerprint<AccessibilityNodeInfo> fingerprint : getFingerprints()) {
+            for (RuleWithExtras rule : fingerprint.rules) {
+                onRuleDropped.accept(rule);
+            }
+            fingerprint.invalidate();
+        }
+        dropPatternRules(active);
+        active = newActive;
+        Log.d(TAG, "Switched to profile " + profileId);
+        onIndexChanged.run();
+    }
+
+    /**
+     * Trim the cache according to the memory level of the system.
+     *
+     * @param level The level from {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            // Inactive profiles are only compiled to switch faster, they can be reloaded.
+            for (RuleSet set : ruleSets.values()) {
+                if (set != active) {
+                    set.packages.evictAll();
+                }
+            }
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            // Keep only the most recently used package, most likely the one in the foreground.
+            active.packages.trimToSize(1);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            active.packages.trimToSize(MAX_PACKAGES / 2);
+        }
+    }
+
+    /**
+     * Get the fingerprints of all compiled packages of the active profile.
+     *
+     * @return The fingerprints.
+     */
+    Collection<ScreenFingerprint<AccessibilityNodeInfo>> getFingerprints() {
+        return active.packages.snapshot().values();
+    }
+
+    /**
+     * Get the rules of the active profile with an app id pattern, those are always compiled.
+     *
+     * @return The rules.
+     */
+    List<RuleWithExtras> getPatternRules() {
+        return active.index.patterns.getRules();
+    }
+
+    /**
+     * Checks if any rule of the active profile has an app id pattern. Then events of all packages
+     * have to be received.
+     *
+     * @return true if there are patterns, false if all rules have a plain package name.
+     */
+    boolean hasPatterns() {
+        return active.index.patterns.hasPatterns();
+    }
+
+    /**
+     * Get the plain package names that have rules in the active profile.
+     *
+     * @return The package names.
+     */
+    List<String> getExactPackages() {
+        return active.index.exactPackages;
+    }
+
+    /**
+     * Get the union of the event types of all rules of the active profile.
+     *
+     * @return Mask of AccessibilityEvent.TYPE_* values.
+     */
+    int getEventTypes() {
+        return active.index.eventTypes;
+    }
+
+    /**
+     * Get the next instant at which a rule becomes active or inactive. The index has to be
+     * reloaded then with {@link #invalidateAll()}.
+     *
+     * @return The instant in milliseconds since the epoch, Long.MAX_VALUE if there is none.
+     */
+    long getNextScheduleTransition() {
+        return nextScheduleTransition;
+    }
+
+    /**
+     * Get a short human readable summary of the cache statistics for diagnostics.
+     *
+     * @return The summary.
+     */
+    String getStatistics() {
+        return active.packages.size() + "/" + MAX_PACKAGES + " packages compiled, " + loads
+                + " loads, " + active.packages.hitCount() + " hits, " + active.packages.missCount()
+                + " misses, " + ruleSets.size() + " profiles";
+    }
+
+    /**
+     * Dump the index and the compiled packages of every profile, for the dump of the service.
+     *
+     * @param writer The writer to print to.
+     * @param prefix Prefix of every line.
+     */
+    void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + getStatistics());
+        for (Map.Entry<Long, RuleSet> entry : ruleSets.entrySet()) {
+            RuleSet set = entry.getValue();
+            Index index = set.index;
+            writer.println(prefix + ((entry.getKey() == Profile.ALL_RULES) ? "all rules"
+                    : "profile " + entry.getKey())
+                    + ((index.ruleIds == null) ? "" : " with " + index.ruleIds.size() + " rules")
+                    + ((set == active) ? " (active)" : "") + ":");
+            writer.println(prefix + "  exact packages: " + String.join(", ", index.exactPackages));
+            for (RuleWithExtras rule : index.patterns.getRules()) {
+                writer.printf(Locale.ROOT, "%s  pattern rule #%d %s: %s%n", prefix, rule.r.id,
+                        rule.r.name, rule.r.appId);
+            }
+            writer.print(prefix + "  compiled packages:");
+            for (Map.Entry<String, ScreenFingerprint<AccessibilityNodeInfo>> compiled
+                    : set.packages.snapshot().entrySet()) {
+                ScreenFingerprint<AccessibilityNodeInfo> fingerprint = compiled.getValue();
+                writer.print(" " + compiled.getKey() + " ("
+                        + ((fingerprint == NO_RULES) ? 0 : fingerprint.rules.size()) + " rules)");
+            }
+            writer.println();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ch.bfh.adaid.service;
+
+import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+
+import java.util.Locale;
+
+import ch.bfh.adaid.db.Rule;
+
+/**
+ * Filter of rules by the content change types of an event.
+ * <p>
+ * Window content change events tell with {@link AccessibilityEvent#getContentChangeTypes()} what
+ * changed: the subtree, only the text, only the content description or only some state. Each rule
+ * depends on a subset of those:
+ * <ul>
+ *     <li>Every rule depends on structural changes, as those may add or remove its view.</li>
+ *     <li>Rules with a view text additionally depend on text changes.</li>
+ * </ul>
+ * Content description, state description and similar changes can't affect any rule, as rules only
+ * match view ids and texts. Events of other types and events with an undefined change type may
+ * have changed anything and affect every rule.
+ *
+ * @author Niklaus Leuenberger
+ */
+class ContentChangeFilter {
+    private static final String TAG = "ContentChangeFilter";
+
+    /**
+     * Change types that add, remove or replace views.
+     */
+    private static final int STRUCTURAL_CHANGES = AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE
+            | AccessibilityEvent.CONTENT_CHANGE_TYPE_PANE_APPEARED
+            | AccessibilityEvent.CONTENT_CHANGE_TYPE_PANE_DISAPPEARED;
+
+    /**
+     * Mask of an event that may have changed anything.
+     */
+    static final int ALL_CHANGES = -1;
+
+    /**
+     * Statistics of the filter: number of rule evaluations that passed the filter and that were
+     * removed by it.
+     */
+    private long evaluations;
+    private long removed;
+
+    /**
+     * Get the content change types a rule depends on.
+     *
+     * @param rule      The rule.
+     * @param condition The compiled condition of the rule, null if it has none.
+     * @return Mask of AccessibilityEvent.CONTENT_CHANGE_TYPE_* values.
+     */
+    static int getDependencies(Rule rule, CompiledCondition condition) {
+        int dependencies = STRUCTURAL_CHANGES;
+        if (rule.hasViewText() || (condition != null && condition.hasViewText())) {
+            dependencies |= AccessibilityEvent.CONTENT_CHANGE_TYPE_TEXT;
+        }
+        return dependencies;
+    }
+
+    /**
+     * Get the content change types of an event.
+     *
+     * @param event The event that is processed.
+     * @return Mask of AccessibilityEvent.CONTENT_CHANGE_TYPE_* values or {@link #ALL_CHANGES} if
+     * the event may have changed anything.
+     */
+    static int getChangeTypes(AccessibilityEvent event) {
+        if (event.getEventType() != AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED) {
+            return ALL_CHANGES;
+        }
+        int changeTypes = event.getContentChangeTypes();
+        return (changeTypes == AccessibilityEvent.CONTENT_CHANGE_TYPE_UNDEFINED) ? ALL_CHANGES : changeTypes;
+    }
+
+    /**
+     * Checks if any rule of a package is affected by the changes. If not, all its rules that
+     * would have been evaluated for the event are counted as removed evaluations.
+     *
+     * @param fingerprint The fingerprint of the package.
+     * @param eventType   The type of the event.
+     * @param changeTypes The change types of the event.
+     * @return true if the rules of the package have to be evaluated, false otherwise.
+     */
+    boolean isAffected(ScreenFingerprint<?> fingerprint, int eventType, int changeTypes) {
+        if ((fingerprint.contentChangeDependencies & changeTypes) != 0) {
+            return true;
+        }
+        for (int i = 0; i < fingerprint.rules.size(); i++) {
+            if (fingerprint.rules.get(i).isSubscribedTo(eventType)) {
+                removed++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if a rule is affected by the changes and counts the evaluation as done or removed.
+     *
+     * @param rule        The rule to check.
+     * @param changeTypes The change types of the event.
+     * @return true if the rule has to be evaluated, false otherwise.
+     */
+    boolean isAffected(RuleWithExtras rule, int changeTypes) {
+        if ((rule.contentChangeDependencies & changeTypes) != 0) {
+            evaluations++;
+            return true;
+        }
+        removed++;
+        return false;
+    }
+
+    /**
+     * Get the rate of evaluations that were removed by the filter.
+     *
+     * @return removed rate between 0 and 1.
+     */
+    double getRemovedRate() {
+        long total = evaluations + removed;
+        return total == 0 ? 0 : (double) removed / total;
+    }
+
+    /**
+     * Get a short human readable summary of the filter statistics for diagnostics.
+     *
+     * @return The summary.
+     */
+    String getStatistics() {
+        return String.format(Locale.ROOT, "%d of %d evaluations removed (%.1f %%)",
+                removed, evaluations + removed, getRemovedRate() * 100);
+    }
+
+    /**
+     * Log the filter statistics.
+     */
+    void logStatistics() {
+        Log.d(TAG, "Content change filter: " + getStatistics());
+    }
+}
@@ -0,0 +1,409 @@
+package ch.bfh.adaid.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ch.bfh.adaid.action.ActionType;
+
+/**
+ * Registry of the metrics of the rule engine, i.e. what the service costs while it runs.
+ * <p>
+ * All metrics are lock-free: counters are atomic longs and latencies are recorded in histograms
+ * with fixed buckets. The metrics of packages and rules are created once and then referenced, so
+ * recording a value never allocates. They are read by the diagnostics of the app, which run in the
+ * same process.
+ *
+ * @author Niklaus Leuenberger
+ */
+public final class EngineMetrics {
+
+    /**
+     * Latency histogram with fixed buckets.
+     */
+    public static final class Histogram {
+        /**
+         * Upper bounds (inclusive) of the buckets in microseconds. A last bucket takes all larger
+         * values.
+         */
+        static final long[] BOUNDS_MICROS = {
+                50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000
+        };
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MICROS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumMicros = new AtomicLong();
+
+        /**
+         * Record a latency.
+         *
+         * @param nanos The latency in nanoseconds.
+         */
+        public void record(long nanos) {
+            long micros = nanos / 1_000;
+            int bucket = 0;
+            while (bucket < BOUNDS_MICROS.length && micros > BOUNDS_MICROS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            sumMicros.addAndGet(micros);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Get the mean of the recorded latencies.
+         *
+         * @return The mean in microseconds, 0 if nothing was recorded.
+         */
+        public long getMeanMicros() {
+            long n = count.get();
+            return (n == 0) ? 0 : sumMicros.get() / n;
+        }
+
+        /**
+         * Estimate a percentile of the recorded latencies as the upper bound of its bucket.
+         *
+         * @param percentile The percentile between 0 and 100.
+         * @return The estimate in microseconds, 0 if nothing was recorded and -1 if it falls into
+         * the last, unbounded bucket.
+         */
+        public long getPercentileMicros(double percentile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS_MICROS.length; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return BOUNDS_MICROS[i];
+                }
+            }
+            return -1;
+        }
+
+        long getBucket(int index) {
+            return buckets.get(index);
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sumMicros.set(0);
+        }
+    }
+
+    /**
+     * Metrics of the events of a package.
+     */
+    public static final class PackageMetrics {
+        public final String packageName;
+
+        /**
+         * Events received from the package.
+         */
+        public final AtomicLong received = new AtomicLong();
+
+        /**
+         * Events that were not evaluated because nothing the rules depend on changed, they are
+         * coalesced with the previous evaluation.
+         */
+        public final AtomicLong coalesced = new AtomicLong();
+
+        /**
+         * Events for which the rules were evaluated.
+         */
+        public final AtomicLong processed = new AtomicLong();
+
+        PackageMetrics(String packageName) {
+            this.packageName = packageName;
+        }
+
+        void reset() {
+            received.set(0);
+            coalesced.set(0);
+            processed.set(0);
+        }
+    }
+
+    /**
+     * Metrics of a rule.
+     */
+    public static final class RuleMetrics {
+        public final long ruleId;
+        public volatile String name;
+
+        /**
+         * Time of the evaluations of the rule, including its action.
+         */
+        public final Histogram evaluationTime = new Histogram();
+
+        /**
+         * Estimated binder calls the relative path of the rule needed.
+         */
+        public final AtomicLong binderCalls = new AtomicLong();
+
+        /**
+         * Number of times the action of the rule was triggered.
+         */
+        public final AtomicLong triggers = new AtomicLong();
+
+        RuleMetrics(long ruleId, String name) {
+            this.ruleId = ruleId;
+            this.name = name;
+        }
+
+        void reset() {
+            evaluationTime.reset();
+            binderCalls.set(0);
+            triggers.set(0);
+        }
+    }
+
+    /**
+     * Metrics of a cache of the engine, i.e. how many requests it could serve without a binder call
+     * or a lookup.
+     */
+    public static final class CacheMetrics {
+        public final String name;
+
+        /**
+         * Requests to the cache.
+         */
+        public final AtomicLong requests = new AtomicLong();
+
+        /**
+         * Requests that were served from the cache.
+         */
+        public final AtomicLong hits = new AtomicLong();
+
+        CacheMetrics(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Get the rate of requests that were served from the cache.
+         *
+         * @return The hit rate between 0 and 1, 0 if nothing was requested.
+         */
+        public double getHitRate() {
+            long n = requests.get();
+            return (n == 0) ? 0 : (double) hits.get() / n;
+        }
+
+        void reset() {
+            requests.set(0);
+            hits.set(0);
+        }
+    }
+
+    /**
+     * Caches of the engine, see {@link NegativeLookupCache}, {@link WindowCache} and
+     * {@link NodeRetriever}.
+     */
+    public static final CacheMetrics NEGATIVE_LOOKUPS = new CacheMetrics("negative lookups");
+    public static final CacheMetrics WINDOW_ROOTS = new CacheMetrics("window roots");
+    public static final CacheMetrics WINDOW_NODES = new CacheMetrics("window nodes");
+    public static final CacheMetrics DEEP_SCAN_CHILDREN = new CacheMetrics("deep scan children");
+    public static final CacheMetrics SNAPSHOT_CHILDREN = new CacheMetrics("snapshot children");
+
+    private static final List<CacheMetrics> caches = List.of(NEGATIVE_LOOKUPS, WINDOW_ROOTS,
+            WINDOW_NODES, DEEP_SCAN_CHILDREN, SNAPSHOT_CHILDREN);
+
+    private static final Map<String, PackageMetrics> packages = new ConcurrentHashMap<>();
+    private static final Map<Long, RuleMetrics> rules = new ConcurrentHashMap<>();
+
+    /**
+     * Latency from the event to the triggered action, indexed by {@link ActionType#ordinal()}.
+     */
+    private static final Histogram[] actionLatencies = new Histogram[ActionType.values().length];
+
+    static {
+        for (int i = 0; i < actionLatencies.length; i++) {
+            actionLatencies[i] = new Histogram();
+        }
+    }
+
+    private EngineMetrics() {
+    }
+
+    /**
+     * Get the metrics of a package, they are created on first use.
+     *
+     * @param packageName The package.
+     * @return The metrics.
+     */
+    public static PackageMetrics getPackage(String packageName) {
+        PackageMetrics metrics = packages.get(packageName);
+        return (metrics != null) ? metrics
+                : packages.computeIfAbsent(packageName, PackageMetrics::new);
+    }
+
+    /**
+     * Get the metrics of a rule, they are created on first use. They are kept when the rule is
+     * compiled again, only the name is updated.
+     *
+     * @param ruleId The id of the rule.
+     * @param name   The current name of the rule.
+     * @return The metrics.
+     */
+    public static RuleMetrics getRule(long ruleId, String name) {
+        RuleMetrics metrics = rules.computeIfAbsent(ruleId, id -> new RuleMetrics(id, name));
+        metrics.name = name;
+        return metrics;
+    }
+
+    /**
+     * Update the name of a changed rule, its metrics are kept.
+     *
+     * @param ruleId The id of the rule.
+     * @param name   The new name of the rule.
+     */
+    public static void renameRule(long ruleId, String name) {
+        RuleMetrics metrics = rules.get(ruleId);
+        if (metrics != null) {
+            metrics.name = name;
+        }
+    }
+
+    /**
+     * Drop the metrics of a removed rule.
+     *
+     * @param ruleId The id of the rule.
+     */
+    public static void removeRule(long ruleId) {
+        rules.remove(ruleId);
+    }
+
+    /**
+     * Get the latency histogram of an action type.
+     *
+     * @param type The action type.
+     * @return The histogram.
+     */
+    public static Histogram getActionLatency(ActionType type) {
+        return actionLatencies[type.ordinal()];
+    }
+
+    /**
+     * Get the metrics of all packages.
+     *
+     * @return The metrics, sorted by the number of received events, the most first.
+     */
+    public static List<PackageMetrics> getPackages() {
+        List<PackageMetrics> list = new ArrayList<>(packages.values());
+        list.sort((a, b) -> Long.compare(b.received.get(), a.received.get()));
+        return list;
+    }
+
+    /**
+     * Get the metrics of all rules.
+     *
+     * @return The metrics, sorted by the total evaluation time, the most first.
+     */
+    public static List<RuleMetrics> getRules() {
+        List<RuleMetrics> list = new ArrayList<>(rules.values());
+        list.sort((a, b) -> Long.compare(
+                b.evaluationTime.getMeanMicros() * b.evaluationTime.getCount(),
+                a.evaluationTime.getMeanMicros() * a.evaluationTime.getCount()));
+        return list;
+    }
+
+    /**
+     * Get the metrics of all caches.
+     *
+     * @return The metrics, in a fixed order.
+     */
+    public static List<CacheMetrics> getCaches() {
+        return caches;
+    }
+
+    /**
+     * Reset all metrics to zero. Packages and rules stay registered.
+     */
+    public static void reset() {
+        for (PackageMetrics metrics : packages.values()) {
+            metrics.reset();
+        }
+        for (RuleMetrics metrics : rules.values()) {
+            metrics.reset();
+        }
+        for (Histogram histogram : actionLatencies) {
+            histogram.reset();
+        }
+        for (CacheMetrics metrics : caches) {
+            metrics.reset();
+        }
+    }
+
+    /**
+     * Export all metrics as CSV with the columns kind, name, metric and value. Histograms are
+     * exported with count, mean, p50, p95 and the count of every bucket.
+     *
+     * @return The CSV text.
+     */
+    public static String toCsv() {
+        StringBuilder csv = new StringBuilder("kind,name,metric,value\n");
+        for (PackageMetrics metrics : getPackages()) {
+            appendRow(csv, "package", metrics.packageName, "received", metrics.received.get());
+            appendRow(csv, "package", metrics.packageName, "coalesced", metrics.coalesced.get());
+            appendRow(csv, "package", metrics.packageName, "processed", metrics.processed.get());
+        }
+        for (RuleMetrics metrics : getRules()) {
+            String name = metrics.ruleId + " " + metrics.name;
+            appendHistogram(csv, "rule", name, "evaluation", metrics.evaluationTime);
+            appendRow(csv, "rule", name, "binder_calls", metrics.binderCalls.get());
+            appendRow(csv, "rule", name, "triggers", metrics.triggers.get());
+        }
+        for (ActionType type : ActionType.values()) {
+            appendHistogram(csv, "action", type.name(), "latency", getActionLatency(type));
+        }
+        for (CacheMetrics metrics : caches) {
+            appendRow(csv, "cache", metrics.name, "requests", metrics.requests.get());
+            appendRow(csv, "cache", metrics.name, "hits", metrics.hits.get());
+        }
+        return csv.toString();
+    }
+
+    private static void appendHistogram(StringBuilder csv, String kind, String name, String metric,
+                                        Histogram histogram) {
+        appendRow(csv, kind, name, metric + "_count", histogram.getCount());
+        appendRow(csv, kind, name, metric + "_mean_us", histogram.getMeanMicros());
+        appendRow(csv, kind, name, metric + "_p50_us", histogram.getPercentileMicros(50));
+        appendRow(csv, kind, name, metric + "_p95_us", histogram.getPercentileMicros(95));
+        for (int i = 0; i <= Histogram.BOUNDS_MICROS.length; i++) {
+            String bound = (i < Histogram.BOUNDS_MICROS.length)
+                    ? Long.toString(Histogram.BOUNDS_MICROS[i]) : "inf";
+            appendRow(csv, kind, name, metric + "_le_" + bound + "_us", histogram.getBucket(i));
+        }
+    }
+
+    private static void appendRow(StringBuilder csv, String kind, String name, String metric,
+                                  long value) {
+        csv.append(kind).append(',').append(quote(name)).append(',').append(metric).append(',')
+                .append(String.format(Locale.ROOT, "%d", value)).append('\n');
+    }
+
+    /**
+     * Quote a field of the CSV if needed, e.g. rule names may contain commas.
+     */
+    private static String quote(String field) {
+        if (field == null) {
+            return "";
+        } else if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0) {
+            return field;
+        }
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,73 @@
+package ch.bfh.adaid.service;
+
+import android.os.PowerManager;
+
+/**
+ * Quality levels of the rule engine. Lower levels trade reaction time and completeness for a lower
+ * cost, e.g. while the battery saver is on or the device is hot.
+ *
+ * @author Niklaus Leuenberger
+ */
+public enum EngineQuality {
+    /**
+     * Everything enabled, used when the device has no constraints.
+     */
+    FULL(true, true, 10, 1),
+
+    /**
+     * Used in battery saver mode or with a moderate thermal status: No parallel evaluation, low
+     * priority rules are skipped, overlays follow their views slower and events are coalesced
+     * over a longer window.
+     */
+    REDUCED(false, false, 50, 4),
+
+    /**
+     * Used with a severe thermal status or in battery saver mode on a warm device.
+     */
+    MINIMAL(false, false, 200, 10);
+
+    /**
+     * If rules may be evaluated in parallel.
+     */
+    final boolean parallelEvaluation;
+
+    /**
+     * If rules marked as low priority are evaluated.
+     */
+    final boolean lowPriorityRules;
+
+    /**
+     * Interval in ms at which block overlays are moved with their views.
+     */
+    final long overlayUpdateInterval;
+
+    /**
+     * Factor of the minimum notification timeout, i.e. the coalescing window of events.
+     */
+    final int timeoutFactor;
+
+    EngineQuality(boolean parallelEvaluation, boolean lowPriorityRules, long overlayUpdateInterval,
+                  int timeoutFactor) {
+        this.parallelEvaluation = parallelEvaluation;
+        this.lowPriorityRules = lowPriorityRules;
+        this.overlayUpdateInterval = overlayUpdateInterval;
+        this.timeoutFactor = timeoutFactor;
+    }
+
+    /**
+     * Choose the quality level for the state of the device.
+     *
+     * @param powerSave     If the battery saver is on.
+     * @param thermalStatus The thermal status, one of PowerManager.THERMAL_STATUS_*.
+     * @return The quality level.
+     */
+    static EngineQuality fromPowerState(boolean powerSave, int thermalStatus) {
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE
+                || (powerSave && thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE)) {
+            return MINIMAL;
+        } else if (powerSave || thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE) {
+            return REDUCED;
+        }
+        return FULL;
+    }
+}
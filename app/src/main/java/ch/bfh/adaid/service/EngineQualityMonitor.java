@@ -0,0 +1,123 @@
+package ch.bfh.adaid.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Monitor of the battery saver and the thermal status that chooses the quality level of the rule
+ * engine, see {@link EngineQuality}. The user may override the automatic choice.
+ *
+ * @author Niklaus Leuenberger
+ */
+class EngineQualityMonitor {
+    private static final String TAG = "EngineQualityMonitor";
+
+    private final Context context;
+    private final PowerManager powerManager;
+
+    /**
+     * Called on the main thread whenever {@link #getQuality()} changed.
+     */
+    private final Runnable onChange;
+
+    /**
+     * Receiver of battery saver changes.
+     */
+    private final BroadcastReceiver powerSaveReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            update();
+        }
+    };
+
+    /**
+     * Listener of thermal status changes.
+     */
+    private final PowerManager.OnThermalStatusChangedListener thermalListener = status -> update();
+
+    /**
+     * Quality chosen by the user, null to choose automatically.
+     */
+    private EngineQuality override;
+
+    /**
+     * Currently effective quality.
+     */
+    private EngineQuality quality;
+
+    /**
+     * Construct a new monitor and start listening to the power state.
+     *
+     * @param context  Context of the a11y service.
+     * @param override Quality chosen by the user, null to choose automatically.
+     * @param onChange Called on the main thread when the quality changed.
+     */
+    EngineQualityMonitor(Context context, EngineQuality override, Runnable onChange) {
+        this.context = context;
+        this.override = override;
+        this.onChange = onChange;
+        powerManager = context.getSystemService(PowerManager.class);
+        quality = choose();
+        context.registerReceiver(powerSaveReceiver,
+                new IntentFilter(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED),
+                Context.RECEIVER_NOT_EXPORTED);
+        powerManager.addThermalStatusListener(context.getMainExecutor(), thermalListener);
+    }
+
+    /**
+     * Get the currently effective quality.
+     *
+     * @return The quality level.
+     */
+    EngineQuality getQuality() {
+        return quality;
+    }
+
+    /**
+     * Check if the quality was chosen automatically.
+     *
+     * @return true if the user did not override the quality.
+     */
+    boolean isAutomatic() {
+        return override == null;
+    }
+
+    /**
+     * Override the automatic choice of the quality.
+     *
+     * @param override Quality chosen by the user, null to choose automatically again.
+     */
+    void setOverride(EngineQuality override) {
+        this.override = override;
+        update();
+    }
+
+    /**
+     * Stop listening to the power state.
+     */
+    void shutdown() {
+        context.unregisterReceiver(powerSaveReceiver);
+        powerManager.removeThermalStatusListener(thermalListener);
+    }
+
+    private void update() {
+        EngineQuality chosen = choose();
+        if (chosen != quality) {
+            Log.d(TAG, "Engine quality changed from " + quality + " to " + chosen);
+            quality = chosen;
+            onChange.run();
+        }
+    }
+
+    private EngineQuality choose() {
+        if (override != null) {
+            return override;
+        }
+        return EngineQuality.fromPowerState(powerManager.isPowerSaveMode(),
+                powerManager.getCurrentThermalStatus());
+    }
+}
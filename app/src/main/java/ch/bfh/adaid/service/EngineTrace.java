@@ -0,0 +1,126 @@
+package ch.bfh.adaid.service;
+
+import android.os.Trace;
+
+/**
+ * Markers of the rule pipeline for system traces, e.g. captured with Perfetto.
+ * <p>
+ * All methods check first if tracing is enabled. Otherwise they return right away, names with
+ * dynamic parts are only built while tracing. As tracing may be switched on or off between the
+ * begin and the end of a section, begin returns whether a section was started and end takes that
+ * result. This keeps the sections balanced:
+ * <pre>
+ * boolean traced = EngineTrace.begin("rule ", name);
+ * try { ... } finally { EngineTrace.end(traced); }
+ * </pre>
+ * Names are prefixed with "AdAid " so that they are easy to find in a trace.
+ *
+ * @author Niklaus Leuenberger
+ */
+public final class EngineTrace {
+
+    private static final String PREFIX = "AdAid ";
+
+    /**
+     * Maximum length of a section name accepted by the framework.
+     */
+    private static final int MAX_NAME_LENGTH = 127;
+
+    private EngineTrace() {
+    }
+
+    /**
+     * Check if tracing is enabled.
+     *
+     * @return true if a trace is being captured.
+     */
+    public static boolean isEnabled() {
+        return Trace.isEnabled();
+    }
+
+    /**
+     * Begin a section on the current thread.
+     *
+     * @param name The name of the section.
+     * @return true if the section was started and must be ended with {@link #end(boolean)}.
+     */
+    public static boolean begin(String name) {
+        if (!Trace.isEnabled()) {
+            return false;
+        }
+        Trace.beginSection(buildName(name, null));
+        return true;
+    }
+
+    /**
+     * Begin a section on the current thread with a dynamic detail, e.g. the name of a rule.
+     *
+     * @param name   The name of the section.
+     * @param detail The detail appended to the name, only read while tracing.
+     * @return true if the section was started and must be ended with {@link #end(boolean)}.
+     */
+    public static boolean begin(String name, CharSequence detail) {
+        if (!Trace.isEnabled()) {
+            return false;
+        }
+        Trace.beginSection(buildName(name, detail));
+        return true;
+    }
+
+    /**
+     * End a section begun on the current thread.
+     *
+     * @param begun The result of the begin call.
+     */
+    public static void end(boolean begun) {
+        if (begun) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Begin an asynchronous slice, it may end on any thread.
+     *
+     * @param name   The name of the slice.
+     * @param cookie Identifies the slice among concurrent ones with the same name.
+     * @return true if the slice was started and must be ended with
+     * {@link #endAsync(String, int, boolean)}.
+     */
+    public static boolean beginAsync(String name, int cookie) {
+        if (!Trace.isEnabled()) {
+            return false;
+        }
+        Trace.beginAsyncSection(PREFIX + name, cookie);
+        return true;
+    }
+
+    /**
+     * End an asynchronous slice.
+     *
+     * @param name   The name of the slice.
+     * @param cookie The cookie the slice was begun with.
+     * @param begun  The result of the begin call.
+     */
+    public static void endAsync(String name, int cookie, boolean begun) {
+        if (begun) {
+            Trace.endAsyncSection(PREFIX + name, cookie);
+        }
+    }
+
+    /**
+     * Set the value of a counter track.
+     *
+     * @param name  The name of the counter.
+     * @param value The current value.
+     */
+    public static void counter(String name, long value) {
+        if (Trace.isEnabled()) {
+            Trace.setCounter(PREFIX + name, value);
+        }
+    }
+
+    private static String buildName(String name, CharSequence detail) {
+        String full = (detail == null) ? PREFIX + name : PREFIX + name + detail;
+        return (full.length() > MAX_NAME_LENGTH) ? full.substring(0, MAX_NAME_LENGTH) : full;
+    }
+}
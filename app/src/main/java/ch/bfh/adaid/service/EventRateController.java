@@ -0,0 +1,231 @@
+package ch.bfh.adaid.service;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Adaptive controller of the notification timeout of the a11y service.
+ * <p>
+ * The framework delivers at most one event per type and timeout. A fixed timeout is a bad fit for
+ * all apps: chatty apps, e.g. with animations or a video player, flood the service while quiet
+ * apps would react faster with a shorter timeout. So per package the rate of the received events
+ * and the time their evaluation took are measured. From those the load of the package is
+ * calculated, i.e. the fraction of time the service spends evaluating its events:
+ * <ul>
+ *     <li>Above {@link #HIGH_LOAD} the package floods the service, its timeout is doubled.</li>
+ *     <li>Below {@link #LOW_LOAD} the package is quiet, its timeout decays towards the minimum.</li>
+ * </ul>
+ * The timeout always stays within the configured bounds. Right after the foreground changed, i.e.
+ * the user switched screens and is interacting with the app, the minimum timeout is used so that
+ * rules react as fast as possible.
+ * <p>
+ * The timeout applies to the whole service, so the one of the package that currently sends the
+ * events is used. Each package keeps its learned timeout, switching back to a chatty app restores
+ * its timeout right away.
+ *
+ * @author Niklaus Leuenberger
+ */
+class EventRateController {
+
+    /**
+     * Load above which a package is considered to flood the service.
+     */
+    private static final double HIGH_LOAD = 0.25;
+
+    /**
+     * Load below which a package is considered quiet.
+     */
+    private static final double LOW_LOAD = 0.05;
+
+    /**
+     * Weight of a new sample in the running means.
+     */
+    private static final double WEIGHT = 1.0 / 8;
+
+    /**
+     * Duration after a foreground change in which the minimum timeout is used.
+     */
+    private static final long BOOST_NANOS = 3_000_000_000L;
+
+    /**
+     * Minimum time between two changes of the applied timeout, each change is an IPC call.
+     */
+    private static final long APPLY_INTERVAL_NANOS = 1_000_000_000L;
+
+    /**
+     * Minimum difference for the applied timeout to be changed.
+     */
+    private static final int APPLY_THRESHOLD_MILLIS = 10;
+
+    /**
+     * Maximum number of packages whose state is remembered.
+     */
+    private static final int MAX_PACKAGES = 32;
+
+    /**
+     * Measured state of a package.
+     */
+    private static class PackageState {
+        long lastEventNanos;
+        double meanIntervalMillis;
+        double meanEvaluationMillis;
+        int timeoutMillis;
+    }
+
+    private final Map<String, PackageState> packages = new LinkedHashMap<String, PackageState>(
+            16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PackageState> eldest) {
+            return size() > MAX_PACKAGES;
+        }
+    };
+
+    /**
+     * Configured bounds of the timeout.
+     */
+    private final int configuredMinTimeoutMillis;
+    private final int maxTimeoutMillis;
+
+    /**
+     * Effective lower bound of the timeout, the configured one scaled by the engine quality.
+     */
+    private int minTimeoutMillis;
+
+    /**
+     * Currently applied timeout and when it was applied.
+     */
+    private int appliedTimeoutMillis;
+    private long appliedNanos;
+
+    /**
+     * Set if the bounds changed since the timeout was last applied.
+     */
+    private boolean boundsChanged;
+
+    /**
+     * End of the boost after the last foreground change.
+     */
+    private long boostUntilNanos;
+
+    /**
+     * Statistics: number of changes of the applied timeout.
+     */
+    private long changes;
+
+    /**
+     * Construct a new controller.
+     *
+     * @param minTimeoutMillis     Lower bound of the timeout.
+     * @param maxTimeoutMillis     Upper bound of the timeout.
+     * @param initialTimeoutMillis The timeout the service was configured with.
+     */
+    EventRateController(int minTimeoutMillis, int maxTimeoutMillis, int initialTimeoutMillis) {
+        this.configuredMinTimeoutMillis = minTimeoutMillis;
+        this.minTimeoutMillis = minTimeoutMillis;
+        this.maxTimeoutMillis = Math.max(minTimeoutMillis, maxTimeoutMillis);
+        appliedTimeoutMillis = initialTimeoutMillis;
+    }
+
+    /**
+     * Scale the lower bound of the timeout, e.g. to coalesce events over a longer window while the
+     * battery saver is on. The upper bound stays.
+     *
+     * @param factor Factor of the configured lower bound, 1 to use it as is.
+     */
+    void setMinimumTimeoutFactor(int factor) {
+        minTimeoutMillis = Math.min(maxTimeoutMillis, configuredMinTimeoutMillis * factor);
+        for (PackageState state : packages.values()) {
+            state.timeoutMillis = Math.max(minTimeoutMillis, state.timeoutMillis);
+        }
+        // Apply the new bound with the next event.
+        boundsChanged = true;
+    }
+
+    /**
+     * Record that the foreground changed. The user is interacting, so rules should react fast.
+     *
+     * @param nowNanos Current time of System.nanoTime().
+     */
+    void onForegroundChanged(long nowNanos) {
+        boostUntilNanos = nowNanos + BOOST_NANOS;
+    }
+
+    /**
+     * Record an event of a package and the time its evaluation took.
+     *
+     * @param packageName     The package of the event.
+     * @param nowNanos        Time the event was received, of System.nanoTime().
+     * @param evaluationNanos Time the evaluation of the event took.
+     */
+    void onEvent(String packageName, long nowNanos, long evaluationNanos) {
+        PackageState state = packages.get(packageName);
+        if (state == null) {
+            state = new PackageState();
+            state.timeoutMillis = appliedTimeoutMillis;
+            state.meanIntervalMillis = Math.max(1, appliedTimeoutMillis);
+            state.lastEventNanos = nowNanos;
+            packages.put(packageName, state);
+        } else {
+            double interval = (nowNanos - state.lastEventNanos) / 1e6;
+            state.lastEventNanos = nowNanos;
+            state.meanIntervalMillis += (interval - state.meanIntervalMillis) * WEIGHT;
+        }
+        state.meanEvaluationMillis += (evaluationNanos / 1e6 - state.meanEvaluationMillis) * WEIGHT;
+        double load = state.meanEvaluationMillis / Math.max(1, state.meanIntervalMillis);
+        if (load > HIGH_LOAD) {
+            state.timeoutMillis = Math.min(maxTimeoutMillis, Math.max(1, state.timeoutMillis) * 2);
+        } else if (load < LOW_LOAD) {
+            state.timeoutMillis = Math.max(minTimeoutMillis, state.timeoutMillis * 3 / 4);
+        }
+    }
+
+    /**
+     * Get the timeout that should be applied now for the package that sends the events.
+     *
+     * @param packageName The package of the last event.
+     * @param nowNanos    Current time of System.nanoTime().
+     * @return The new timeout in milliseconds or -1 if the applied timeout should stay.
+     */
+    int getTimeoutToApply(String packageName, long nowNanos) {
+        PackageState state = packages.get(packageName);
+        int timeout = (nowNanos < boostUntilNanos || state == null) ? minTimeoutMillis
+                : state.timeoutMillis;
+        if (!boundsChanged && (Math.abs(timeout - appliedTimeoutMillis) < APPLY_THRESHOLD_MILLIS
+                || nowNanos - appliedNanos < APPLY_INTERVAL_NANOS)) {
+            return -1;
+        }
+        boundsChanged = false;
+        appliedTimeoutMillis = timeout;
+        appliedNanos = nowNanos;
+        changes++;
+        return timeout;
+    }
+
+    /**
+     * Get a short human readable summary of the controller for diagnostics.
+     *
+     * @return The summary.
+     */
+    String getStatistics() {
+        return String.format(Locale.ROOT, "notification timeout %d ms [%d, %d], %d changes, %d packages",
+                appliedTimeoutMillis, minTimeoutMillis, maxTimeoutMillis, changes, packages.size());
+    }
+
+    /**
+     * Write the measured event rates of the packages to a dump of the service.
+     *
+     * @param writer The writer of the dump.
+     * @param prefix The indentation of the lines.
+     */
+    void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + getStatistics());
+        for (Map.Entry<String, PackageState> entry : packages.entrySet()) {
+            PackageState state = entry.getValue();
+            writer.printf(Locale.ROOT, "%s  %s: %.1f events/s, %.2f ms evaluation, timeout %d ms%n",
+                    prefix, entry.getKey(), 1000 / Math.max(1, state.meanIntervalMillis),
+                    state.meanEvaluationMillis, state.timeoutMillis);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package ch.bfh.adaid.service;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.view.accessibility.AccessibilityEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Watchdog of the main thread while it processes accessibility events.
+ * <p>
+ * The service does all its work on the main thread. If an event holds it for too long, overlays
+ * stutter and the system may consider the service unresponsive. The watchdog timestamps the start
+ * and end of every event. If the event is still running when its budget runs out, a thread of the
+ * watchdog takes a sample of the stack of the main thread. Events that exceeded their budget are
+ * kept with their package, the evaluated rules, the visited nodes and the stack sample in a ring
+ * buffer, see {@link #getSlowEvents()}.
+ *
+ * @author Niklaus Leuenberger
+ */
+public class EventWatchdog {
+
+    /**
+     * Time an event may hold the main thread, in ms.
+     */
+    public static final long BUDGET_MILLIS = 50;
+
+    /**
+     * Maximum number of slow events that are kept, the oldest ones are dropped.
+     */
+    private static final int CAPACITY = 32;
+
+    /**
+     * Maximum number of stack frames of a sample.
+     */
+    private static final int MAX_STACK_FRAMES = 24;
+
+    /**
+     * An event that exceeded its budget.
+     */
+    public static class SlowEvent {
+        /**
+         * When the event started, in milliseconds since the epoch.
+         */
+        public final long time;
+        public final String packageName;
+        public final int eventType;
+        public final long durationMillis;
+
+        /**
+         * Number of rules that were evaluated and the names of all rules of the package.
+         */
+        public final int rulesEvaluated;
+        public final String rules;
+
+        /**
+         * Number of nodes that were found or retrieved while processing the event.
+         */
+        public final long nodesVisited;
+
+        /**
+         * Stack of the main thread when the budget ran out, null if no sample was taken.
+         */
+        public final String stackSample;
+
+        SlowEvent(long time, String packageName, int eventType, long durationMillis,
+                  int rulesEvaluated, String rules, long nodesVisited, String stackSample) {
+            this.time = time;
+            this.packageName = packageName;
+            this.eventType = eventType;
+            this.durationMillis = durationMillis;
+            this.rulesEvaluated = rulesEvaluated;
+            this.rules = rules;
+            this.nodesVisited = nodesVisited;
+            this.stackSample = stackSample;
+        }
+
+        /**
+         * Get the name of the event type.
+         *
+         * @return The name, e.g. TYPE_WINDOW_CONTENT_CHANGED.
+         */
+        public String getEventTypeName() {
+            return AccessibilityEvent.eventTypeToString(eventType);
+        }
+    }
+
+    /**
+     * Ring buffer of the slow events, shared with the diagnostics of the app.
+     */
+    private static final SlowEvent[] slowEvents = new SlowEvent[CAPACITY];
+    private static int nextSlowEvent;
+
+    private final HandlerThread thread = new HandlerThread("EventWatchdog");
+    private final Handler handler;
+    private final Thread mainThread = Looper.getMainLooper().getThread();
+
+    /**
+     * Takes the stack sample on the thread of the watchdog.
+     */
+    private final Runnable sampler = this::sampleStack;
+
+    /**
+     * State of the currently processed event.
+     */
+    private long startNanos;
+    private CharSequence packageName;
+    private int eventType;
+    private int rulesEvaluated;
+    private long childrenAtStart;
+    private ScreenFingerprint<?> fingerprint;
+    private volatile String stackSample;
+
+    /**
+     * Construct a new watchdog and start its thread.
+     */
+    EventWatchdog() {
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Get the events that exceeded their budget.
+     *
+     * @return The slow events, the newest first.
+     */
+    public static List<SlowEvent> getSlowEvents() {
+        List<SlowEvent> events = new ArrayList<>(CAPACITY);
+        synchronized (slowEvents) {
+            for (int i = 1; i <= CAPACITY; i++) {
+                SlowEvent event = slowEvents[(nextSlowEvent - i + CAPACITY) % CAPACITY];
+                if (event == null) {
+                    break;
+                }
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Start watching an event.
+     *
+     * @param packageName The package of the event, only converted to a string if the event is slow.
+     * @param eventType   The type of the event.
+     */
+    void begin(CharSequence packageName, int eventType) {
+        startNanos = System.nanoTime();
+        this.packageName = packageName; // only converted for slow events
+        this.eventType = eventType;
+        rulesEvaluated = 0;
+        childrenAtStart = getRetrievedChildren();
+        fingerprint = null;
+        stackSample = null;
+        handler.postDelayed(sampler, BUDGET_MILLIS);
+    }
+
+    /**
+     * Record the fingerprint whose rules are evaluated for the event.
+     *
+     * @param fingerprint The fingerprint of the package.
+     */
+    void onFingerprint(ScreenFingerprint<?> fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Record that a rule was evaluated for the event.
+     */
+    void onRuleEvaluated() {
+        rulesEvaluated++;
+    }
+
+    /**
+     * Get the number of rules evaluated for the event so far.
+     *
+     * @return The number of rules.
+     */
+    int getRulesEvaluated() {
+        return rulesEvaluated;
+    }
+
+    /**
+     * Stop watching the event. If it exceeded its budget it is recorded as slow event.
+     */
+    void end() {
+        handler.removeCallbacks(sampler);
+        long durationMillis = (System.nanoTime() - startNanos) / 1_000_000;
+        if (durationMillis <= BUDGET_MILLIS) {
+            packageName = null;
+            fingerprint = null;
+            return;
+        }
+        // Only collect the details of slow events, the fast path stays free of allocations.
+        long nodes = getRetrievedChildren() - childrenAtStart;
+        StringBuilder rules = new StringBuilder();
+        if (fingerprint != null) {
+            for (int i = 0; i < fingerprint.targets.size(); i++) {
+                nodes += fingerprint.targets.get(i).nodes.size();
+            }
+            for (int i = 0; i < fingerprint.rules.size(); i++) {
+                if (i > 0) rules.append(", ");
+                rules.append(fingerprint.rules.get(i).r.name);
+            }
+        }
+        SlowEvent event = new SlowEvent(System.currentTimeMillis() - durationMillis,
+                (packageName == null) ? null : packageName.toString(), eventType, durationMillis,
+                rulesEvaluated, rules.toString(), nodes, stackSample);
+        synchronized (slowEvents) {
+            slowEvents[nextSlowEvent] = event;
+            nextSlowEvent = (nextSlowEvent + 1) % CAPACITY;
+        }
+        packageName = null;
+        fingerprint = null;
+    }
+
+    /**
+     * Stop the thread of the watchdog.
+     */
+    void shutdown() {
+        handler.removeCallbacks(sampler);
+        thread.quitSafely();
+    }
+
+    /**
+     * Take a sample of the stack of the main thread. Runs on the thread of the watchdog while the
+     * event is still being processed.
+     */
+    private void sampleStack() {
+        StackTraceElement[] frames = mainThread.getStackTrace();
+        StringBuilder sample = new StringBuilder();
+        for (int i = 0; i < frames.length && i < MAX_STACK_FRAMES; i++) {
+            sample.append("at ").append(frames[i]).append('\n');
+        }
+        stackSample = sample.toString();
+    }
+
+    private static long getRetrievedChildren() {
+        return NodeRetriever.DEEP_SCAN.getRetrievedChildren()
+                + NodeRetriever.SNAPSHOT.getRetrievedChildren();
+    }
+}
@@ -0,0 +1,131 @@
+package ch.bfh.adaid.service;
+
+import android.content.ComponentName;
+import android.content.pm.PackageManager;
+import android.view.accessibility.AccessibilityEvent;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Tracks the activity and window title in the foreground from window state change events.
+ * <p>
+ * Window state changes are sent for activities as well as for dialogs, popups and menus. Their
+ * class name is only taken as new activity if it is an activity of the package, so that a dialog
+ * on top of an activity doesn't lose the activity. Whether a class is an activity is asked the
+ * package manager once per class and then remembered. The title is taken from the text of the
+ * event, which is the label of the activity or the title of the dialog.
+ *
+ * @author Niklaus Leuenberger
+ */
+class ForegroundTracker {
+
+    private final PackageManager packageManager;
+
+    /**
+     * Remembered answers of the package manager, per "package/class" if it is an activity.
+     */
+    private final HashMap<String, Boolean> activityClasses = new HashMap<>();
+
+    /**
+     * The current foreground. Any of those can be null if unknown.
+     */
+    private String packageName;
+    private String activityName;
+    private String windowTitle;
+
+    /**
+     * Incremented every time the foreground changes.
+     */
+    private int generation;
+
+    /**
+     * Construct a new tracker.
+     *
+     * @param packageManager Package manager to resolve activity classes.
+     */
+    ForegroundTracker(PackageManager packageManager) {
+        this.packageManager = packageManager;
+    }
+
+    /**
+     * Update the foreground with the event. Only window state changes of whole windows are used,
+     * pane changes inside a window are ignored.
+     *
+     * @param event The event that is processed.
+     * @return true if the foreground changed, false otherwise.
+     */
+    boolean onEvent(AccessibilityEvent event) {
+        if (event.getEventType() != AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+                || event.getContentChangeTypes() != 0 || event.getPackageName() == null) {
+            return false;
+        }
+        String newPackageName = event.getPackageName().toString();
+        // A dialog keeps the activity of its package, another package doesn't.
+        String newActivityName = newPackageName.equals(packageName) ? activityName : null;
+        CharSequence className = event.getClassName();
+        if (className != null && isActivity(newPackageName, className.toString())) {
+            newActivityName = className.toString();
+        }
+        List<CharSequence> text = event.getText();
+        String newWindowTitle = (text == null || text.isEmpty() || text.get(0) == null)
+                ? null : text.get(0).toString();
+        if (newPackageName.equals(packageName) && Objects.equals(newActivityName, activityName)
+                && Objects.equals(newWindowTitle, windowTitle)) {
+            return false;
+        }
+        packageName = newPackageName;
+        activityName = newActivityName;
+        windowTitle = newWindowTitle;
+        generation++;
+        return true;
+    }
+
+    /**
+     * Checks if the class is an activity of the package.
+     *
+     * @param packageName The package of the window.
+     * @param className   The class of the window.
+     * @return true if it is an activity, false otherwise.
+     */
+    private boolean isActivity(String packageName, String className) {
+        return activityClasses.computeIfAbsent(packageName + "/" + className, k -> {
+            try {
+                packageManager.getActivityInfo(new ComponentName(packageName, className), 0);
+                return true;
+            } catch (PackageManager.NameNotFoundException e) {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Get the generation of the foreground. Changes every time the foreground changes.
+     *
+     * @return The generation.
+     */
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Get the class name of the foreground activity of the package.
+     *
+     * @param appId The package the activity is requested for.
+     * @return The class name or null if unknown or another package is in the foreground.
+     */
+    String getActivityName(String appId) {
+        return appId.equals(packageName) ? activityName : null;
+    }
+
+    /**
+     * Get the title of the foreground window of the package.
+     *
+     * @param appId The package the title is requested for.
+     * @return The title or null if unknown or another package is in the foreground.
+     */
+    String getWindowTitle(String appId) {
+        return appId.equals(packageName) ? windowTitle : null;
+    }
+}
@@ -0,0 +1,122 @@
+package ch.bfh.adaid.service;
+
+import android.os.SystemClock;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+/**
+ * Remembers which view ids are absent from the current window.
+ * <p>
+ * Most rules target screens the user isn't on right now. Those rules would still pay for a lookup
+ * of their view id on every event. This cache remembers the ids that were not found and lets the
+ * lookups be skipped until a structural change of the window is signaled:
+ * <ul>
+ *     <li>The window that is searched has another id than before.</li>
+ *     <li>The window state changed, e.g. a new activity or dialog was opened.</li>
+ *     <li>A view was scrolled and may have revealed new views.</li>
+ *     <li>The subtree of the window root changed.</li>
+ * </ul>
+ * Content changes deeper in the tree are not considered structural. As a safeguard against missed
+ * signals an absent entry is re-checked anyway after {@link #MAX_ENTRY_AGE} ms.
+ * <p>
+ * Entries are stored in the {@link ScreenFingerprint.Target}s themselves as generation number.
+ * Invalidating the cache just starts a new generation and doesn't need to touch any entries.
+ *
+ * @author Niklaus Leuenberger
+ */
+class NegativeLookupCache {
+
+    /**
+     * Maximum time an absent entry is trusted without a structural change signal.
+     */
+    private static final long MAX_ENTRY_AGE = 1000; // ms
+
+    /**
+     * Id of the window the entries are valid for.
+     */
+    private int windowId = -1;
+
+    /**
+     * Current generation of the entries. Entries of older generations are invalid.
+     */
+    private int generation = 0;
+
+    /**
+     * Flag if any entry was recorded in the current generation.
+     */
+    private boolean hasEntries;
+
+    /**
+     * Time of the currently processed event.
+     */
+    private long now;
+
+    /**
+     * Check the event for structural change signals and invalidate the cache if necessary. Must be
+     * called for every event before any lookups of it are done.
+     *
+     * @param event The event that is processed.
+     * @param root  The root node of the window that is searched.
+     */
+    void onEvent(AccessibilityEvent event, AccessibilityNodeInfo root) {
+        now = SystemClock.uptimeMillis();
+        if (root.getWindowId() != windowId) {
+            windowId = root.getWindowId();
+            invalidate();
+        } else if (event.getEventType() == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+                || event.getEventType() == AccessibilityEvent.TYPE_VIEW_SCROLLED) {
+            invalidate();
+        } else if (hasEntries && (event.getContentChangeTypes()
+                & AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE) != 0) {
+            // Only fetch the source if there is anything to invalidate at all.
+            AccessibilityNodeInfo source = event.getSource();
+            if (source == null || source.equals(root)) {
+                invalidate();
+            }
+        }
+    }
+
+    /**
+     * Forget all absent view ids.
+     */
+    void invalidate() {
+        generation++;
+        hasEntries = false;
+    }
+
+    /**
+     * Checks if the view id of the target is known to be absent. Counts towards the hit rate in the
+     * {@link EngineMetrics}.
+     *
+     * @param target The target to check.
+     * @return true if the lookup can be skipped, false if it has to be done.
+     */
+    boolean isAbsent(ScreenFingerprint.Target<?> target) {
+        EngineMetrics.NEGATIVE_LOOKUPS.requests.incrementAndGet();
+        if (target.absentGeneration == generation && now - target.absentSince < MAX_ENTRY_AGE) {
+            EngineMetrics.NEGATIVE_LOOKUPS.hits.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record that the view id of the target was found in the window.
+     *
+     * @param target The target that was found.
+     */
+    void recordPresent(ScreenFingerprint.Target<?> target) {
+        target.absentGeneration = -1;
+    }
+
+    /**
+     * Record that the view id of the target was not found in the window.
+     *
+     * @param target The target that was not found.
+     */
+    void recordAbsent(ScreenFingerprint.Target<?> target) {
+        target.absentGeneration = generation;
+        target.absentSince = now;
+        hasEntries = true;
+    }
+}
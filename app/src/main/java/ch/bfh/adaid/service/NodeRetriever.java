@@ -0,0 +1,96 @@
+package ch.bfh.adaid.service;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+/**
+ * Retrieval of child nodes with a prefetching strategy that fits the traversal.
+ * <p>
+ * Every child that is not yet in the a11y cache of the service costs a binder call to the app that
+ * owns the window. With such a call the app can prefetch a batch of further nodes (up to
+ * {@link AccessibilityNodeInfo#MAX_NUMBER_OF_PREFETCHED_NODES}) into the cache. Which nodes are
+ * prefetched is chosen with a strategy. If the strategy matches the order in which the traversal
+ * visits the nodes, most of the following children are served from the cache without a binder
+ * call:
+ * <ul>
+ *     <li>{@link #DEEP_SCAN}: Depth first, for recursive scans of a subtree like the text search
+ *         of a rule.</li>
+ *     <li>{@link #SNAPSHOT}: Breadth first hybrid, for snapshots of the whole window.</li>
+ * </ul>
+ * Children that are already cached never cause a prefetch, so passing the strategy is free.
+ * <p>
+ * The cache of the service can't be inspected. So every retrieval is timed: A child served from the
+ * cache is a lookup in memory and takes a few microseconds, one that needed a binder call takes a
+ * round trip to the app. Retrievals slower than {@link #BINDER_CALL_NANOS} are counted as binder
+ * calls, the others as served from the cache. Both are counted in the {@link EngineMetrics}.
+ * <p>
+ * Note: Like all node access, the retrievers must only be used from the main thread.
+ *
+ * @author Niklaus Leuenberger
+ */
+class NodeRetriever {
+
+    /**
+     * Retriever for recursive scans of a subtree.
+     */
+    static final NodeRetriever DEEP_SCAN = new NodeRetriever(
+            EngineMetrics.DEEP_SCAN_CHILDREN,
+            AccessibilityNodeInfo.FLAG_PREFETCH_DESCENDANTS_DEPTH_FIRST);
+
+    /**
+     * Retriever for snapshots of the whole window.
+     */
+    static final NodeRetriever SNAPSHOT = new NodeRetriever(
+            EngineMetrics.SNAPSHOT_CHILDREN,
+            AccessibilityNodeInfo.FLAG_PREFETCH_DESCENDANTS_HYBRID);
+
+    /**
+     * Retrievals that take longer than this are counted as binder calls.
+     */
+    private static final long BINDER_CALL_NANOS = 50_000;
+
+    private final EngineMetrics.CacheMetrics metrics;
+    private final int prefetchingStrategy;
+
+    /**
+     * Number of retrieved children. Unlike the metrics never reset, see {@link EventWatchdog}.
+     */
+    private long children;
+
+    /**
+     * Construct a new retriever.
+     *
+     * @param metrics             Metrics the retrievals are counted in.
+     * @param prefetchingStrategy Prefetching flags of {@link AccessibilityNodeInfo}.
+     */
+    private NodeRetriever(EngineMetrics.CacheMetrics metrics, int prefetchingStrategy) {
+        this.metrics = metrics;
+        this.prefetchingStrategy = prefetchingStrategy;
+    }
+
+    /**
+     * Get a child of the node with the prefetching strategy of this retriever.
+     *
+     * @param parent The node to get the child of.
+     * @param index  The index of the child.
+     * @return The child node or null if it is not available.
+     */
+    AccessibilityNodeInfo getChild(AccessibilityNodeInfo parent, int index) {
+        long start = System.nanoTime();
+        AccessibilityNodeInfo child = parent.getChild(index, prefetchingStrategy);
+        children++;
+        metrics.requests.incrementAndGet();
+        if (System.nanoTime() - start <= BINDER_CALL_NANOS) {
+            metrics.hits.incrementAndGet();
+        }
+        return child;
+    }
+
+    /**
+     * Get the number of children retrieved so far.
+     *
+     * @return The number of children.
+     */
+    long getRetrievedChildren() {
+        return children;
+    }
+}
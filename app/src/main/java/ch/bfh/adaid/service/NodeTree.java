@@ -0,0 +1,94 @@
+package ch.bfh.adaid.service;
+
+import java.util.List;
+
+/**
+ * Access to the nodes of a window, as needed by the per event matching of the rules.
+ * <p>
+ * The {@link ScreenFingerprint} and the {@link Selector} only walk the nodes through this
+ * interface. On the device the nodes are a11y nodes, see {@link A11yNodeTree}. Host tests drive the
+ * same code over plain objects, as a11y nodes can't be created there.
+ * <p>
+ * Two nodes are the same view if they are equal, their hash code identifies the view.
+ *
+ * @param <N> Type of the nodes.
+ * @author Niklaus Leuenberger
+ */
+interface NodeTree<N> {
+
+    /**
+     * Find the nodes with the view id in the subtree of the node, including the node itself.
+     *
+     * @param node           The node to search below.
+     * @param completeViewId The complete view id as android expects it.
+     * @return The found nodes, empty if none was found.
+     */
+    List<N> findByViewId(N node, String completeViewId);
+
+    /**
+     * Get the parent of the node.
+     *
+     * @param node The node.
+     * @return The parent or null if the node is the root.
+     */
+    N getParent(N node);
+
+    /**
+     * Get the number of children of the node.
+     *
+     * @param node The node.
+     * @return The number of children.
+     */
+    int getChildCount(N node);
+
+    /**
+     * Get a child of the node.
+     *
+     * @param node  The node.
+     * @param index The index of the child.
+     * @return The child or null if it is not available.
+     */
+    N getChild(N node, int index);
+
+    /**
+     * Get a child of the node during a recursive scan of its subtree, see
+     * {@link NodeRetriever#DEEP_SCAN}.
+     *
+     * @param node  The node.
+     * @param index The index of the child.
+     * @return The child or null if it is not available.
+     */
+    N getScannedChild(N node, int index);
+
+    /**
+     * Get the text of the node.
+     *
+     * @param node The node.
+     * @return The text or null if the node has none.
+     */
+    CharSequence getText(N node);
+
+    /**
+     * Get the complete view id of the node.
+     *
+     * @param node The node.
+     * @return The view id or null if the view has none.
+     */
+    String getViewId(N node);
+
+    /**
+     * Get the package name of the app the node belongs to.
+     *
+     * @param node The node.
+     * @return The package name or null if unknown.
+     */
+    CharSequence getPackageName(N node);
+
+    /**
+     * Update the node to the current state of its view.
+     *
+     * @param node The node.
+     * @return true if the view still exists, false otherwise.
+     */
+    boolean refresh(N node);
+}
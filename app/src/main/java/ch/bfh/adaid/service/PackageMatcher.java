@@ -0,0 +1,149 @@
+package ch.bfh.adaid.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled matcher of the rules with an app id pattern (see {@link ch.bfh.adaid.db.Rule#appId}).
+ * <p>
+ * The patterns are compiled once:
+ * <ul>
+ *     <li>Patterns like "com.google.android.*" that only end with a wildcard are stored in a prefix
+ *         trie. Walking the package name through it yields all of them at once.</li>
+ *     <li>Any other pattern is compiled into a regex and checked one by one.</li>
+ * </ul>
+ * The result is memoized per concrete package, so every package is only matched against the
+ * patterns once. Further lookups of a package, also of packages no pattern matches, are a single
+ * hash lookup.
+ * <p>
+ * Note: The memo is only accessed from the main thread. A new matcher is built for every change of
+ * the rules.
+ *
+ * @author Niklaus Leuenberger
+ */
+class PackageMatcher {
+
+    /**
+     * Node of the prefix trie.
+     */
+    private static class TrieNode {
+        final HashMap<Character, TrieNode> children = new HashMap<>();
+        final ArrayList<RuleWithExtras> rules = new ArrayList<>();
+    }
+
+    /**
+     * All rules with a pattern in priority order.
+     */
+    private final List<RuleWithExtras> rules;
+
+    /**
+     * Rules with a prefix pattern, stored under their prefix.
+     */
+    private final TrieNode prefixes = new TrieNode();
+
+    /**
+     * Rules with any other pattern and their compiled regex.
+     */
+    private final ArrayList<RuleWithExtras> patternRules = new ArrayList<>();
+    private final ArrayList<Pattern> patterns = new ArrayList<>();
+
+    /**
+     * Matching rules per concrete package seen so far.
+     */
+    private final HashMap<String, List<RuleWithExtras>> memo = new HashMap<>();
+
+    /**
+     * Compile the app id patterns of the given rules.
+     *
+     * @param rules Rules with an app id pattern in priority order.
+     */
+    PackageMatcher(List<RuleWithExtras> rules) {
+        this.rules = new ArrayList<>(rules);
+        for (RuleWithExtras rule : this.rules) {
+            String appId = rule.r.appId;
+            if (!rule.r.isAppIdRegex() && appId.indexOf('*') == appId.length() - 1) {
+                TrieNode node = prefixes;
+                for (int i = 0; i < appId.length() - 1; i++) {
+                    node = node.children.computeIfAbsent(appId.charAt(i), k -> new TrieNode());
+                }
+                node.rules.add(rule);
+            } else {
+                patternRules.add(rule);
+                patterns.add(Pattern.compile(rule.r.getAppIdRegex()));
+            }
+        }
+    }
+
+    /**
+     * Checks if there are any patterns. Then events of all packages have to be received.
+     *
+     * @return true if there are patterns, false otherwise.
+     */
+    boolean hasPatterns() {
+        return !rules.isEmpty();
+    }
+
+    /**
+     * Get all rules of the matcher.
+     *
+     * @return The rules in priority order.
+     */
+    List<RuleWithExtras> getRules() {
+        return rules;
+    }
+
+    /**
+     * Get the rules whose pattern matches the package.
+     *
+     * @param packageName The concrete package name.
+     * @return The matching rules in priority order, empty if none matches.
+     */
+    List<RuleWithExtras> match(String packageName) {
+        List<RuleWithExtras> matched = memo.get(packageName);
+        if (matched == null) {
+            matched = matchUncached(packageName);
+            memo.put(packageName, matched);
+        }
+        return matched;
+    }
+
+    /**
+     * Match the package against all patterns.
+     *
+     * @param packageName The concrete package name.
+     * @return The matching rules in priority order.
+     */
+    private List<RuleWithExtras> matchUncached(String packageName) {
+        if (rules.isEmpty()) {
+            return Collections.emptyList();
+        }
+        ArrayList<RuleWithExtras> matched = new ArrayList<>();
+        TrieNode node = prefixes;
+        matched.addAll(node.rules);
+        for (int i = 0; i < packageName.length() && node != null; i++) {
+            node = node.children.get(packageName.charAt(i));
+            if (node != null) {
+                matched.addAll(node.rules);
+            }
+        }
+        for (int i = 0; i < patterns.size(); i++) {
+            if (patterns.get(i).matcher(packageName).matches()) {
+                matched.add(patternRules.get(i));
+            }
+        }
+        if (matched.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // Keep the priority order of the rules.
+        ArrayList<RuleWithExtras> ordered = new ArrayList<>(matched.size());
+        for (RuleWithExtras rule : rules) {
+            if (matched.contains(rule)) {
+                ordered.add(rule);
+            }
+        }
+        return ordered;
+    }
+}
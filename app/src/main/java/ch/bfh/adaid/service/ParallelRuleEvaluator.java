@@ -0,0 +1,249 @@
+package ch.bfh.adaid.service;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+
+/**
+ * Evaluates the conditions of many rules in parallel.
+ * <p>
+ * With hundreds of rules for one app, e.g. an imported block list, matching the view texts of all
+ * rules is CPU-bound even if no binder calls are needed. Above {@link #RULE_THRESHOLD} rules the
+ * matching is split across a small ForkJoin pool:
+ * <ol>
+ *     <li>The nodes and texts the rules depend on are captured into an immutable
+ *         {@link CapturedScreen}. The {@link ScreenFingerprint} already looked them up in one
+ *         batch, so this only copies the references.</li>
+ *     <li>The rules are split into chunks that are matched against the captured screen in
+ *         parallel. Only plain data is accessed, no a11y nodes.</li>
+ *     <li>The results are merged and returned to the main thread, which resolves relative paths
+ *         and dispatches the actions in priority order.</li>
+ * </ol>
+ * Only one evaluation runs at a time, the main thread waits for it in {@link ForkJoinPool#invoke}.
+ * Each rule is matched by exactly one task, with its own matcher for the view text.
+ *
+ * @author Niklaus Leuenberger
+ */
+class ParallelRuleEvaluator {
+
+    /**
+     * Number of rules of a package from which on the parallel evaluation is used.
+     */
+    static final int RULE_THRESHOLD = 64;
+
+    /**
+     * Number of rules that are matched by a single task without further splitting.
+     */
+    private static final int RULES_PER_TASK = 16;
+
+    /**
+     * Maximum number of threads used for matching.
+     */
+    private static final int MAX_THREADS = 4;
+
+    /**
+     * Immutable capture of the parts of the screen the rules of a package depend on.
+     */
+    static final class CapturedScreen implements CompiledCondition.Screen {
+        private static final CharSequence[] EMPTY_TEXTS = new CharSequence[0];
+
+        /**
+         * Number of found nodes per target of the fingerprint.
+         */
+        final int[] nodeCounts;
+
+        /**
+         * Texts inside the single found node per target of the fingerprint. The texts are not
+         * modified while the main thread waits for the evaluation.
+         */
+        final CharSequence[][] texts;
+
+        /**
+         * Capture the current state of the fingerprint targets.
+         *
+         * @param fingerprint The fingerprint that was just updated.
+         */
+        CapturedScreen(ScreenFingerprint<?> fingerprint) {
+            int count = fingerprint.targets.size();
+            nodeCounts = new int[count];
+            texts = new CharSequence[count][];
+            for (int i = 0; i < count; i++) {
+                ScreenFingerprint.Target<?> target = fingerprint.targets.get(i);
+                nodeCounts[i] = target.nodes.size();
+                texts[i] = target.texts.toArray(EMPTY_TEXTS);
+            }
+        }
+
+        @Override
+        public int getNodeCount(int target) {
+            return nodeCounts[target];
+        }
+
+        @Override
+        public boolean isMatchingText(int target, Matcher matcher) {
+            for (CharSequence text : texts[target]) {
+                if (matcher.reset(text).matches()) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Result of an evaluation, indexed like the rules of the fingerprint.
+     */
+    static final class Result {
+        /**
+         * Per rule if its conditions are met.
+         */
+        final boolean[] met;
+
+        /**
+         * Per rule the time its matching took in ns, so that its statistics can be recorded.
+         */
+        final long[] nanos;
+
+        private Result(int rules) {
+            met = new boolean[rules];
+            nanos = new long[rules];
+        }
+    }
+
+    /**
+     * Pool for the matching tasks, created on first use.
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * Checks if the rules of the fingerprint are worth being evaluated in parallel.
+     *
+     * @param fingerprint The fingerprint of the package.
+     * @return true if the parallel evaluation should be used.
+     */
+    static boolean isWorthwhile(ScreenFingerprint<?> fingerprint) {
+        return fingerprint.rules.size() >= RULE_THRESHOLD;
+    }
+
+    /**
+     * Evaluate the conditions of all rules of the fingerprint in parallel. A rule's conditions are
+     * met if exactly one node was found for its view id, its view text matches and its additional
+     * condition is met. Rules that were
+     * already triggered, didn't subscribe to the event type or aren't affected by the content
+     * changes are skipped.
+     *
+     * @param fingerprint The fingerprint that was just updated.
+     * @param eventType   The type of the processed event.
+     * @param changeTypes The content change types of the processed event.
+     * @return Per rule of the fingerprint if its conditions are met and how long the matching took.
+     */
+    Result evaluate(ScreenFingerprint<?> fingerprint, int eventType, int changeTypes) {
+        if (pool == null) {
+            int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+            pool = new ForkJoinPool(threads);
+        }
+        CapturedScreen screen = new CapturedScreen(fingerprint);
+        int[] targetIndexes = new int[fingerprint.rules.size()];
+        for (int i = 0; i < targetIndexes.length; i++) {
+            targetIndexes[i] = fingerprint.targets.indexOf(fingerprint.ruleTargets.get(i));
+        }
+        Result result = new Result(fingerprint.rules.size());
+        pool.invoke(new MatchTask(fingerprint.rules, targetIndexes, fingerprint.conditionTargets,
+                screen, eventType, changeTypes, result, 0, result.met.length));
+        return result;
+    }
+
+    /**
+     * Stop the pool. Can be restarted with the next evaluation.
+     */
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Task that matches a range of rules against the captured screen and splits itself if the range
+     * is too big.
+     */
+    private static class MatchTask extends RecursiveAction {
+        private final List<RuleWithExtras> rules;
+        private final int[] targetIndexes;
+        private final List<int[]> conditionTargets;
+        private final CapturedScreen screen;
+        private final int eventType;
+        private final int changeTypes;
+        private final Result result;
+        private final int from;
+        private final int to;
+
+        /**
+         * Construct a task for the rules in range [from, to).
+         *
+         * @param rules            All rules of the package.
+         * @param targetIndexes    Per rule the index of its target in the captured screen.
+         * @param conditionTargets Per rule the indexes of its condition's targets, may be null.
+         * @param screen           The captured screen.
+         * @param eventType        The type of the processed event.
+         * @param changeTypes      The content change types of the processed event.
+         * @param result           Result of the evaluation, filled in for the rules of the range.
+         * @param from             First rule of the range.
+         * @param to               Rule after the last rule of the range.
+         */
+        MatchTask(List<RuleWithExtras> rules, int[] targetIndexes, List<int[]> conditionTargets,
+                  CapturedScreen screen, int eventType, int changeTypes, Result result, int from,
+                  int to) {
+            this.rules = rules;
+            this.targetIndexes = targetIndexes;
+            this.conditionTargets = conditionTargets;
+            this.screen = screen;
+            this.eventType = eventType;
+            this.changeTypes = changeTypes;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > RULES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new MatchTask(rules, targetIndexes, conditionTargets, screen, eventType,
+                                changeTypes, result, from, middle),
+                        new MatchTask(rules, targetIndexes, conditionTargets, screen, eventType,
+                                changeTypes, result, middle, to));
+                return;
+            }
+            // Each rule and its condition is only ever used by a single task.
+            for (int i = from; i < to; i++) {
+                RuleWithExtras rule = rules.get(i);
+                int target = targetIndexes[i];
+                if (screen.nodeCounts[target] != 1 || rule.wasTriggeredByLastEvent()
+                        || !rule.isSubscribedTo(eventType)
+                        || (rule.contentChangeDependencies & changeTypes) == 0) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                result.met[i] = (!rule.r.hasViewText()
+                        || isMatchingViewText(rule.newViewTextMatcher(), screen.texts[target]))
+                        && (rule.condition == null
+                        || rule.condition.evaluate(screen, conditionTargets.get(i)));
+                result.nanos[i] = System.nanoTime() - start;
+            }
+        }
+
+        /**
+         * Search for a match of the captured texts to a rule's text.
+         *
+         * @param matcher Matcher of the rule's view text, owned by this task.
+         * @param texts   The captured texts inside the node.
+         * @return true if the rule matched a view text, false otherwise.
+         */
+        private static boolean isMatchingViewText(Matcher matcher, CharSequence[] texts) {
+            for (CharSequence text : texts) {
+                if (matcher.reset(text).matches()) return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package ch.bfh.adaid.service;
+
+import android.app.AlarmManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Date;
+
+/**
+ * Alarm for the next schedule transition of the rules, see {@link ch.bfh.adaid.db.Rule#scheduleStart}.
+ * <p>
+ * Rules outside of their time window are not compiled at all. Instead of checking the time with
+ * every event, the active set is only swapped when a window starts or ends. This class fires the
+ * swap at that instant with a single alarm. The alarm doesn't wake the device, as no events are
+ * received while it sleeps anyway. It fires as soon as the device wakes up again.
+ * <p>
+ * Changes of the clock or the time zone move the local transition times, then the swap is done
+ * immediately and the caller schedules the new next transition.
+ *
+ * @author Niklaus Leuenberger
+ */
+class RuleScheduler {
+    private static final String TAG = "RuleScheduler";
+
+    private final Context context;
+    private final AlarmManager alarmManager;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Called on the main thread when the active set of rules may have changed.
+     */
+    private final Runnable onTransition;
+
+    /**
+     * Listener of the currently set alarm.
+     */
+    private final AlarmManager.OnAlarmListener alarmListener;
+
+    /**
+     * Receiver of clock and time zone changes.
+     */
+    private final BroadcastReceiver timeChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(TAG, "Time changed: " + intent.getAction());
+            onTransition.run();
+        }
+    };
+
+    /**
+     * Instant of the currently set alarm, Long.MAX_VALUE if none is set.
+     */
+    private long scheduledAt = Long.MAX_VALUE;
+
+    /**
+     * Construct a new scheduler and start listening to time changes.
+     *
+     * @param context      Context of the a11y service.
+     * @param onTransition Called on the main thread at every transition.
+     */
+    RuleScheduler(Context context, Runnable onTransition) {
+        this.context = context;
+        this.onTransition = onTransition;
+        alarmManager = context.getSystemService(AlarmManager.class);
+        alarmListener = () -> {
+            scheduledAt = Long.MAX_VALUE;
+            onTransition.run();
+        };
+        IntentFilter filter = new IntentFilter(Intent.ACTION_TIME_CHANGED);
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        context.registerReceiver(timeChangeReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
+    }
+
+    /**
+     * Set the alarm for the next transition. Replaces any previously set alarm.
+     *
+     * @param at Instant of the next transition in milliseconds since the epoch, Long.MAX_VALUE if
+     *           there is none.
+     */
+    void schedule(long at) {
+        if (at == scheduledAt) {
+            return;
+        }
+        alarmManager.cancel(alarmListener);
+        scheduledAt = at;
+        if (at == Long.MAX_VALUE) {
+            return;
+        }
+        Log.d(TAG, "Next rule schedule transition at " + new Date(at));
+        // Exact alarms need a special permission the user may have denied. Then the system may
+        // delay the alarm a bit, the rules switch a little late but still do.
+        if (alarmManager.canScheduleExactAlarms()) {
+            alarmManager.setExact(AlarmManager.RTC, at, TAG, alarmListener, mainHandler);
+        } else {
+            alarmManager.set(AlarmManager.RTC, at, TAG, alarmListener, mainHandler);
+        }
+    }
+
+    /**
+     * Cancel the alarm and stop listening to time changes.
+     */
+    void shutdown() {
+        alarmManager.cancel(alarmListener);
+        scheduledAt = Long.MAX_VALUE;
+        context.unregisterReceiver(timeChangeReceiver);
+    }
+}
@@ -2,6 +2,9 @@ package ch.bfh.adaid.service;
 
 import android.accessibilityservice.AccessibilityService;
 
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import ch.bfh.adaid.action.Action;
 import ch.bfh.adaid.action.ActionFactory;
 import ch.bfh.adaid.db.Rule;
@@ -39,15 +42,208 @@ public class RuleWithExtras {
      */
     public final Action action;
 
+    /**
+     * Complete view id as android expects it. Built once so that processing an event doesn't have
+     * to concatenate strings.
+     * <p>
+     * Note: For rules with an app id pattern the view id depends on the app, use
+     * {@link #getCompleteViewId(String)}.
+     */
+    public final String completeViewId;
+
+    /**
+     * Compiled view text regex of the rule and a reusable matcher for it. Null if rule has no view
+     * text.
+     * <p>
+     * Note: Matchers are not thread safe. The reusable one is only used on the main thread, the
+     * parallel evaluation gets its own per task with {@link #newViewTextMatcher()}.
+     */
+    private final Pattern viewTextPattern;
+    private final Matcher viewTextMatcher;
+
+    /**
+     * Reusable matcher for the compiled app id pattern of the rule. Null if rule has a plain app id.
+     */
+    private final Matcher appIdMatcher;
+
+    /**
+     * Mask of the event types the rule is evaluated for.
+     */
+    public final int eventTypes;
+
+    /**
+     * Mask of the content change types that can affect the rule, see {@link ContentChangeFilter}.
+     */
+    final int contentChangeDependencies;
+
+    /**
+     * Compiled additional condition of the rule, null if the rule has none.
+     */
+    final CompiledCondition condition;
+
+    /**
+     * Compiled relative path of the rule, see {@link Selector}. Null if the path is invalid.
+     */
+    final Selector selector;
+
+    /**
+     * Metrics of the rule for the diagnostics, see {@link EngineMetrics}.
+     */
+    final EngineMetrics.RuleMetrics metrics;
+
+    /**
+     * Running statistics of the evaluations of the rule for the dump of the service, see
+     * {@link #recordEvaluation}. Means are exponentially weighted so that they follow changes of
+     * the app.
+     */
+    private int evaluations;
+    private double meanNanos;
+    private double meanNodeCalls;
+    private double hitRate;
+
+    /**
+     * Weight of a new evaluation in the running means.
+     */
+    private static final double STATISTICS_WEIGHT = 1.0 / 16;
+
+    /**
+     * Estimated cost of a node retrieval over binder in nanoseconds, to weigh IPC calls against
+     * CPU time.
+     */
+    private static final double NODE_CALL_NANOS = 100_000;
+
     /**
      * Default constructor.
      *
      * @param rule    The rule for which additional information is stored.
      * @param service The a11y service that is used to trigger the action.
+     * @throws java.util.regex.PatternSyntaxException If the view text or app id pattern is invalid.
      */
     RuleWithExtras(Rule rule, AccessibilityService service) {
         r = rule; // the rule itself
+        // Regexes first, an invalid one throws before any action is built.
+        viewTextPattern = rule.hasViewText() ? Pattern.compile(rule.viewText) : null;
+        viewTextMatcher = (viewTextPattern == null) ? null : viewTextPattern.matcher("");
+        appIdMatcher = rule.hasAppIdPattern() ? Pattern.compile(rule.getAppIdRegex()).matcher("") : null;
         action = ActionFactory.buildAction(rule.actionType, service);
+        completeViewId = rule.getCompleteViewId();
+        eventTypes = rule.getSubscribedEventTypes();
+        condition = CompiledCondition.of(rule.condition);
+        selector = compileSelector(rule.relativePath);
+        contentChangeDependencies = ContentChangeFilter.getDependencies(rule, condition);
+        metrics = EngineMetrics.getRule(rule.id, rule.name);
+    }
+
+    /**
+     * Compile the relative path of a rule.
+     *
+     * @param relativePath The relative path.
+     * @return The compiled selector or null if the path is invalid.
+     */
+    private static Selector compileSelector(String relativePath) {
+        try {
+            return Selector.compile(relativePath);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks if the rule applies to the given app. Unlike {@link Rule#isMatchingAppId(String)}
+     * this accepts the package name as the framework hands it out and doesn't convert it.
+     *
+     * @param appId The app package name to check.
+     * @return True if the app id matches, false otherwise.
+     */
+    public boolean isMatchingAppId(CharSequence appId) {
+        if (appIdMatcher != null) {
+            return appIdMatcher.reset(appId).matches();
+        }
+        return r.appId.contentEquals(appId);
+    }
+
+    /**
+     * Get the complete view id of the rule in the given app.
+     *
+     * @param packageName The package name of the app the rule is applied to.
+     * @return The complete view id.
+     */
+    public String getCompleteViewId(String packageName) {
+        return (appIdMatcher == null) ? completeViewId : r.getCompleteViewId(packageName);
+    }
+
+    /**
+     * Checks if the view text of the rule matches the given text. Behaves like
+     * {@link Rule#isMatchingViewText(String)} but reuses the precompiled regex and doesn't need
+     * the text to be converted to a string.
+     *
+     * @param text The text to be matched against.
+     * @return True if the text matches the view text, false otherwise.
+     */
+    public boolean isMatchingViewText(CharSequence text) {
+        return viewTextMatcher == null || viewTextMatcher.reset(text).matches();
+    }
+
+    /**
+     * Create a new matcher for the view text of the rule, to match texts off the main thread.
+     *
+     * @return The new matcher, null if the rule has no view text.
+     */
+    Matcher newViewTextMatcher() {
+        return (viewTextPattern == null) ? null : viewTextPattern.matcher("");
+    }
+
+    /**
+     * Checks if the rule is evaluated for events of the given type.
+     *
+     * @param eventType The type of the event, one of AccessibilityEvent.TYPE_*.
+     * @return True if the rule subscribed to the event type, false otherwise.
+     */
+    public boolean isSubscribedTo(int eventType) {
+        return (eventTypes & eventType) != 0;
+    }
+
+    /**
+     * Record an evaluation of the rule.
+     *
+     * @param nanos     Time the evaluation took.
+     * @param nodeCalls Number of node retrievals, i.e. potential binder calls, of the evaluation.
+     * @param matched   If the rule matched and its seen action was triggered.
+     */
+    void recordEvaluation(long nanos, int nodeCalls, boolean matched) {
+        // Plain averages until enough samples are in, weighted from then on.
+        double weight = (evaluations < 16) ? 1.0 / (evaluations + 1) : STATISTICS_WEIGHT;
+        meanNanos += (nanos - meanNanos) * weight;
+        meanNodeCalls += (nodeCalls - meanNodeCalls) * weight;
+        hitRate += ((matched ? 1 : 0) - hitRate) * weight;
+        evaluations++;
+    }
+
+    /**
+     * Get the expected cost of an evaluation of the rule, with IPC calls converted to time.
+     *
+     * @return Expected cost in nanoseconds.
+     */
+    double getExpectedCost() {
+        return meanNanos + meanNodeCalls * NODE_CALL_NANOS;
+    }
+
+    /**
+     * Get the measured probability that an evaluation of the rule matches.
+     *
+     * @return Hit rate between 0 and 1.
+     */
+    double getHitRate() {
+        return hitRate;
+    }
+
+    /**
+     * Get the number of recorded evaluations.
+     *
+     * @return Number of evaluations.
+     */
+    int getEvaluations() {
+        return evaluations;
     }
 
     /**
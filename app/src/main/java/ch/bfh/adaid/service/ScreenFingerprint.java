@@ -0,0 +1,505 @@
+package ch.bfh.adaid.service;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+
+/**
+ * Cheap structural fingerprint of the active window for the rules of a single package.
+ * <p>
+ * Many window content change events don't change anything a rule cares about, e.g. a ticking timer
+ * or a progress bar. The fingerprint is built only from the nodes the rules of the package depend
+ * on: For every distinct view id the found nodes and, if any rule for that id has a view text, the
+ * texts inside the found node. As long as the fingerprint doesn't change, the outcome of the last
+ * rule evaluation is still valid and the rules don't have to be processed again.
+ * <p>
+ * Note that the fingerprint itself still has to be built on every event: every target is searched
+ * and the texts are collected. What an unchanged fingerprint saves is everything after that, the
+ * conditions, the text matching, the relative paths and the actions. The searches are made cheaper
+ * by the {@link WindowCache} and the {@link NegativeLookupCache}, and events whose change types
+ * can't affect the rules are already dropped before by the {@link ContentChangeFilter}.
+ * <p>
+ * The nodes and texts that were looked up to build the fingerprint are kept in {@link Target}s so
+ * that an evaluation can reuse them instead of searching again. This includes the view ids of the
+ * rules' conditions, all candidates are fetched in the same pass. The per rule matching of an
+ * evaluation, see {@link #isFound(int)}, {@link #isMatching(int)} and {@link #select(int)}, then
+ * works on those. All nodes are accessed through a {@link NodeTree}, so host tests can drive the
+ * same code that runs for every event.
+ *
+ * @param <N> Type of the nodes.
+ * @author Niklaus Leuenberger
+ */
+class ScreenFingerprint<N> implements CompiledCondition.Screen {
+
+    /**
+     * A distinct view id that one or more rules depend on.
+     */
+    static class Target<N> {
+        /**
+         * The complete view id that is searched for.
+         */
+        final String completeViewId;
+
+        /**
+         * Flag if at least one of the rules has a view text and the texts have to be collected.
+         */
+        private boolean collectTexts;
+
+        /**
+         * Nodes found with the last update.
+         */
+        List<N> nodes = Collections.emptyList();
+
+        /**
+         * Texts inside the single found node (itself and all descendants) of the last update. Only
+         * collected if exactly one node was found and a rule has a view text.
+         */
+        final ArrayList<CharSequence> texts = new ArrayList<>();
+
+        /**
+         * Entry of the {@link NegativeLookupCache}: generation in which the view id was recorded as
+         * absent (-1 if it wasn't) and since when.
+         */
+        int absentGeneration = -1;
+        long absentSince;
+
+        /**
+         * Entry of the {@link WindowCache}: generation in which the single node was resolved (-1 if
+         * it wasn't).
+         */
+        int resolvedGeneration = -1;
+
+        /**
+         * Time and number of node retrievals of the last update of the target, i.e. the lookup and
+         * the collected texts. Part of the cost of every rule that depends on the target.
+         */
+        long lookupNanos;
+        int lookupCalls;
+
+        /**
+         * Construct a new target.
+         *
+         * @param completeViewId The complete view id to search for.
+         */
+        private Target(String completeViewId) {
+            this.completeViewId = completeViewId;
+        }
+    }
+
+    /**
+     * The package the fingerprint is for.
+     */
+    final String packageName;
+
+    /**
+     * The tree the nodes are looked up in.
+     */
+    private final NodeTree<N> tree;
+
+    /**
+     * Distinct view ids the rules of the package depend on.
+     */
+    final ArrayList<Target<N>> targets = new ArrayList<>();
+
+    /**
+     * All rules of the package in priority order, i.e. the order of the rule list, and the target
+     * each of them depends on.
+     */
+    final ArrayList<RuleWithExtras> rules = new ArrayList<>();
+    final ArrayList<Target<N>> ruleTargets = new ArrayList<>();
+
+    /**
+     * Per rule the indexes of the targets its condition's predicates depend on, null if the rule
+     * has no condition.
+     */
+    final ArrayList<int[]> conditionTargets = new ArrayList<>();
+
+    /**
+     * Union of the event types the rules of the package subscribed to. Events of other types are
+     * not dispatched to the package at all.
+     */
+    final int eventTypes;
+
+    /**
+     * Union of the content change types that can affect the rules of the package.
+     */
+    final int contentChangeDependencies;
+
+    /**
+     * Flag if any rule of the package is limited to a screen. Then only the subset for the
+     * foreground screen is evaluated, see {@link #forForeground(String, String)}.
+     */
+    final boolean hasScopedRules;
+
+    /**
+     * Event types whose rules were skipped since the fingerprint last changed. Those rules haven't
+     * seen the current state yet and have to be evaluated with the next event of their type, even
+     * if the fingerprint doesn't change.
+     */
+    private int pendingEventTypes;
+
+    /**
+     * Fingerprint of the last update and flag if it is valid at all.
+     */
+    private long lastHash;
+    private boolean isValid;
+
+    /**
+     * Construct a fingerprint for the given rules. The rules should all apply to the package.
+     *
+     * @param packageName The package the fingerprint is for.
+     * @param rules       The rules of a single package.
+     * @param tree        The tree the nodes are looked up in.
+     */
+    ScreenFingerprint(String packageName, List<RuleWithExtras> rules, NodeTree<N> tree) {
+        this.packageName = packageName;
+        this.tree = tree;
+        int types = 0;
+        int dependencies = 0;
+        boolean scoped = false;
+        for (RuleWithExtras rule : rules) {
+            Target<N> target = targets.get(getOrAddTarget(rule.getCompleteViewId(packageName)));
+            target.collectTexts |= rule.r.hasViewText();
+            this.rules.add(rule);
+            ruleTargets.add(target);
+            int[] predicateTargets = null;
+            if (rule.condition != null) {
+                predicateTargets = new int[rule.condition.getPredicateCount()];
+                for (int i = 0; i < predicateTargets.length; i++) {
+                    predicateTargets[i] = getOrAddTarget(
+                            packageName + ":id/" + rule.condition.viewIds.get(i));
+                    targets.get(predicateTargets[i]).collectTexts |=
+                            rule.condition.textMatchers.get(i) != null;
+                }
+            }
+            conditionTargets.add(predicateTargets);
+            types |= rule.eventTypes;
+            dependencies |= rule.contentChangeDependencies;
+            scoped |= rule.r.hasActivityScope();
+        }
+        eventTypes = types;
+        contentChangeDependencies = dependencies;
+        hasScopedRules = scoped;
+    }
+
+    /**
+     * Get the target of a view id, add it if it doesn't exist yet.
+     *
+     * @param completeViewId The complete view id to search for.
+     * @return The index of the target.
+     */
+    private int getOrAddTarget(String completeViewId) {
+        for (int i = 0; i < targets.size(); i++) {
+            if (targets.get(i).completeViewId.equals(completeViewId)) {
+                return i;
+            }
+        }
+        targets.add(new Target<>(completeViewId));
+        return targets.size() - 1;
+    }
+
+    /**
+     * Checks if the view of a rule was found with the last update. Actions only make sense if just
+     * one single node is found, so multiple found nodes count as not found.
+     *
+     * @param ruleIndex Index of the rule in {@link #rules}.
+     * @return true if exactly one node was found, false otherwise.
+     */
+    boolean isFound(int ruleIndex) {
+        return ruleTargets.get(ruleIndex).nodes.size() == 1;
+    }
+
+    /**
+     * Checks if a rule whose view was found matches the last update: its condition is met and, if
+     * it has a view text, any text inside the found node matches it. The condition only combines
+     * the nodes that were already looked up, no further lookups are needed.
+     *
+     * @param ruleIndex Index of the rule in {@link #rules}, see {@link #isFound(int)}.
+     * @return true if the rule matches, false otherwise.
+     */
+    boolean isMatching(int ruleIndex) {
+        RuleWithExtras rule = rules.get(ruleIndex);
+        if (rule.condition != null
+                && !rule.condition.evaluate(this, conditionTargets.get(ruleIndex))) {
+            return false;
+        }
+        if (!rule.r.hasViewText()) {
+            return true;
+        }
+        boolean traced = EngineTrace.begin("text match");
+        try {
+            ArrayList<CharSequence> texts = ruleTargets.get(ruleIndex).texts;
+            for (int i = 0; i < texts.size(); i++) {
+                if (rule.isMatchingViewText(texts.get(i))) return true;
+            }
+            return false;
+        } finally {
+            EngineTrace.end(traced);
+        }
+    }
+
+    /**
+     * Run the relative path of a matching rule from its found node.
+     *
+     * @param ruleIndex Index of the rule in {@link #rules}, see {@link #isFound(int)}.
+     * @return The node to act on or null if the relative path led nowhere or is invalid.
+     */
+    N select(int ruleIndex) {
+        Selector selector = rules.get(ruleIndex).selector;
+        if (selector == null) {
+            return null;
+        }
+        boolean traced = EngineTrace.begin("relative path");
+        try {
+            return selector.select(ruleTargets.get(ruleIndex).nodes.get(0), tree);
+        } finally {
+            EngineTrace.end(traced);
+        }
+    }
+
+    @Override
+    public int getNodeCount(int target) {
+        return targets.get(target).nodes.size();
+    }
+
+    @Override
+    public boolean isMatchingText(int target, Matcher matcher) {
+        ArrayList<CharSequence> texts = targets.get(target).texts;
+        for (int i = 0; i < texts.size(); i++) {
+            if (matcher.reset(texts.get(i)).matches()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Build the fingerprint of the rules that apply to the given foreground screen. Rules without
+     * activity scope always apply.
+     *
+     * @param activityName Class name of the foreground activity, null if unknown.
+     * @param windowTitle  Title of the foreground window, null if unknown.
+     * @return New fingerprint of the subset of the rules.
+     */
+    ScreenFingerprint<N> forForeground(String activityName, String windowTitle) {
+        ArrayList<RuleWithExtras> subset = new ArrayList<>();
+        for (RuleWithExtras rule : rules) {
+            if (rule.r.isMatchingActivityScope(packageName, activityName, windowTitle)) {
+                subset.add(rule);
+            }
+        }
+        return new ScreenFingerprint<>(packageName, subset, tree);
+    }
+
+    /**
+     * Checks if any rule of the package subscribed to the event type.
+     *
+     * @param eventType The type of the event, one of AccessibilityEvent.TYPE_*.
+     * @return true if the event has to be dispatched to the package, false otherwise.
+     */
+    boolean isSubscribedTo(int eventType) {
+        return (eventTypes & eventType) != 0;
+    }
+
+    /**
+     * Checks if rules of the event type still have to see the current state, because they were
+     * skipped when the fingerprint last changed.
+     *
+     * @param eventType The type of the event, one of AccessibilityEvent.TYPE_*.
+     * @return true if the rules have to be evaluated even if the fingerprint didn't change.
+     */
+    boolean isPending(int eventType) {
+        return (pendingEventTypes & eventType) != 0;
+    }
+
+    /**
+     * Get the event types whose rules still have to see the current state, see
+     * {@link #isPending(int)}.
+     *
+     * @return Mask of AccessibilityEvent.TYPE_* values.
+     */
+    int getPendingEventTypes() {
+        return pendingEventTypes;
+    }
+
+    /**
+     * Record that the rules subscribed to the event type were evaluated.
+     *
+     * @param eventType The type of the event, one of AccessibilityEvent.TYPE_*.
+     * @param changed   If the fingerprint changed with this event.
+     */
+    void onEvaluated(int eventType, boolean changed) {
+        if (changed) {
+            pendingEventTypes = eventTypes & ~eventType;
+        } else {
+            pendingEventTypes &= ~eventType;
+        }
+    }
+
+    /**
+     * Forget the last fingerprint. The next update will always report a change. Use this whenever
+     * the triggered state of the rules was changed outside of an evaluation, or when the outcome of
+     * an evaluation depended on nodes that are not part of the fingerprint, like the target of a
+     * relative path that wasn't found.
+     */
+    void invalidate() {
+        isValid = false;
+    }
+
+    /**
+     * Search all targets in the window and calculate the new fingerprint. This is done for every
+     * event that reaches the rules of the package, only the evaluation of the rules is skipped if
+     * nothing changed.
+     *
+     * @param root          The root node of all accessibility nodes (i.e. the container view).
+     * @param windowCache   Cache of the nodes resolved in the window.
+     * @param negativeCache Cache of view ids known to be absent from the window.
+     * @return true if the fingerprint changed since the last update, false otherwise.
+     */
+    boolean update(N root, WindowCache windowCache,
+                   NegativeLookupCache negativeCache) {
+        long hash = 17;
+        for (int i = 0; i < targets.size(); i++) {
+            Target<N> target = targets.get(i);
+            target.texts.clear();
+            long start = System.nanoTime();
+            target.lookupCalls = 0;
+            if (windowCache.isResolved(target, tree)) {
+                // Still has the same single node as before, no lookup needed.
+            } else if (negativeCache.isAbsent(target)) {
+                target.nodes = Collections.emptyList();
+            } else {
+                boolean traced = EngineTrace.begin("find ", target.completeViewId);
+                try {
+                    target.nodes = tree.findByViewId(root, target.completeViewId);
+                } finally {
+                    EngineTrace.end(traced);
+                }
+                target.lookupCalls++;
+                windowCache.recordLookup(target);
+                if (target.nodes.isEmpty()) {
+                    negativeCache.recordAbsent(target);
+                } else {
+                    negativeCache.recordPresent(target);
+                }
+            }
+            hash = 31 * hash + target.nodes.size();
+            // Rules only ever act on exactly one found node. So only for those the identity of the
+            // node and its texts matter.
+            if (target.nodes.size() == 1) {
+                N node = target.nodes.get(0);
+                hash = 31 * hash + node.hashCode();
+                if (target.collectTexts) {
+                    target.lookupCalls += collectTexts(node, target.texts);
+                    for (int j = 0; j < target.texts.size(); j++) {
+                        hash = 31 * hash + hash(target.texts.get(j));
+                    }
+                }
+            }
+            target.lookupNanos = System.nanoTime() - start;
+        }
+        boolean changed = !isValid || hash != lastHash;
+        lastHash = hash;
+        isValid = true;
+        return changed;
+    }
+
+    /**
+     * Recursively collect the texts of the node and all its descendants. Children are retrieved
+     * depth first, the same order in which they are prefetched.
+     *
+     * @param node  The node to collect the texts of.
+     * @param texts The list to add the texts to.
+     * @return Number of retrieved children.
+     */
+    private int collectTexts(N node, ArrayList<CharSequence> texts) {
+        if (node == null) return 0;
+        CharSequence text = tree.getText(node);
+        if (text != null) {
+            texts.add(text);
+        }
+        int count = tree.getChildCount(node);
+        int calls = count;
+        for (int i = 0; i < count; i++) {
+            calls += collectTexts(tree.getScannedChild(node, i), texts);
+        }
+        return calls;
+    }
+
+    /**
+     * Hash of the characters of a text. Unlike {@link CharSequence#hashCode()} this is the same for
+     * strings and spannables with the same content and doesn't allocate.
+     *
+     * @param text The text to hash.
+     * @return The hash of the characters.
+     */
+    static int hash(CharSequence text) {
+        if (text instanceof String) {
+            return text.hashCode(); // cached by the string itself
+        }
+        int h = 0;
+        for (int i = 0; i < text.length(); i++) {
+            h = 31 * h + text.charAt(i);
+        }
+        return h;
+    }
+
+    /**
+     * Get the time and node retrievals of the last update that the rule depends on: the lookup of
+     * its own view and of the views of its condition. Targets shared by several rules are counted
+     * for each of them, as each of them would need the lookup on its own.
+     *
+     * @param ruleIndex Index of the rule in {@link #rules}.
+     * @return Time of the lookups in ns.
+     */
+    long getLookupNanos(int ruleIndex) {
+        long nanos = ruleTargets.get(ruleIndex).lookupNanos;
+        int[] predicateTargets = conditionTargets.get(ruleIndex);
+        if (predicateTargets != null) {
+            for (int target : predicateTargets) {
+                nanos += targets.get(target).lookupNanos;
+            }
+        }
+        return nanos;
+    }
+
+    /**
+     * Get the node retrievals of the last update that the rule depends on, see
+     * {@link #getLookupNanos(int)}.
+     *
+     * @param ruleIndex Index of the rule in {@link #rules}.
+     * @return Number of node retrievals of the lookups.
+     */
+    int getLookupCalls(int ruleIndex) {
+        int calls = ruleTargets.get(ruleIndex).lookupCalls;
+        int[] predicateTargets = conditionTargets.get(ruleIndex);
+        if (predicateTargets != null) {
+            for (int target : predicateTargets) {
+                calls += targets.get(target).lookupCalls;
+            }
+        }
+        return calls;
+    }
+
+    /**
+     * Write the state of the fingerprint and its rules in priority order to a dump of the
+     * service.
+     *
+     * @param writer The writer of the dump.
+     * @param prefix The indentation of the lines.
+     */
+    void dump(PrintWriter writer, String prefix) {
+        writer.printf(Locale.ROOT, "%s%s: %d rules, %d view ids, pending event types 0x%x%n",
+                prefix, packageName, rules.size(), targets.size(), getPendingEventTypes());
+        for (int i = 0; i < rules.size(); i++) {
+            RuleWithExtras rule = rules.get(i);
+            writer.printf(Locale.ROOT, "%s  #%d %s: %s on %s, triggered=%b, triggers=%d, "
+                            + "evaluations=%d, hit rate=%.3f, cost=%.0f us, nodes found=%d%n",
+                    prefix, rule.r.id, rule.r.name, rule.r.actionType, rule.completeViewId,
+                    rule.wasTriggeredByLastEvent(), rule.metrics.triggers.get(),
+                    rule.getEvaluations(), rule.getHitRate(), rule.getExpectedCost() / 1_000,
+                    ruleTargets.get(i).nodes.size());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package ch.bfh.adaid.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Monitor of the screen and idle state of the device.
+ * <p>
+ * While the screen is off or the device dozes, no user sees what the rules would act on. Apps may
+ * still produce events though, e.g. a video app that keeps playing audio in the background. This
+ * class tells the service when to suspend the processing of events and when to resume it.
+ *
+ * @author Niklaus Leuenberger
+ */
+class ScreenStateMonitor {
+    private static final String TAG = "ScreenStateMonitor";
+
+    private final Context context;
+    private final PowerManager powerManager;
+
+    /**
+     * Called on the main thread whenever {@link #isSuspended()} changed.
+     */
+    private final Runnable onChange;
+
+    /**
+     * Receiver of screen and idle state changes.
+     */
+    private final BroadcastReceiver stateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(TAG, "Screen state changed: " + intent.getAction());
+            update();
+        }
+    };
+
+    /**
+     * Current state, true if events should not be processed.
+     */
+    private boolean suspended;
+
+    /**
+     * Construct a new monitor and start listening to state changes.
+     *
+     * @param context  Context of the a11y service.
+     * @param onChange Called on the main thread when the service should suspend or resume.
+     */
+    ScreenStateMonitor(Context context, Runnable onChange) {
+        this.context = context;
+        this.onChange = onChange;
+        powerManager = context.getSystemService(PowerManager.class);
+        suspended = isIdle();
+        IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_OFF);
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED);
+        context.registerReceiver(stateReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
+    }
+
+    /**
+     * Check if the processing of events should currently be suspended.
+     *
+     * @return true if the screen is off or the device is idle.
+     */
+    boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * Stop listening to state changes.
+     */
+    void shutdown() {
+        context.unregisterReceiver(stateReceiver);
+    }
+
+    /**
+     * Reevaluate the state and notify on a change. The broadcasts only hint at a change, the
+     * current state is always queried from the power manager.
+     */
+    private void update() {
+        boolean idle = isIdle();
+        if (idle != suspended) {
+            suspended = idle;
+            onChange.run();
+        }
+    }
+
+    private boolean isIdle() {
+        return !powerManager.isInteractive() || powerManager.isDeviceIdleMode();
+    }
+}
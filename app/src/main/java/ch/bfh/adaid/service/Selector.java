@@ -0,0 +1,528 @@
+package ch.bfh.adaid.service;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Structural selector that leads from the node that triggered a rule to the node that is acted on,
+ * see {@link ch.bfh.adaid.db.Rule#relativePath}.
+ * <p>
+ * A selector is a chain of steps separated by dots:
+ * <ul>
+ *     <li>parent - move one parent up.</li>
+ *     <li>parent(id) - move up to the closest ancestor with the view id.</li>
+ *     <li>child(n) - move to the nth child (0 indexed).</li>
+ *     <li>prev / next - move to the sibling before / after.</li>
+ *     <li>find(id) or find(id, n) - move to the first / nth descendant with the view id.</li>
+ *     <li>text("regex") - move to the first descendant (or the node itself) with a matching text,
+ *         quotes inside the regex are escaped with a backslash.</li>
+ * </ul>
+ * The steps of the former relative path (p, c[n], su, sd) are accepted as aliases.
+ * <p>
+ * The text is compiled once into a program of instructions. The program runs on a cursor that
+ * remembers the child index of every node it descended into. Moving to a sibling is then a single
+ * getChild() of the parent instead of scanning the parent's children for the current node. Only
+ * for a node whose index isn't known yet, e.g. the triggering node itself, the children are scanned
+ * once.
+ * <p>
+ * The nodes are walked through a {@link NodeTree}, on the device those are the a11y nodes.
+ * <p>
+ * Note: Like all node access a selector must only be run on the main thread.
+ *
+ * @author Niklaus Leuenberger
+ */
+public class Selector {
+
+    /**
+     * Instructions of a program.
+     */
+    private static final int OP_PARENT = 0;
+    private static final int OP_ANCESTOR_WITH_ID = 1;
+    private static final int OP_CHILD = 2;
+    private static final int OP_SIBLING = 3;
+    private static final int OP_DESCENDANT_WITH_ID = 4;
+    private static final int OP_DESCENDANT_WITH_TEXT = 5;
+
+    /**
+     * Child index of a node that is not known yet.
+     */
+    private static final int UNKNOWN_INDEX = -1;
+
+    /**
+     * Per instruction its opcode, its number operand (child index, sibling offset or nth match)
+     * and its string operand (":id/" suffix of a view id or the text regex).
+     */
+    private final int[] opcodes;
+    private final int[] numbers;
+    private final String[] strings;
+
+    /**
+     * Reusable matchers of the text instructions, null for other instructions.
+     */
+    private final Matcher[] matchers;
+
+    /**
+     * Complete view ids of the find instructions for the package they were last run in, null for
+     * other instructions. A selector usually runs in the same app, so the view id is only built
+     * again when the app changes.
+     */
+    private final String[] completeViewIds;
+
+    /**
+     * Cursor the program runs on. Nodes and their child index in the parent below, the current node
+     * is on top.
+     */
+    private Object[] nodes = new Object[8];
+    private int[] indexes = new int[8];
+    private int depth;
+
+    /**
+     * Number of node retrievals of the last run, each is potentially a binder call.
+     */
+    private int nodeCalls;
+
+    /**
+     * Construct a compiled selector.
+     *
+     * @param opcodes The opcodes.
+     * @param numbers The number operands.
+     * @param strings The string operands.
+     */
+    private Selector(int[] opcodes, int[] numbers, String[] strings) {
+        this.opcodes = opcodes;
+        this.numbers = numbers;
+        this.strings = strings;
+        matchers = new Matcher[opcodes.length];
+        completeViewIds = new String[opcodes.length];
+        for (int i = 0; i < opcodes.length; i++) {
+            if (opcodes[i] == OP_DESCENDANT_WITH_TEXT) {
+                matchers[i] = Pattern.compile(strings[i]).matcher("");
+            }
+        }
+    }
+
+    /**
+     * Compile a selector.
+     *
+     * @param source The text of the selector, empty or null selects the triggering node itself.
+     * @return The compiled selector.
+     * @throws IllegalArgumentException if the text is not a valid selector.
+     */
+    public static Selector compile(String source) throws IllegalArgumentException {
+        ArrayList<Integer> opcodes = new ArrayList<>();
+        ArrayList<Integer> numbers = new ArrayList<>();
+        ArrayList<String> strings = new ArrayList<>();
+        if (source != null && !source.trim().isEmpty()) {
+            for (String step : split(source)) {
+                compileStep(step.trim(), opcodes, numbers, strings);
+            }
+        }
+        int[] ops = new int[opcodes.size()];
+        int[] nums = new int[numbers.size()];
+        for (int i = 0; i < ops.length; i++) {
+            ops[i] = opcodes.get(i);
+            nums[i] = numbers.get(i);
+        }
+        return new Selector(ops, nums, strings.toArray(new String[0]));
+    }
+
+    /**
+     * Split the text into steps at dots that are not inside parentheses, brackets or quotes.
+     *
+     * @param source The text of the selector.
+     * @return The steps.
+     */
+    private static List<String> split(String source) {
+        ArrayList<String> steps = new ArrayList<>();
+        int nesting = 0;
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (quoted) {
+                if (c == '\\') i++; // skip escaped character
+                else if (c == '"') quoted = false;
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == '(' || c == '[') {
+                nesting++;
+            } else if (c == ')' || c == ']') {
+                nesting--;
+            } else if (c == '.' && nesting == 0) {
+                steps.add(source.substring(start, i));
+                start = i + 1;
+            }
+        }
+        if (quoted || nesting != 0) {
+            throw new IllegalArgumentException("Unbalanced quotes or parentheses");
+        }
+        steps.add(source.substring(start));
+        return steps;
+    }
+
+    /**
+     * Compile a single step into its instruction.
+     *
+     * @param step    The text of the step.
+     * @param opcodes The opcodes to add to.
+     * @param numbers The number operands to add to.
+     * @param strings The string operands to add to.
+     */
+    private static void compileStep(String step, List<Integer> opcodes, List<Integer> numbers,
+                                    List<String> strings) {
+        String name = step;
+        String argument = null;
+        int open = step.indexOf('(');
+        if (open >= 0 && step.endsWith(")")) {
+            name = step.substring(0, open).trim();
+            argument = step.substring(open + 1, step.length() - 1).trim();
+        } else if (step.startsWith("c[") && step.endsWith("]")) {
+            name = "child";
+            argument = step.substring(2, step.length() - 1).trim();
+        }
+        int opcode;
+        int number = 0;
+        String string = null;
+        switch (name) {
+            case "p":
+            case "parent":
+                opcode = (argument == null) ? OP_PARENT : OP_ANCESTOR_WITH_ID;
+                if (argument != null) string = toViewIdSuffix(argument);
+                break;
+            case "child":
+                opcode = OP_CHILD;
+                number = parseIndex(argument, step);
+                break;
+            case "su":
+            case "prev":
+                opcode = OP_SIBLING;
+                number = -1;
+                break;
+            case "sd":
+            case "next":
+                opcode = OP_SIBLING;
+                number = 1;
+                break;
+            case "find": {
+                if (argument == null) throw new IllegalArgumentException("Missing view id: " + step);
+                opcode = OP_DESCENDANT_WITH_ID;
+                int comma = argument.indexOf(',');
+                if (comma >= 0) {
+                    number = parseIndex(argument.substring(comma + 1).trim(), step);
+                    argument = argument.substring(0, comma).trim();
+                }
+                string = toViewIdSuffix(argument);
+                break;
+            }
+            case "text":
+                if (argument == null || argument.length() < 2 || !argument.startsWith("\"")
+                        || !argument.endsWith("\"")) {
+                    throw new IllegalArgumentException("Expected a quoted text: " + step);
+                }
+                opcode = OP_DESCENDANT_WITH_TEXT;
+                string = argument.substring(1, argument.length() - 1).replace("\\\"", "\"");
+                Pattern.compile(string); // fail early on an invalid regex
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown step: " + step);
+        }
+        if ((opcode == OP_PARENT || opcode == OP_SIBLING) && argument != null) {
+            throw new IllegalArgumentException("Unexpected argument: " + step);
+        }
+        opcodes.add(opcode);
+        numbers.add(number);
+        strings.add(string);
+    }
+
+    /**
+     * Parse a non negative index argument.
+     *
+     * @param argument The argument.
+     * @param step     The step for the error message.
+     * @return The index.
+     */
+    private static int parseIndex(String argument, String step) {
+        try {
+            int index = Integer.parseInt(argument);
+            if (index >= 0) return index;
+        } catch (NumberFormatException | NullPointerException ignore) {
+        }
+        throw new IllegalArgumentException("Expected an index: " + step);
+    }
+
+    /**
+     * Get the suffix a complete view id ends with.
+     *
+     * @param viewId The view id without the common prefix.
+     * @return The suffix ":id/viewId".
+     */
+    private static String toViewIdSuffix(String viewId) {
+        if (viewId.isEmpty()) throw new IllegalArgumentException("Missing view id");
+        return ":id/" + viewId;
+    }
+
+    /**
+     * Check if the selector has no steps, i.e. selects the triggering node itself.
+     *
+     * @return true if the selector is empty.
+     */
+    public boolean isEmpty() {
+        return opcodes.length == 0;
+    }
+
+    /**
+     * Get the number of node retrievals of the last run. Each of them is a binder call unless the
+     * node was already cached.
+     *
+     * @return Number of retrieved nodes.
+     */
+    int getLastNodeCalls() {
+        return nodeCalls;
+    }
+
+    /**
+     * Run the selector from the given node.
+     *
+     * @param start The node that triggered the rule.
+     * @return The selected node or null if a step led nowhere.
+     */
+    public AccessibilityNodeInfo select(AccessibilityNodeInfo start) {
+        return select(start, A11yNodeTree.INSTANCE);
+    }
+
+    /**
+     * Run the selector from the given node of a tree.
+     *
+     * @param start The node that triggered the rule.
+     * @param tree  The tree the node belongs to.
+     * @param <N>   Type of the nodes.
+     * @return The selected node or null if a step led nowhere.
+     */
+    <N> N select(N start, NodeTree<N> tree) {
+        depth = 0;
+        nodeCalls = 0;
+        push(start, UNKNOWN_INDEX);
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            if (!execute(pc, tree)) {
+                clear();
+                return null;
+            }
+        }
+        N selected = current();
+        clear();
+        return selected;
+    }
+
+    /**
+     * Execute a single instruction on the cursor.
+     *
+     * @param pc   Index of the instruction.
+     * @param tree The tree of the nodes.
+     * @return true on success, false if the instruction led nowhere.
+     */
+    private <N> boolean execute(int pc, NodeTree<N> tree) {
+        switch (opcodes[pc]) {
+            case OP_PARENT:
+                return moveToParent(tree);
+            case OP_ANCESTOR_WITH_ID:
+                do {
+                    if (!moveToParent(tree)) return false;
+                } while (!hasViewIdSuffix(tree.getViewId(current()), strings[pc]));
+                return true;
+            case OP_CHILD: {
+                N node = current();
+                int index = numbers[pc];
+                if (index >= tree.getChildCount(node)) return false;
+                nodeCalls++;
+                N child = tree.getChild(node, index);
+                if (child == null) return false;
+                push(child, index);
+                return true;
+            }
+            case OP_SIBLING:
+                return moveToSibling(numbers[pc], tree);
+            case OP_DESCENDANT_WITH_ID: {
+                // One lookup in the subtree instead of traversing it. The path to the found node
+                // isn't known, the cursor restarts from it.
+                N node = current();
+                CharSequence packageName = tree.getPackageName(node);
+                if (packageName == null) return false;
+                nodeCalls++;
+                List<N> found = tree.findByViewId(node, getCompleteViewId(pc, packageName));
+                if (numbers[pc] >= found.size()) return false;
+                depth = 0;
+                push(found.get(numbers[pc]), UNKNOWN_INDEX);
+                return true;
+            }
+            case OP_DESCENDANT_WITH_TEXT:
+                return descendToText(matchers[pc], tree);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Get the complete view id of a find instruction in the given package.
+     *
+     * @param pc          Index of the instruction.
+     * @param packageName The package name of the current node.
+     * @return The complete view id.
+     */
+    private String getCompleteViewId(int pc, CharSequence packageName) {
+        String viewId = completeViewIds[pc];
+        String suffix = strings[pc];
+        if (viewId == null || viewId.length() != packageName.length() + suffix.length()
+                || !startsWith(viewId, packageName)) {
+            viewId = packageName + suffix;
+            completeViewIds[pc] = viewId;
+        }
+        return viewId;
+    }
+
+    /**
+     * Check if a string starts with the characters of a char sequence, without converting it.
+     *
+     * @param string The string to check.
+     * @param prefix The prefix, not longer than the string.
+     * @return true if the string starts with the prefix.
+     */
+    private static boolean startsWith(String string, CharSequence prefix) {
+        for (int i = 0; i < prefix.length(); i++) {
+            if (string.charAt(i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Move the cursor to the parent of the current node.
+     *
+     * @param tree The tree of the nodes.
+     * @return true on success, false if the current node has no parent.
+     */
+    private <N> boolean moveToParent(NodeTree<N> tree) {
+        if (depth > 1) {
+            nodes[--depth] = null;
+            return true;
+        }
+        nodeCalls++;
+        N parent = tree.getParent(current());
+        if (parent == null) return false;
+        nodes[0] = parent;
+        indexes[0] = UNKNOWN_INDEX;
+        return true;
+    }
+
+    /**
+     * Move the cursor to a sibling of the current node.
+     *
+     * @param offset Offset of the sibling, -1 for the one before and 1 for the one after.
+     * @param tree   The tree of the nodes.
+     * @return true on success, false if there is no such sibling.
+     */
+    private <N> boolean moveToSibling(int offset, NodeTree<N> tree) {
+        N node = current();
+        int index = indexes[depth - 1];
+        N parent;
+        if (depth > 1) {
+            parent = at(depth - 2);
+        } else {
+            // Parent not visited yet, insert it below the current node.
+            nodeCalls++;
+            parent = tree.getParent(node);
+            if (parent == null) return false;
+            depth = 0;
+            push(parent, UNKNOWN_INDEX);
+            push(node, UNKNOWN_INDEX);
+        }
+        if (index == UNKNOWN_INDEX) {
+            // Scan the children once, from now on the index is known.
+            for (int i = 0; i < tree.getChildCount(parent) && index == UNKNOWN_INDEX; i++) {
+                nodeCalls++;
+                if (node.equals(tree.getChild(parent, i))) index = i;
+            }
+            if (index == UNKNOWN_INDEX) return false;
+        }
+        int siblingIndex = index + offset;
+        if (siblingIndex < 0 || siblingIndex >= tree.getChildCount(parent)) return false;
+        nodeCalls++;
+        N sibling = tree.getChild(parent, siblingIndex);
+        if (sibling == null) return false;
+        nodes[depth - 1] = sibling;
+        indexes[depth - 1] = siblingIndex;
+        return true;
+    }
+
+    /**
+     * Search depth first for a node with a matching text, starting with the current node. On
+     * success the cursor is left on the found node with the path to it.
+     *
+     * @param matcher The matcher of the text regex.
+     * @param tree    The tree of the nodes.
+     * @return true if a node was found, false otherwise.
+     */
+    private <N> boolean descendToText(Matcher matcher, NodeTree<N> tree) {
+        N node = current();
+        CharSequence text = tree.getText(node);
+        if (text != null && matcher.reset(text).matches()) {
+            return true;
+        }
+        for (int i = 0; i < tree.getChildCount(node); i++) {
+            nodeCalls++;
+            N child = tree.getScannedChild(node, i);
+            if (child == null) continue;
+            push(child, i);
+            if (descendToText(matcher, tree)) return true;
+            nodes[--depth] = null;
+        }
+        return false;
+    }
+
+    /**
+     * Check if a view id has the given suffix.
+     *
+     * @param viewId The view id to check, may be null.
+     * @param suffix The ":id/" suffix of the view id.
+     * @return true if the view id matches.
+     */
+    private static boolean hasViewIdSuffix(String viewId, String suffix) {
+        return viewId != null && viewId.endsWith(suffix);
+    }
+
+    private <N> N current() {
+        return at(depth - 1);
+    }
+
+    /**
+     * Get a node of the cursor. The cursor only ever holds nodes of the tree the selector runs on.
+     *
+     * @param index Index in the cursor.
+     * @return The node.
+     */
+    @SuppressWarnings("unchecked")
+    private <N> N at(int index) {
+        return (N) nodes[index];
+    }
+
+    private void push(Object node, int index) {
+        if (depth == nodes.length) {
+            nodes = Arrays.copyOf(nodes, depth * 2);
+            indexes = Arrays.copyOf(indexes, depth * 2);
+        }
+        nodes[depth] = node;
+        indexes[depth] = index;
+        depth++;
+    }
+
+    /**
+     * Drop the references to the nodes, they shouldn't be kept alive between triggers.
+     */
+    private void clear() {
+        Arrays.fill(nodes, 0, depth, null);
+        depth = 0;
+    }
+}
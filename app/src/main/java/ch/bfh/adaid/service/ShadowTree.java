@@ -0,0 +1,290 @@
+package ch.bfh.adaid.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Shadow model of the accessibility node tree of the foreground window, used for the snapshots of
+ * the recorder.
+ * <p>
+ * Instead of rebuilding the view of the screen from scratch for every snapshot, the tree is built
+ * once per window and then patched with the content change events of the window:
+ * <ul>
+ *     <li>Subtree changes replace the subtree of the source node.</li>
+ *     <li>Text, description and state changes only update the source node itself.</li>
+ *     <li>Nodes that disappeared are removed together with their subtree.</li>
+ *     <li>Scrolled views get their subtree replaced, as other children may now be visible.</li>
+ * </ul>
+ * Whenever an event can't be applied (unknown source, new window, window state change) the tree is
+ * marked dirty and is rebuilt the next time it is needed.
+ * <p>
+ * Events are merged before they reach the service (content changes of an app are reported for a
+ * common ancestor and events of the same type are only delivered once per notification timeout),
+ * so a patch can miss changes. That is why the tree is rebuilt at least every {@link #MAX_AGE} ms
+ * and why it is not used to evaluate rules, they always look up their views in the framework.
+ * <p>
+ * Nodes are keyed by the {@link AccessibilityNodeInfo} itself, as its equals() and hashCode() only
+ * depend on the unique id of the source view and its window.
+ *
+ * @author Niklaus Leuenberger
+ */
+public class ShadowTree {
+    private static final String TAG = "ShadowTree";
+
+    /**
+     * Windows with more nodes are not mirrored. Snapshots then traverse the window directly.
+     */
+    private static final int MAX_NODES = 5000;
+
+    /**
+     * Maximum age in ms of the tree, after that it is rebuilt to recover from missed changes.
+     */
+    private static final long MAX_AGE = 1000;
+
+    /**
+     * Single node of the shadow tree.
+     */
+    public static class Node {
+        private AccessibilityNodeInfo info;
+        private Node parent;
+        private final ArrayList<Node> children = new ArrayList<>();
+
+        /**
+         * Get the a11y node this shadow node mirrors. Has the state of the last patch.
+         *
+         * @return The a11y node.
+         */
+        public AccessibilityNodeInfo getInfo() {
+            return info;
+        }
+
+        /**
+         * Get the children of the node.
+         *
+         * @return The children, in order.
+         */
+        public List<Node> getChildren() {
+            return children;
+        }
+    }
+
+    /**
+     * Root of the tree, the id of the window it mirrors and when it was built.
+     */
+    private Node root;
+    private int windowId = -1;
+    private long builtAt;
+
+    /**
+     * Flag if the tree is not up to date and has to be rebuilt.
+     */
+    private boolean isDirty = true;
+
+    /**
+     * Id of the last window that had too many nodes. It is not tried again until another window
+     * becomes active, otherwise every snapshot would traverse it up to the limit only to give up.
+     */
+    private int unmirrorableWindowId = -1;
+
+    /**
+     * All nodes of the tree.
+     */
+    private final HashMap<AccessibilityNodeInfo, Node> nodes = new HashMap<>();
+
+    /**
+     * Patch the tree with the given event. If the event can't be applied, the tree is marked dirty.
+     *
+     * @param event The event of the window.
+     * @param root  The root node of the active window.
+     */
+    void onEvent(AccessibilityEvent event, AccessibilityNodeInfo root) {
+        if (isDirty) {
+            return; // gets rebuilt anyway
+        }
+        int eventType = event.getEventType();
+        if (root.getWindowId() != windowId
+                || (eventType != AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
+                && eventType != AccessibilityEvent.TYPE_VIEW_SCROLLED)) {
+            isDirty = true;
+            return;
+        }
+        if (event.getWindowId() != windowId) {
+            return; // event of another window, doesn't affect this tree
+        }
+        AccessibilityNodeInfo source = event.getSource();
+        Node node = (source == null) ? null : nodes.get(source);
+        if (node == null) {
+            isDirty = true;
+            return;
+        }
+        int changeTypes = event.getContentChangeTypes();
+        if (eventType == AccessibilityEvent.TYPE_VIEW_SCROLLED) {
+            replaceSubtree(node, source);
+        } else if ((changeTypes & AccessibilityEvent.CONTENT_CHANGE_TYPE_PANE_DISAPPEARED) != 0
+                && node != this.root) {
+            removeSubtree(node);
+        } else if (changeTypes == AccessibilityEvent.CONTENT_CHANGE_TYPE_UNDEFINED
+                || (changeTypes & (AccessibilityEvent.CONTENT_CHANGE_TYPE_SUBTREE
+                | AccessibilityEvent.CONTENT_CHANGE_TYPE_PANE_APPEARED)) != 0) {
+            replaceSubtree(node, source);
+        } else {
+            node.info = source;
+        }
+        if (nodes.size() > MAX_NODES) {
+            giveUp();
+        }
+    }
+
+    /**
+     * Mark the tree as dirty, it gets rebuilt the next time it is needed.
+     */
+    void invalidate() {
+        isDirty = true;
+    }
+
+    /**
+     * Ensure that the tree mirrors the given window root. Rebuilds it if it is dirty or too old.
+     *
+     * @param root The root node of the active window.
+     * @return true if the tree is usable, false if the window is too big to be mirrored.
+     */
+    boolean ensureBuilt(AccessibilityNodeInfo root) {
+        int rootWindowId = root.getWindowId();
+        if (rootWindowId == unmirrorableWindowId) {
+            return false;
+        }
+        if (isDirty || rootWindowId != windowId || SystemClock.uptimeMillis() - builtAt > MAX_AGE) {
+            build(root);
+        }
+        return !isDirty;
+    }
+
+    /**
+     * Rebuild the whole tree from the given root.
+     *
+     * @param rootInfo The root node of the active window.
+     */
+    private void build(AccessibilityNodeInfo rootInfo) {
+        nodes.clear();
+        windowId = rootInfo.getWindowId();
+        builtAt = SystemClock.uptimeMillis();
+        root = addSubtree(rootInfo, null);
+        if (nodes.size() > MAX_NODES) {
+            giveUp();
+        } else {
+            isDirty = false;
+            unmirrorableWindowId = -1;
+        }
+    }
+
+    /**
+     * Drop the tree of a window that is too big and remember the window to not try it again.
+     */
+    private void giveUp() {
+        Log.w(TAG, "Window has more than " + MAX_NODES + " nodes, not mirroring it.");
+        isDirty = true;
+        unmirrorableWindowId = windowId;
+        nodes.clear();
+        root = null;
+    }
+
+    /**
+     * Recursively add the node and its descendants to the tree. Once the tree has more than
+     * {@link #MAX_NODES} nodes no further children are retrieved on any level.
+     *
+     * @param info   The a11y node to add.
+     * @param parent The parent in the shadow tree, null for the root.
+     * @return The added shadow node.
+     */
+    private Node addSubtree(AccessibilityNodeInfo info, Node parent) {
+        // The view may have moved from somewhere else in the tree, drop it there.
+        Node existing = nodes.get(info);
+        if (existing != null) {
+            removeSubtree(existing);
+        }
+        Node node = new Node();
+        node.parent = parent;
+        node.info = info;
+        nodes.put(info, node);
+        addChildren(node, info);
+        return node;
+    }
+
+    /**
+     * Add the children of the source below the node, stops as soon as the tree is too big.
+     *
+     * @param node   The shadow node to add the children to.
+     * @param source The a11y node of the shadow node.
+     */
+    private void addChildren(Node node, AccessibilityNodeInfo source) {
+        for (int i = 0; i < source.getChildCount() && nodes.size() <= MAX_NODES; i++) {
+            AccessibilityNodeInfo child = NodeRetriever.SNAPSHOT.getChild(source, i);
+            if (child != null) {
+                node.children.add(addSubtree(child, node));
+            }
+        }
+    }
+
+    /**
+     * Replace the subtree below the node with the current state of the source.
+     *
+     * @param node   The shadow node whose subtree changed.
+     * @param source The up to date a11y node.
+     */
+    private void replaceSubtree(Node node, AccessibilityNodeInfo source) {
+        for (Node child : node.children) {
+            forgetSubtree(child);
+        }
+        node.children.clear();
+        node.info = source;
+        addChildren(node, source);
+    }
+
+    /**
+     * Remove the node and its subtree from the tree.
+     *
+     * @param node The node that disappeared.
+     */
+    private void removeSubtree(Node node) {
+        if (node.parent != null) {
+            node.parent.children.remove(node);
+        }
+        forgetSubtree(node);
+    }
+
+    /**
+     * Recursively remove the node and its descendants from the node map.
+     *
+     * @param node The node to forget.
+     */
+    private void forgetSubtree(Node node) {
+        for (Node child : node.children) {
+            forgetSubtree(child);
+        }
+        nodes.remove(node.info);
+    }
+
+    /**
+     * Get the root of the tree.
+     *
+     * @return The root node, null if the tree was never built.
+     */
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * Get the package name of the mirrored window.
+     *
+     * @return The package name.
+     */
+    public String getPackageName() {
+        return root.info.getPackageName().toString();
+    }
+}
@@ -0,0 +1,112 @@
+package ch.bfh.adaid.service;
+
+import android.accessibilityservice.AccessibilityService;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+/**
+ * Cache of the active window root and the nodes the rules resolved in it.
+ * <p>
+ * Fetching the root and searching the nodes of the rules are binder calls to the app that owns
+ * the window. Between two events of the same window those mostly return the same nodes again. So
+ * the root is kept as long as events come from the same window id and the root can still be
+ * refreshed. Nodes that were resolved by a rule are kept in their {@link ScreenFingerprint.Target}
+ * and are reused as long as they are still valid.
+ * <p>
+ * Everything is dropped as soon as the windows or the window state change. Like in the
+ * {@link NegativeLookupCache} the nodes are marked with a generation number so that dropping them
+ * is O(1). The hit rates of the roots and nodes are counted in the {@link EngineMetrics}.
+ *
+ * @author Niklaus Leuenberger
+ */
+class WindowCache {
+
+    private final AccessibilityService service;
+
+    /**
+     * Cached root and the id of the window it belongs to.
+     */
+    private AccessibilityNodeInfo root;
+    private int windowId = -1;
+
+    /**
+     * Current generation of the cached nodes. Nodes of older generations are invalid.
+     */
+    private int generation = 0;
+
+    /**
+     * Construct a new window cache.
+     *
+     * @param service The a11y service used to fetch the root.
+     */
+    WindowCache(AccessibilityService service) {
+        this.service = service;
+    }
+
+    /**
+     * Get the root of the active window for the event. Drops the cache if the event signals that
+     * the windows changed.
+     *
+     * @param event The event that is processed.
+     * @return The root of the active window or null if there is none.
+     */
+    AccessibilityNodeInfo getRoot(AccessibilityEvent event) {
+        int eventType = event.getEventType();
+        if (eventType == AccessibilityEvent.TYPE_WINDOWS_CHANGED
+                || eventType == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
+            invalidate();
+        }
+        EngineMetrics.WINDOW_ROOTS.requests.incrementAndGet();
+        if (root != null && event.getWindowId() == windowId && root.refresh()) {
+            EngineMetrics.WINDOW_ROOTS.hits.incrementAndGet();
+            return root;
+        }
+        root = service.getRootInActiveWindow();
+        if (root == null) {
+            invalidate();
+        } else if (root.getWindowId() != windowId) {
+            windowId = root.getWindowId();
+            generation++;
+        }
+        return root;
+    }
+
+    /**
+     * Drop the cached root and all resolved nodes.
+     */
+    void invalidate() {
+        root = null;
+        windowId = -1;
+        generation++;
+    }
+
+    /**
+     * Checks if the node the target resolved before is still valid and can be used without a new
+     * lookup.
+     *
+     * @param target The target to check.
+     * @param tree   The tree the node belongs to.
+     * @param <N>    Type of the nodes.
+     * @return true if the target still has its single resolved node, false otherwise.
+     */
+    <N> boolean isResolved(ScreenFingerprint.Target<N> target, NodeTree<N> tree) {
+        EngineMetrics.WINDOW_NODES.requests.incrementAndGet();
+        if (target.resolvedGeneration == generation
+                && target.nodes.size() == 1
+                && tree.refresh(target.nodes.get(0))) {
+            EngineMetrics.WINDOW_NODES.hits.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record the lookup result of a target. Only single found nodes are kept as rules only ever act
+     * on those.
+     *
+     * @param target The target that was looked up.
+     */
+    void recordLookup(ScreenFingerprint.Target<?> target) {
+        target.resolvedGeneration = target.nodes.size() == 1 ? generation : -1;
+    }
+}
@@ -1,20 +1,36 @@
 package ch.bfh.adaid.settings;
 
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
 import android.service.quicksettings.Tile;
 import android.service.quicksettings.TileService;
 import android.util.Log;
 
+import java.util.Collections;
+import java.util.List;
+
+import ch.bfh.adaid.R;
+import ch.bfh.adaid.db.Profile;
+import ch.bfh.adaid.db.RuleDataSource;
 import ch.bfh.adaid.service.A11yService;
 
 /**
  * Quick settings tile that toggles the a11y service on or off.
+ * <p>
+ * If there are profiles, a click cycles through them instead: all rules, every profile by name and
+ * then off. The active profile is shown as the subtitle of the tile.
  *
  * @author Niklaus Leuenberger
  */
 public class EnablementTileService extends TileService {
     private static final String TAG = "EnablementTileService";
 
+    /**
+     * Profiles to cycle through, loaded whenever the tile becomes visible.
+     */
+    private List<Profile> profiles = Collections.emptyList();
+
     /**
      * Called when the system adds the tile for the first time.
      */
@@ -42,7 +58,18 @@ public class EnablementTileService extends TileService {
             tile.setState(Tile.STATE_ACTIVE);
             sendOnOff(true);
         }
+        updateSubtitle(tile);
         tile.updateTile();
+        // Profiles may have changed since the tile was last shown.
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        new RuleDataSource(getApplicationContext()).loadProfiles(loaded -> mainHandler.post(() -> {
+            profiles = loaded;
+            Tile visibleTile = getQsTile();
+            if (visibleTile != null) {
+                updateSubtitle(visibleTile);
+                visibleTile.updateTile();
+            }
+        }));
     }
 
     /**
@@ -51,16 +78,25 @@ public class EnablementTileService extends TileService {
     @Override
     public void onClick() {
         super.onClick();
-        // Toggle the state.
+        // Cycle to the next profile or toggle the state if there is none.
         Tile tile = getQsTile();
         int state = tile.getState();
         if (state == Tile.STATE_ACTIVE) {
-            tile.setState(Tile.STATE_INACTIVE);
-            sendOnOff(false);
+            int next = indexOfProfile(A11yService.getActiveProfileId(this)) + 1;
+            if (next < profiles.size()) {
+                sendProfile(profiles.get(next).id);
+            } else {
+                // Start with all rules when turned on again. Switching re-enables the events, so
+                // do it before turning off.
+                tile.setState(Tile.STATE_INACTIVE);
+                sendProfile(Profile.ALL_RULES);
+                sendOnOff(false);
+            }
         } else if (state == Tile.STATE_INACTIVE) {
             tile.setState(Tile.STATE_ACTIVE);
             sendOnOff(true);
         }
+        updateSubtitle(tile);
         tile.updateTile();
     }
 
@@ -74,6 +110,47 @@ public class EnablementTileService extends TileService {
         sendOnOff(true);
     }
 
+    /**
+     * Get the position of a profile in the cycle.
+     *
+     * @param profileId The id of the profile.
+     * @return The index in the loaded profiles, -1 for all rules or unknown profiles.
+     */
+    private int indexOfProfile(long profileId) {
+        for (int i = 0; i < profiles.size(); i++) {
+            if (profiles.get(i).id == profileId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Show the active profile as subtitle of the tile.
+     *
+     * @param tile The tile to update.
+     */
+    private void updateSubtitle(Tile tile) {
+        int index = indexOfProfile(A11yService.getActiveProfileId(this));
+        if (tile.getState() == Tile.STATE_INACTIVE) {
+            tile.setSubtitle(getString(R.string.settings_enablement_tile_off));
+        } else if (index >= 0) {
+            tile.setSubtitle(profiles.get(index).name);
+        } else {
+            tile.setSubtitle(getString(R.string.settings_enablement_tile_all_rules));
+        }
+    }
+
+    /**
+     * Send the profile whose rules should be executed to the a11y service.
+     *
+     * @param profileId The id of the profile.
+     */
+    private void sendProfile(long profileId) {
+        Log.d(TAG, "sending profile " + profileId + " to a11y service");
+        startService(A11yService.getSelectProfileIntent(this, profileId));
+    }
+
     /**
      * Send an on or off command to the a11y service.
      *
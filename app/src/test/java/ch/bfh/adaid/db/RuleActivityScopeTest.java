@@ -0,0 +1,52 @@
+package ch.bfh.adaid.db;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ch.bfh.adaid.action.ActionType;
+
+/**
+ * Local unit test, which will execute on the development machine (host).
+ * <p>
+ * Checks that the activity scope of a rule matches the right screens, also for rules with an app id
+ * pattern.
+ */
+public class RuleActivityScopeTest {
+
+    private static Rule scoped(String appId, String activityScope) {
+        Rule rule = new Rule("scoped", true, appId, "id", null, ActionType.ACTION_BACK, "");
+        rule.activityScope = activityScope;
+        return rule;
+    }
+
+    @Test
+    public void relative_scope_is_resolved_against_the_app() {
+        Rule rule = scoped("com.example.app", ".MainActivity");
+        assertTrue(rule.isMatchingActivityScope("com.example.app",
+                "com.example.app.MainActivity", null));
+        assertFalse(rule.isMatchingActivityScope("com.example.app",
+                "com.example.app.other.MainActivity", null));
+    }
+
+    @Test
+    public void relative_scope_of_pattern_rule_matches_every_app() {
+        Rule rule = scoped("/com\\.example\\..*/", ".MainActivity");
+        assertTrue(rule.isMatchingActivityScope("com.example.app",
+                "com.example.app.MainActivity", null));
+        assertTrue(rule.isMatchingActivityScope("com.example.lite",
+                "com.example.lite.MainActivity", null));
+        assertFalse(rule.isMatchingActivityScope("com.example.lite",
+                "com.example.app.MainActivity", null));
+    }
+
+    @Test
+    public void absolute_scope_matches_activity_or_title() {
+        Rule rule = scoped("/com\\.example\\..*/", "Reels");
+        assertTrue(rule.isMatchingActivityScope("com.example.app", null, "Reels"));
+        assertFalse(rule.isMatchingActivityScope("com.example.app", "Reels.Activity", "Home"));
+        assertTrue(scoped("com.example.app", "").isMatchingActivityScope("com.example.app",
+                null, null));
+    }
+}
@@ -0,0 +1,84 @@
+package ch.bfh.adaid.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+
+/**
+ * Local unit test, which will execute on the development machine (host).
+ * <p>
+ * Checks the time windows of rules and the computation of the next transition the a11y service
+ * sets its alarm for.
+ */
+public class RuleScheduleTest {
+
+    /**
+     * Build a local time in the week of Sunday 2024-06-02.
+     *
+     * @param dayOfWeek Calendar.DAY_OF_WEEK of the time.
+     * @param hour      Hour of the day.
+     * @param minute    Minute of the hour.
+     * @return The time.
+     */
+    private static Calendar at(int dayOfWeek, int hour, int minute) {
+        Calendar time = Calendar.getInstance();
+        time.clear();
+        time.set(2024, Calendar.JUNE, 1 + dayOfWeek, hour, minute);
+        return time;
+    }
+
+    private static Rule scheduled(int start, int end, int days) {
+        Rule rule = new Rule("scheduled");
+        rule.scheduleStart = start;
+        rule.scheduleEnd = end;
+        rule.scheduleDays = days;
+        return rule;
+    }
+
+    @Test
+    public void rule_without_schedule_is_always_active() {
+        Rule rule = new Rule("always");
+        assertFalse(rule.hasSchedule());
+        assertTrue(rule.isScheduledAt(at(Calendar.MONDAY, 3, 0)));
+        assertEquals(Long.MAX_VALUE, rule.getNextScheduleTransition(at(Calendar.MONDAY, 3, 0)));
+    }
+
+    @Test
+    public void daytime_window_is_active_between_start_and_end() {
+        Rule rule = scheduled(8 * 60, 17 * 60, Rule.ALL_DAYS);
+        assertTrue(rule.hasSchedule());
+        assertFalse(rule.isScheduledAt(at(Calendar.MONDAY, 7, 59)));
+        assertTrue(rule.isScheduledAt(at(Calendar.MONDAY, 8, 0)));
+        assertTrue(rule.isScheduledAt(at(Calendar.MONDAY, 16, 59)));
+        assertFalse(rule.isScheduledAt(at(Calendar.MONDAY, 17, 0)));
+        assertEquals(at(Calendar.MONDAY, 17, 0).getTimeInMillis(),
+                rule.getNextScheduleTransition(at(Calendar.MONDAY, 12, 30)));
+        assertEquals(at(Calendar.TUESDAY, 8, 0).getTimeInMillis(),
+                rule.getNextScheduleTransition(at(Calendar.MONDAY, 17, 0)));
+    }
+
+    @Test
+    public void overnight_window_belongs_to_its_start_day() {
+        // Friday 22:00 until Saturday 06:00 only.
+        Rule rule = scheduled(22 * 60, 6 * 60, 1 << (Calendar.FRIDAY - 1));
+        assertFalse(rule.isScheduledAt(at(Calendar.FRIDAY, 5, 0)));
+        assertTrue(rule.isScheduledAt(at(Calendar.FRIDAY, 23, 0)));
+        assertTrue(rule.isScheduledAt(at(Calendar.SATURDAY, 5, 59)));
+        assertFalse(rule.isScheduledAt(at(Calendar.SATURDAY, 23, 0)));
+        assertEquals(at(Calendar.SATURDAY, 6, 0).getTimeInMillis(),
+                rule.getNextScheduleTransition(at(Calendar.FRIDAY, 23, 0)));
+    }
+
+    @Test
+    public void weekend_rule_switches_at_midnight() {
+        Rule rule = scheduled(0, 0, (1 << (Calendar.SUNDAY - 1)) | (1 << (Calendar.SATURDAY - 1)));
+        assertFalse(rule.isScheduledAt(at(Calendar.FRIDAY, 12, 0)));
+        assertTrue(rule.isScheduledAt(at(Calendar.SATURDAY, 0, 0)));
+        assertEquals(at(Calendar.SATURDAY, 0, 0).getTimeInMillis(),
+                rule.getNextScheduleTransition(at(Calendar.FRIDAY, 12, 0)));
+    }
+}
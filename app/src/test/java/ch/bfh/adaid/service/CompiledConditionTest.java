@@ -0,0 +1,90 @@
+package ch.bfh.adaid.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.regex.Matcher;
+
+import ch.bfh.adaid.db.Condition;
+
+/**
+ * Local unit test, which will execute on the development machine (host).
+ * <p>
+ * Checks parsing of the text form of conditions and their evaluation against found nodes.
+ */
+public class CompiledConditionTest {
+
+    /**
+     * Screen where each predicate has its own target. Counts the text matches to check that they
+     * are short-circuited.
+     */
+    private static class FakeScreen implements CompiledCondition.Screen {
+        final int[] nodeCounts;
+        final String[] texts;
+        int textMatches;
+
+        FakeScreen(int[] nodeCounts, String[] texts) {
+            this.nodeCounts = nodeCounts;
+            this.texts = texts;
+        }
+
+        @Override
+        public int getNodeCount(int target) {
+            return nodeCounts[target];
+        }
+
+        @Override
+        public boolean isMatchingText(int target, Matcher matcher) {
+            textMatches++;
+            return texts[target] != null && matcher.reset(texts[target]).matches();
+        }
+    }
+
+    private static int[] identity(int count) {
+        int[] targets = new int[count];
+        for (int i = 0; i < count; i++) targets[i] = i;
+        return targets;
+    }
+
+    @Test
+    public void text_form_round_trips() {
+        String text = "sponsored & !(ad_badge | close=\"Skip \\\"now\\\".*\")";
+        Condition condition = Condition.parse(text);
+        assertEquals(Condition.Type.AND, condition.type);
+        assertEquals(2, condition.children.size());
+        assertEquals("Skip \"now\".*", condition.children.get(1).children.get(0).children.get(1).viewText);
+        assertEquals(text, condition.toString());
+        assertTrue(Condition.parse("  ").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unbalanced_parentheses_are_rejected() {
+        Condition.parse("(a | b");
+    }
+
+    @Test
+    public void cheap_predicates_decide_first() {
+        // Text predicate first in the text, but the missing view decides without matching texts.
+        CompiledCondition condition = new CompiledCondition(Condition.parse("title=\"Ad\" & badge"));
+        assertEquals("title", condition.viewIds.get(0));
+        FakeScreen screen = new FakeScreen(new int[]{1, 0}, new String[]{"Ad", null});
+        assertFalse(condition.evaluate(screen, identity(2)));
+        assertEquals(0, screen.textMatches);
+        screen.nodeCounts[1] = 2;
+        assertTrue(condition.evaluate(screen, identity(2)));
+        assertEquals(1, screen.textMatches);
+    }
+
+    @Test
+    public void not_and_or_combine() {
+        CompiledCondition condition = new CompiledCondition(Condition.parse("!a | b=\"x\""));
+        assertTrue(condition.evaluate(new FakeScreen(new int[]{0, 0}, new String[2]), identity(2)));
+        assertFalse(condition.evaluate(new FakeScreen(new int[]{1, 1}, new String[]{null, "y"}), identity(2)));
+        assertTrue(condition.evaluate(new FakeScreen(new int[]{1, 1}, new String[]{null, "x"}), identity(2)));
+        assertTrue(condition.hasViewText());
+        assertEquals(null, CompiledCondition.of(Condition.parse("")));
+    }
+}
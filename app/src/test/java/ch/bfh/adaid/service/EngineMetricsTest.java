@@ -0,0 +1,69 @@
+package ch.bfh.adaid.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Local unit test, which will execute on the development machine (host).
+ * <p>
+ * Checks the bucketing of the latency histograms and the CSV export of the metrics.
+ */
+public class EngineMetricsTest {
+
+    @Test
+    public void percentiles_are_bucket_upper_bounds() {
+        EngineMetrics.Histogram histogram = new EngineMetrics.Histogram();
+        assertEquals(0, histogram.getPercentileMicros(50));
+        for (int i = 0; i < 90; i++) {
+            histogram.record(80_000); // 80 us
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(4_000_000); // 4 ms
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100, histogram.getPercentileMicros(50));
+        assertEquals(5_000, histogram.getPercentileMicros(95));
+        assertEquals(472, histogram.getMeanMicros());
+        histogram.record(1_000_000_000); // 1 s, beyond the last bound
+        assertEquals(-1, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void csv_quotes_rule_names() {
+        EngineMetrics.RuleMetrics metrics = EngineMetrics.getRule(4242, "skip, \"ads\"");
+        metrics.triggers.incrementAndGet();
+        String csv = EngineMetrics.toCsv();
+        assertTrue(csv.startsWith("kind,name,metric,value\n"));
+        assertTrue(csv.contains("rule,\"4242 skip, \"\"ads\"\"\",triggers,1\n"));
+        EngineMetrics.reset();
+        assertEquals(0, metrics.triggers.get());
+        EngineMetrics.removeRule(4242);
+    }
+
+    @Test
+    public void renamed_rule_keeps_its_metrics() {
+        EngineMetrics.RuleMetrics metrics = EngineMetrics.getRule(4343, "old");
+        metrics.triggers.incrementAndGet();
+        EngineMetrics.renameRule(4343, "new");
+        assertEquals("new", metrics.name);
+        assertEquals(1, EngineMetrics.getRule(4343, "new").triggers.get());
+        EngineMetrics.removeRule(4343);
+        assertEquals(0, EngineMetrics.getRule(4343, "new").triggers.get());
+        EngineMetrics.removeRule(4343);
+    }
+
+    @Test
+    public void caches_report_their_hit_rate() {
+        EngineMetrics.reset();
+        EngineMetrics.CacheMetrics metrics = EngineMetrics.WINDOW_NODES;
+        assertEquals(0, metrics.getHitRate(), 0);
+        metrics.requests.addAndGet(4);
+        metrics.hits.addAndGet(3);
+        assertEquals(0.75, metrics.getHitRate(), 0);
+        assertTrue(EngineMetrics.toCsv().contains("cache,window nodes,hits,3\n"));
+        EngineMetrics.reset();
+        assertEquals(0, metrics.requests.get());
+    }
+}
@@ -0,0 +1,24 @@
+package ch.bfh.adaid.service;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.PowerManager;
+
+import org.junit.Test;
+
+/**
+ * Local unit test, which will execute on the development machine (host).
+ * <p>
+ * Checks the automatic choice of the engine quality from the power state.
+ */
+public class EngineQualityTest {
+
+    @Test
+    public void battery_saver_and_heat_lower_the_quality() {
+        assertEquals(EngineQuality.FULL, EngineQuality.fromPowerState(false, PowerManager.THERMAL_STATUS_LIGHT));
+        assertEquals(EngineQuality.REDUCED, EngineQuality.fromPowerState(true, PowerManager.THERMAL_STATUS_NONE));
+        assertEquals(EngineQuality.REDUCED, EngineQuality.fromPowerState(false, PowerManager.THERMAL_STATUS_MODERATE));
+        assertEquals(EngineQuality.MINIMAL, EngineQuality.fromPowerState(true, PowerManager.THERMAL_STATUS_MODERATE));
+        assertEquals(EngineQuality.MINIMAL, EngineQuality.fromPowerState(false, PowerManager.THERMAL_STATUS_SEVERE));
+    }
+}
@@ -0,0 +1,239 @@
+package ch.bfh.adaid.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import ch.bfh.adaid.action.ActionType;
+import ch.bfh.adaid.db.Condition;
+import ch.bfh.adaid.db.Rule;
+
+/**
+ * Local unit test, which will execute on the development machine (host).
+ * <p>
+ * Runs the per event matching of the rules, i.e. the app id, the fingerprint with its lookups and
+ * texts, the conditions, the view texts and the relative paths, over a small fake window. Checks
+ * that it matches the right nodes and that it doesn't allocate once it is warmed up.
+ */
+public class EventPathAllocationTest {
+
+    private static final String PACKAGE = "com.example.app";
+
+    /**
+     * Node of the fake window.
+     */
+    private static final class FakeNode {
+        final String viewId;
+        CharSequence text;
+        FakeNode parent;
+        final ArrayList<FakeNode> children = new ArrayList<>();
+
+        FakeNode(String viewId, CharSequence text) {
+            this.viewId = (viewId == null) ? null : PACKAGE + ":id/" + viewId;
+            this.text = text;
+        }
+
+        FakeNode add(FakeNode child) {
+            child.parent = this;
+            children.add(child);
+            return this;
+        }
+    }
+
+    /**
+     * Fake window. Lookups return prepared lists, like the framework hands out its own.
+     */
+    private static final class FakeTree implements NodeTree<FakeNode> {
+        final HashMap<String, List<FakeNode>> byViewId = new HashMap<>();
+
+        FakeTree(FakeNode root) {
+            index(root);
+        }
+
+        private void index(FakeNode node) {
+            if (node.viewId != null) {
+                byViewId.computeIfAbsent(node.viewId, id -> new ArrayList<>()).add(node);
+            }
+            for (FakeNode child : node.children) {
+                index(child);
+            }
+        }
+
+        @Override
+        public List<FakeNode> findByViewId(FakeNode node, String completeViewId) {
+            List<FakeNode> found = byViewId.get(completeViewId);
+            return (found == null) ? Collections.emptyList() : found;
+        }
+
+        @Override
+        public FakeNode getParent(FakeNode node) {
+            return node.parent;
+        }
+
+        @Override
+        public int getChildCount(FakeNode node) {
+            return node.children.size();
+        }
+
+        @Override
+        public FakeNode getChild(FakeNode node, int index) {
+            return node.children.get(index);
+        }
+
+        @Override
+        public FakeNode getScannedChild(FakeNode node, int index) {
+            return node.children.get(index);
+        }
+
+        @Override
+        public CharSequence getText(FakeNode node) {
+            return node.text;
+        }
+
+        @Override
+        public String getViewId(FakeNode node) {
+            return node.viewId;
+        }
+
+        @Override
+        public CharSequence getPackageName(FakeNode node) {
+            return PACKAGE;
+        }
+
+        @Override
+        public boolean refresh(FakeNode node) {
+            return true;
+        }
+    }
+
+    private FakeNode root;
+    private FakeNode title;
+    private FakeNode close;
+    private FakeNode badge;
+    private ScreenFingerprint<FakeNode> fingerprint;
+    private final WindowCache windowCache = new WindowCache(null);
+    private final NegativeLookupCache negativeCache = new NegativeLookupCache();
+
+    /**
+     * Number of the rules that matched with the last event.
+     */
+    private int matches;
+
+    private static Rule rule(String appId, String viewId, String viewText, String relativePath) {
+        Rule rule = new Rule("rule " + viewId, true, appId, viewId, viewText,
+                ActionType.ACTION_BACK, relativePath);
+        rule.id = viewId.hashCode();
+        return rule;
+    }
+
+    @Before
+    public void setUp() {
+        title = new FakeNode("title", "Ad: Buy now");
+        close = new FakeNode("close", null);
+        badge = new FakeNode("badge", "Sponsored");
+        root = new FakeNode("root", null)
+                .add(new FakeNode("list", null)
+                        .add(new FakeNode("item", null)
+                                .add(title)
+                                .add(new FakeNode(null, null).add(close))
+                                .add(badge)));
+        Rule conditional = rule(PACKAGE, "item", null, "find(close)");
+        conditional.condition = Condition.parse("badge=\"Spons.*\" & !missing");
+        List<Rule> rules = List.of(
+                rule(PACKAGE, "title", "Ad.*", "parent.find(close)"),
+                conditional,
+                rule(PACKAGE, "badge", null, "prev.child(0)"),
+                rule("/com\\.example\\..*/", "list", null,
+                        "text(\"Ad.*\").parent.child(1).child(0)"),
+                rule(PACKAGE, "missing", null, ""));
+        ArrayList<RuleWithExtras> compiled = new ArrayList<>();
+        for (Rule rule : rules) {
+            compiled.add(new RuleWithExtras(rule, null));
+        }
+        fingerprint = new ScreenFingerprint<>(PACKAGE, compiled, new FakeTree(root));
+    }
+
+    /**
+     * Simulate an event: build the fingerprint and match all rules, as the service does.
+     *
+     * @return true if the fingerprint changed.
+     */
+    private boolean onEvent() {
+        boolean changed = fingerprint.update(root, windowCache, negativeCache);
+        matches = 0;
+        for (int i = 0; i < fingerprint.rules.size(); i++) {
+            RuleWithExtras rule = fingerprint.rules.get(i);
+            if (rule.isMatchingAppId(PACKAGE) && fingerprint.isFound(i)
+                    && fingerprint.isMatching(i) && fingerprint.select(i) == close) {
+                matches++;
+            }
+        }
+        return changed;
+    }
+
+    @Test
+    public void rules_match_their_nodes() {
+        assertTrue(onEvent());
+        assertEquals(4, matches);
+        assertSame(close, fingerprint.select(0));
+        assertFalse(fingerprint.isFound(4));
+        assertFalse(onEvent());
+
+        title.text = "Buy now";
+        assertTrue(onEvent());
+        assertEquals(2, matches); // the title and the text search don't match anymore
+        assertFalse(fingerprint.isMatching(0));
+        assertNull(fingerprint.select(3));
+    }
+
+    @Test
+    public void steady_state_events_do_not_allocate() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        // Alternate the text and drop the caches, so every event changes the fingerprint and
+        // really looks up all views. Warm up first, the lists and cursors grow to their size.
+        CharSequence[] texts = {"Ad: Buy now", "Ad: On sale"};
+        for (int i = 0; i < 20_000; i++) {
+            title.text = texts[i & 1];
+            windowCache.invalidate();
+            negativeCache.invalidate();
+            onEvent();
+        }
+
+        long overhead = allocations.getThreadAllocatedBytes(thread);
+        overhead = allocations.getThreadAllocatedBytes(thread) - overhead;
+        // The runtime itself may allocate once in a while on this thread, e.g. when it compiles a
+        // method. Allocations of the engine show up in every round, so take the smallest one.
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            long before = allocations.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 1_000; i++) {
+                title.text = texts[i & 1];
+                windowCache.invalidate();
+                negativeCache.invalidate();
+                onEvent();
+            }
+            allocated = Math.min(allocated,
+                    allocations.getThreadAllocatedBytes(thread) - before - overhead);
+        }
+        assertEquals(4, matches);
+        assertEquals("Bytes allocated by 1000 events", 0, allocated);
+    }
+}
@@ -0,0 +1,47 @@
+package ch.bfh.adaid.service;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Local unit test, which will execute on the development machine (host).
+ * <p>
+ * Checks that the notification timeout backs off for flooding packages and speeds up again.
+ */
+public class EventRateControllerTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void flood_backs_off_up_to_the_maximum() {
+        EventRateController controller = new EventRateController(20, 500, 100);
+        long now = 10_000 * MS;
+        // An event every 10 ms that takes 8 ms to evaluate.
+        for (int i = 0; i < 50; i++) {
+            now += 10 * MS;
+            controller.onEvent("chatty", now, 8 * MS);
+        }
+        assertEquals(500, controller.getTimeoutToApply("chatty", now));
+        // Applied timeout doesn't change again within the apply interval.
+        assertEquals(-1, controller.getTimeoutToApply("other", now + MS));
+    }
+
+    @Test
+    public void quiet_package_and_foreground_change_speed_up() {
+        EventRateController controller = new EventRateController(20, 500, 100);
+        long now = 10_000 * MS;
+        for (int i = 0; i < 20; i++) {
+            now += 1000 * MS;
+            controller.onEvent("quiet", now, MS);
+        }
+        assertEquals(20, controller.getTimeoutToApply("quiet", now));
+        for (int i = 0; i < 50; i++) {
+            now += 10 * MS;
+            controller.onEvent("chatty", now, 8 * MS);
+        }
+        controller.onForegroundChanged(now);
+        assertEquals(-1, controller.getTimeoutToApply("chatty", now + 2000 * MS));
+        assertEquals(500, controller.getTimeoutToApply("chatty", now + 4000 * MS));
+    }
+}
@@ -0,0 +1,61 @@
+package ch.bfh.adaid.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ch.bfh.adaid.db.RuleDatabase;
+
+/**
+ * Local unit test, which will execute on the development machine (host).
+ * <p>
+ * Checks the compilation of selectors and the migration of relative paths to them. Running them
+ * over a fake window is checked by {@link EventPathAllocationTest}.
+ */
+public class SelectorTest {
+
+    private static boolean isValid(String source) {
+        try {
+            Selector.compile(source);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void empty_selector_selects_the_node_itself() {
+        assertTrue(Selector.compile(null).isEmpty());
+        assertTrue(Selector.compile(" ").isEmpty());
+    }
+
+    @Test
+    public void selector_steps_compile() {
+        assertTrue(isValid("parent(list_item).find(close_button, 1).prev.next.child(0)"));
+        assertTrue(isValid("text(\"Ad.*\").parent"));
+        assertTrue(isValid("text(\"a \\\"quoted\\\" text.with.dots\")"));
+        assertTrue(isValid("p.p.su.c[2]")); // former relative path
+        assertFalse(Selector.compile("parent").isEmpty());
+    }
+
+    @Test
+    public void invalid_selectors_are_rejected() {
+        assertFalse(isValid("up"));
+        assertFalse(isValid("child(-1)"));
+        assertFalse(isValid("child(x)"));
+        assertFalse(isValid("find()"));
+        assertFalse(isValid("prev(1)"));
+        assertFalse(isValid("text(unquoted)"));
+        assertFalse(isValid("text(\"[\")"));
+        assertFalse(isValid("parent(a.b"));
+    }
+
+    @Test
+    public void relative_paths_are_migrated() {
+        String migrated = RuleDatabase.RelativePathMigration.translate("p.p.su.c[2].sd");
+        assertEquals("parent.parent.prev.child(2).next", migrated);
+        assertTrue(isValid(migrated));
+    }
+}